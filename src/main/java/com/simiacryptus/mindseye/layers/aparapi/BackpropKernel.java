@@ -20,7 +20,6 @@
 package com.simiacryptus.mindseye.layers.aparapi;
 
 import com.aparapi.Kernel;
-import com.aparapi.Range;
 
 import javax.annotation.Nullable;
 
@@ -33,6 +32,10 @@ public final class BackpropKernel extends Kernel {
   public int[] kernelOffset;
   @Nullable
   public int[] kernelSize;
+  public int groups = 1;
+  public int strideX = 1;
+  public int strideY = 1;
+  public int interleaved = 0;
   @Nullable
   public double[] output;
   @Nullable
@@ -48,47 +51,64 @@ public final class BackpropKernel extends Kernel {
     assert kernelSize != null;
     assert kernelSize[0] * kernelSize[1] * kernelSize[2] == weights.length;
     assert input != null;
-    execute(Range.create(input.length, 1));
+    assert inputSize != null;
+    if (0 != interleaved) {
+      final int row = inputSize[2] * inputSize[0];
+      execute(LaunchPlanner.getDefault().plan(inputSize[2], inputSize[0], input.length / row));
+    } else {
+      final int plane = inputSize[0] * inputSize[1];
+      execute(LaunchPlanner.getDefault().plan(inputSize[0], inputSize[1], input.length / plane));
+    }
   }
 
   @Override
   public void run() {
-    final int i = getGlobalId();
+    final int x = getGlobalId(0);
+    final int y = getGlobalId(1);
+    final int z = getGlobalId(2);
+    assert inputSize != null;
     assert input != null;
-    input[i] = run(i);
+    if (0 != interleaved) {
+      final int i = x + inputSize[2] * (y + inputSize[0] * z);
+      if (x < inputSize[2] && y < inputSize[0] && i < input.length) {
+        input[i] = run(y, z % inputSize[1], x, z / inputSize[1]);
+      }
+    } else {
+      final int i = x + inputSize[0] * (y + inputSize[1] * z);
+      if (x < inputSize[0] && y < inputSize[1] && i < input.length) {
+        input[i] = run(x, y, z % inputSize[2], z / inputSize[2]);
+      }
+    }
   }
 
-  public final double run(final int i) {
+  public final double run(final int i0, final int i1, final int i2, final int batch) {
     assert inputSize != null;
-    final int is0 = inputSize[0];
-    final int is1 = is0 * inputSize[1];
-    final int is2 = is1 * inputSize[2];
-    final int batch = i / is2;
-    final int i2 = i % is2 / is1;
-    final int i1 = i % is1 / is0;
-    final int i0 = i % is0;
+    assert outputSize != null;
+    assert kernelSize != null;
+    final int outputBandsPerGroup = outputSize[2] / groups;
+    final int inputBandsPerGroup = inputSize[2] / groups;
+    final int group = i2 / inputBandsPerGroup;
 
     double accum = 0;
     assert weights != null;
-    for (int k = 0; k < weights.length; k++) {
-      if (0. != weights[k]) {
-        assert kernelSize != null;
-        final int ks0 = kernelSize[0];
-        final int ks1 = ks0 * kernelSize[1];
-        final int ks2 = ks1 * kernelSize[2];
-        final int k2 = k % ks2 / ks1;
-        final int k1 = k % ks1 / ks0;
-        final int k0 = k % ks0;
-
-        assert outputSize != null;
-        final int o2 = k2 - i2 * outputSize[2];
-        if (o2 >= 0 && o2 < outputSize[2]) {
-          final int o1 = i1 + k1 - kernelOffset[1];
-          final int o0 = i0 + k0 - kernelOffset[0];
-          if (o0 < outputSize[0] && o1 < outputSize[1] && o0 >= 0 && o1 >= 0) {
-            final int o = o0 + outputSize[0] * (o1 + outputSize[1] * (o2 + outputSize[2] * batch));
-            assert output != null;
-            accum += output[o] * weights[k];
+    for (int b = 0; b < outputBandsPerGroup; b++) {
+      final int o2 = group * outputBandsPerGroup + b;
+      final int k2 = i2 * outputBandsPerGroup + b;
+      for (int k1 = 0; k1 < kernelSize[1]; k1++) {
+        final int s1 = i1 + k1 - kernelOffset[1];
+        final int o1 = s1 / strideY;
+        if (s1 >= 0 && s1 == o1 * strideY && o1 < outputSize[1]) {
+          for (int k0 = 0; k0 < kernelSize[0]; k0++) {
+            final int s0 = i0 + k0 - kernelOffset[0];
+            final int o0 = s0 / strideX;
+            if (s0 >= 0 && s0 == o0 * strideX && o0 < outputSize[0]) {
+              final int k = k0 + kernelSize[0] * (k1 + kernelSize[1] * k2);
+              final int o = 0 != interleaved
+                  ? o2 + outputSize[2] * (o0 + outputSize[0] * (o1 + outputSize[1] * batch))
+                  : o0 + outputSize[0] * (o1 + outputSize[1] * (o2 + outputSize[2] * batch));
+              assert output != null;
+              accum += output[o] * weights[k];
+            }
           }
         }
       }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.ref.wrappers.RefArrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Staging buffers for the kernels, pooled by length. A returned buffer is handed out again to the next request of the
+ * same length, most recent first, so the array identity seen by Aparapi stays stable and its device allocation is
+ * reused. When the idle buffers exceed the byte cap, whole lengths are dropped in least recently used order.
+ */
+public final class BufferPool<T> {
+
+  public static final long DEFAULT_CAPACITY = Long.getLong("mindseye.aparapi.bufferPool", 1024L * 1024 * 1024);
+
+  @Nonnull
+  private final IntFunction<T> allocator;
+  @Nonnull
+  private final ToIntFunction<T> length;
+  @Nullable
+  private final Consumer<T> clear;
+  private final int elementBytes;
+  @Nonnull
+  private final LinkedHashMap<Integer, ArrayDeque<T>> idle = new LinkedHashMap<>(16, 0.75f, true);
+  @Nonnull
+  private final AtomicLong allocations = new AtomicLong();
+  @Nonnull
+  private final AtomicLong reuses = new AtomicLong();
+  @Nonnull
+  private final AtomicLong evictions = new AtomicLong();
+  private long capacity;
+  private long idleBytes = 0;
+
+  public BufferPool(final long capacity, @Nonnull final IntFunction<T> allocator, @Nonnull final ToIntFunction<T> length,
+                    @Nullable final Consumer<T> clear) {
+    this(capacity, Double.BYTES, allocator, length, clear);
+  }
+
+  public BufferPool(final long capacity, final int elementBytes, @Nonnull final IntFunction<T> allocator,
+                    @Nonnull final ToIntFunction<T> length, @Nullable final Consumer<T> clear) {
+    this.capacity = capacity;
+    this.elementBytes = elementBytes;
+    this.allocator = allocator;
+    this.length = length;
+    this.clear = clear;
+  }
+
+  /**
+   * Heap arrays, zeroed when handed out.
+   */
+  @Nonnull
+  public static BufferPool<double[]> heap(final long capacity) {
+    return new BufferPool<>(capacity, double[]::new, buffer -> buffer.length, buffer -> RefArrays.fill(buffer, 0.0));
+  }
+
+  /**
+   * Native-order direct buffers whose capacity is the requested length. Their contents are undefined when handed out,
+   * and their memory is released once the pool drops them and the collector reclaims the buffer object.
+   */
+  @Nonnull
+  public static BufferPool<DoubleBuffer> direct(final long capacity) {
+    return new BufferPool<>(capacity,
+        length -> ByteBuffer.allocateDirect(Double.BYTES * length).order(ByteOrder.nativeOrder()).asDoubleBuffer(),
+        DoubleBuffer::capacity, null);
+  }
+
+  /**
+   * Half-precision heap arrays, whose contents are undefined when handed out.
+   */
+  @Nonnull
+  public static BufferPool<short[]> halves(final long capacity) {
+    return new BufferPool<>(capacity, Short.BYTES, short[]::new, buffer -> buffer.length, null);
+  }
+
+  /**
+   * Integer heap arrays, whose contents are undefined when handed out.
+   */
+  @Nonnull
+  public static BufferPool<int[]> ints(final long capacity) {
+    return new BufferPool<>(capacity, Integer.BYTES, int[]::new, buffer -> buffer.length, null);
+  }
+
+  public synchronized long getCapacity() {
+    return capacity;
+  }
+
+  public synchronized void setCapacity(final long capacity) {
+    this.capacity = capacity;
+    evict();
+  }
+
+  public synchronized long getIdleBytes() {
+    return idleBytes;
+  }
+
+  public long getAllocations() {
+    return allocations.get();
+  }
+
+  public long getReuses() {
+    return reuses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Nonnull
+  public T obtain(final int length) {
+    T buffer = null;
+    synchronized (this) {
+      final ArrayDeque<T> buffers = idle.get(length);
+      if (null != buffers) {
+        buffer = buffers.pollFirst();
+        if (null != buffer)
+          idleBytes -= bytes(length);
+      }
+    }
+    if (null == buffer) {
+      allocations.incrementAndGet();
+      return allocator.apply(length);
+    }
+    reuses.incrementAndGet();
+    if (null != clear)
+      clear.accept(buffer);
+    return buffer;
+  }
+
+  public void recycle(@Nonnull final T buffer) {
+    final int length = this.length.applyAsInt(buffer);
+    synchronized (this) {
+      idle.computeIfAbsent(length, key -> new ArrayDeque<>()).addFirst(buffer);
+      idleBytes += bytes(length);
+      evict();
+    }
+  }
+
+  public synchronized void clear() {
+    idle.clear();
+    idleBytes = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("BufferPool [%d lengths, %d idle bytes, %d allocations, %d reuses, %d evictions]",
+        idle.size(), idleBytes, allocations.get(), reuses.get(), evictions.get());
+  }
+
+  private void evict() {
+    final Iterator<Map.Entry<Integer, ArrayDeque<T>>> iterator = idle.entrySet().iterator();
+    while (idleBytes > capacity && iterator.hasNext()) {
+      final Map.Entry<Integer, ArrayDeque<T>> entry = iterator.next();
+      idleBytes -= bytes(entry.getKey()) * entry.getValue().size();
+      evictions.addAndGet(entry.getValue().size());
+      iterator.remove();
+    }
+  }
+
+  private long bytes(final int length) {
+    return (long) elementBytes * length;
+  }
+}
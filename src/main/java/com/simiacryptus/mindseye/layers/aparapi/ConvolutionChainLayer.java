@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Runs a sequence of {@link ConvolutionLayer}s as one layer. Intermediate activations stay in packed buffers from
+ * {@link ConvolutionController#getBuffers()} between the stages, so only the chain input and output are converted to
+ * and from {@link Tensor}s. Only the inputs of layers that are not frozen are retained, for their weight gradients.
+ * The weight gradients come from each layer's own pool and follow its deferred gradient and all-reduce settings, so a
+ * deferred layer is flushed with {@link #flushGradient(DeltaSet)} or its own {@link ConvolutionLayer#flushGradient}.
+ */
+@SuppressWarnings("serial")
+public class ConvolutionChainLayer extends LayerBase {
+
+  @Nonnull
+  private final ConvolutionLayer[] layers;
+
+  public ConvolutionChainLayer(@Nonnull final ConvolutionLayer... layers) {
+    super();
+    if (0 == layers.length) {
+      throw new IllegalArgumentException("Empty chain");
+    }
+    this.layers = layers;
+  }
+
+  protected ConvolutionChainLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> resources) {
+    super(json);
+    JsonArray array = json.getAsJsonArray("layers");
+    layers = new ConvolutionLayer[array.size()];
+    for (int i = 0; i < layers.length; i++) {
+      layers[i] = ConvolutionLayer.fromJson(array.get(i).getAsJsonObject(), resources);
+    }
+  }
+
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static ConvolutionChainLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new ConvolutionChainLayer(json, rs);
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nonnull final Result... inObj) {
+    final Result input = inObj[0].addRef();
+    RefUtil.freeRef(inObj);
+    final TensorList batch = input.getData();
+    final int length = batch.length();
+    Tensor temp_00_0001 = batch.get(0);
+    @Nonnull final int[] inputDims = temp_00_0001.getDimensions();
+    temp_00_0001.freeRef();
+    final ConvolutionController[] controllers = newControllers(inputDims);
+    final ConvolutionController last = controllers[controllers.length - 1];
+    final int itemsPerRun = RefArrays.stream(controllers).mapToInt(controller -> controller.getInputsPerRun(length,
+        Math.max(controller.getInputLength(), controller.getOutputLength()))).min().getAsInt();
+    final int runs = (length + itemsPerRun - 1) / itemsPerRun;
+    final double[][][] activations = new double[runs][layers.length][];
+    final Tensor[] output = RefIntStream.range(0, length)
+        .mapToObj(dataIndex -> new Tensor(last.getOutputDims())).toArray(i -> new Tensor[i]);
+    try {
+      for (int run = 0; run < runs; run++) {
+        final int offset = run * itemsPerRun;
+        final int items = Math.min(itemsPerRun, length - offset);
+        double[] activation = pack(batch, offset, items, controllers[0].getInputLength());
+        for (int i = 0; i < layers.length; i++) {
+          final double[] next = ConvolutionController.getBuffers().obtain(items * controllers[i].getOutputLength());
+          final Tensor kernel = layers[i].getKernel();
+          assert kernel != null;
+          controllers[i].convolve(activation, kernel.getData(), next);
+          kernel.freeRef();
+          final int[] outputDims = controllers[i].getOutputDims();
+          layers[i].addBias(next, outputDims[0] * outputDims[1]);
+          if (layers[i].isFrozen()) {
+            ConvolutionController.getBuffers().recycle(activation);
+          } else {
+            activations[run][i] = activation;
+          }
+          activation = next;
+        }
+        unpack(activation, output, offset, items);
+        ConvolutionController.getBuffers().recycle(activation);
+      }
+    } catch (@Nonnull final Throwable e) {
+      throw new RuntimeException("Error mapCoords png res " + RefArrays.toString(inputDims), e);
+    }
+    batch.freeRef();
+    final boolean alive = input.isAlive();
+    final boolean trainable = RefArrays.stream(layers).anyMatch(layer -> !layer.isFrozen());
+    Accumulator accumulator = new Accumulator(controllers, activations, itemsPerRun, length, inputDims,
+        input.getAccumulator(), alive);
+    input.freeRef();
+    return new Result(new TensorArray(output), accumulator, alive || trainable);
+  }
+
+  /**
+   * Calls {@link ConvolutionLayer#flushGradient(DeltaSet)} on every layer of the chain.
+   */
+  public void flushGradient(@Nonnull DeltaSet<UUID> buffer) {
+    for (ConvolutionLayer layer : layers) {
+      layer.flushGradient(buffer.addRef());
+    }
+    buffer.freeRef();
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, @Nonnull DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJsonStub();
+    JsonArray array = new JsonArray();
+    for (ConvolutionLayer layer : layers) {
+      array.add(layer.getJson(resources, dataSerializer));
+    }
+    json.add("layers", array);
+    return json;
+  }
+
+  @Nonnull
+  @Override
+  public RefList<double[]> state() {
+    return RefArrays.asList(RefArrays.stream(layers).map(layer -> {
+      final Tensor kernel = layer.getKernel();
+      assert kernel != null;
+      final double[] data = kernel.getData();
+      kernel.freeRef();
+      return data;
+    }).toArray(i -> new double[i][]));
+  }
+
+  public void _free() {
+    for (ConvolutionLayer layer : layers) {
+      layer.freeRef();
+    }
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  ConvolutionChainLayer addRef() {
+    return (ConvolutionChainLayer) super.addRef();
+  }
+
+  @Nonnull
+  private ConvolutionController[] newControllers(@Nonnull final int[] inputDims) {
+    final ConvolutionController[] controllers = new ConvolutionController[layers.length];
+    int[] dims = inputDims;
+    for (int i = 0; i < layers.length; i++) {
+      controllers[i] = layers[i].newController(dims);
+      dims = controllers[i].getOutputDims();
+    }
+    return controllers;
+  }
+
+  @Nonnull
+  private static double[] pack(@Nonnull final TensorList data, final int offset, final int items,
+                               final int itemLength) {
+    final double[] buffer = ConvolutionController.getBuffers().obtain(items * itemLength);
+    RefIntStream.range(0, items).parallel().forEach(i -> {
+      Tensor tensor = data.get(offset + i);
+      assert itemLength == tensor.length();
+      RefSystem.arraycopy(tensor.getData(), 0, buffer, i * itemLength, itemLength);
+      tensor.freeRef();
+    });
+    return buffer;
+  }
+
+  private static void unpack(@Nonnull final double[] buffer, @Nonnull final Tensor[] data, final int offset,
+                             final int items) {
+    final int itemLength = buffer.length / items;
+    RefIntStream.range(0, items).parallel().forEach(i ->
+        RefSystem.arraycopy(buffer, i * itemLength, data[offset + i].getData(), 0, itemLength));
+  }
+
+  private class Accumulator extends Result.Accumulator {
+
+    private final ConvolutionController[] controllers;
+    private final double[][][] activations;
+    private final int itemsPerRun;
+    private final int length;
+    private final int[] inputDims;
+    private final ConvolutionChainLayer chainLayer;
+    private Result.Accumulator accumulator;
+    private boolean alive;
+
+    public Accumulator(ConvolutionController[] controllers, double[][][] activations, int itemsPerRun, int length,
+                       int[] inputDims, Result.Accumulator accumulator, boolean alive) {
+      this.controllers = controllers;
+      this.activations = activations;
+      this.itemsPerRun = itemsPerRun;
+      this.length = length;
+      this.inputDims = inputDims;
+      this.chainLayer = ConvolutionChainLayer.this.addRef();
+      this.accumulator = accumulator;
+      this.alive = alive;
+    }
+
+    @Override
+    public void accept(@Nonnull DeltaSet<UUID> buffer, @Nonnull TensorList error) {
+      final double[][] gradients = new double[layers.length][];
+      for (int i = 0; i < layers.length; i++) {
+        if (null != activations[0][i] && !layers[i].isFrozen()) {
+          gradients[i] = layers[i].acquireGradient();
+        }
+      }
+      final Tensor[] inputDeltas = alive ? RefIntStream.range(0, length)
+          .mapToObj(dataIndex -> new Tensor(inputDims)).toArray(i -> new Tensor[i]) : null;
+      for (int run = 0; run < activations.length; run++) {
+        final int offset = run * itemsPerRun;
+        final int items = Math.min(itemsPerRun, length - offset);
+        double[] delta = pack(error, offset, items, controllers[controllers.length - 1].getOutputLength());
+        for (int i = layers.length - 1; i >= 0; i--) {
+          final ConvolutionLayer layer = layers[i];
+          if (null != gradients[i]) {
+            controllers[i].gradient(activations[run][i], gradients[i], delta);
+          }
+          if (0 < i || alive) {
+            final double[] inputDelta = ConvolutionController.getBuffers()
+                .obtain(items * controllers[i].getInputLength());
+            final Tensor kernel = layer.getKernel();
+            assert kernel != null;
+            controllers[i].backprop(inputDelta, kernel.getData(), delta);
+            kernel.freeRef();
+            ConvolutionController.getBuffers().recycle(delta);
+            delta = inputDelta;
+          }
+        }
+        if (null != inputDeltas) {
+          unpack(delta, inputDeltas, offset, items);
+        }
+        ConvolutionController.getBuffers().recycle(delta);
+      }
+      error.freeRef();
+      for (int i = 0; i < layers.length; i++) {
+        if (null != gradients[i]) {
+          layers[i].releaseGradient(buffer.addRef(), gradients[i]);
+        }
+      }
+      if (null != inputDeltas) {
+        accumulator.accept(buffer.addRef(), new TensorArray(inputDeltas));
+      }
+      buffer.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      for (double[][] run : activations) {
+        for (double[] activation : run) {
+          if (null != activation)
+            ConvolutionController.getBuffers().recycle(activation);
+        }
+      }
+      accumulator.freeRef();
+      chainLayer.freeRef();
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.wrappers.RefArrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A copy of the weights and configuration of a {@link ConvolutionLayer}, with a compact little-endian binary
+ * encoding: a magic number, flags and the payload length, then the payload, optionally deflated. The payload holds
+ * the kernel dimensions, groups, padding, bias and kernel values.
+ */
+public final class ConvolutionCheckpoint {
+
+  private static final int MAGIC = 0x4d45434b;
+  private static final int COMPRESSED = 1;
+  private static final int HEADER_LENGTH = 2 * Integer.BYTES + Long.BYTES;
+  private static final int NO_PADDING = Integer.MIN_VALUE;
+  private static final int STREAM_BUFFER = 64 * 1024;
+  @Nonnull
+  private static final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "convolution-checkpoint");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @Nonnull
+  private final int[] dimensions;
+  @Nonnull
+  private final double[] weights;
+  private final int groups;
+  @Nullable
+  private final Integer paddingX;
+  @Nullable
+  private final Integer paddingY;
+  @Nullable
+  private final double[] bias;
+
+  public ConvolutionCheckpoint(@Nonnull final int[] dimensions, @Nonnull final double[] weights, final int groups,
+                               @Nullable final Integer paddingX, @Nullable final Integer paddingY,
+                               @Nullable final double[] bias) {
+    if (Tensor.length(dimensions) != weights.length)
+      throw new IllegalArgumentException(RefArrays.toString(dimensions) + " != " + weights.length);
+    this.dimensions = dimensions;
+    this.weights = weights;
+    this.groups = groups;
+    this.paddingX = paddingX;
+    this.paddingY = paddingY;
+    this.bias = bias;
+  }
+
+  @Nonnull
+  public int[] getDimensions() {
+    return RefArrays.copyOf(dimensions, dimensions.length);
+  }
+
+  public int getGroups() {
+    return groups;
+  }
+
+  @Nullable
+  public Integer getPaddingX() {
+    return paddingX;
+  }
+
+  @Nullable
+  public Integer getPaddingY() {
+    return paddingY;
+  }
+
+  @Nullable
+  public double[] getBias() {
+    return null == bias ? null : RefArrays.copyOf(bias, bias.length);
+  }
+
+  @Nonnull
+  public Tensor getKernel() {
+    return new Tensor(RefArrays.copyOf(weights, weights.length), dimensions);
+  }
+
+  /**
+   * Copies the current weights and configuration of the layer, whose reference is consumed.
+   */
+  @Nonnull
+  public static ConvolutionCheckpoint of(@Nonnull final ConvolutionLayer layer) {
+    final Tensor kernel = layer.getKernel();
+    assert kernel != null;
+    final double[] weights = kernel.getData();
+    final double[] bias = layer.getBias();
+    final ConvolutionCheckpoint checkpoint = new ConvolutionCheckpoint(kernel.getDimensions(),
+        RefArrays.copyOf(weights, weights.length), layer.getGroups(), layer.getPaddingX(), layer.getPaddingY(),
+        null == bias ? null : RefArrays.copyOf(bias, bias.length));
+    kernel.freeRef();
+    layer.freeRef();
+    return checkpoint;
+  }
+
+  @Nonnull
+  public static ConvolutionCheckpoint fromBytes(@Nonnull final byte[] bytes) {
+    try {
+      return read(Channels.newChannel(new ByteArrayInputStream(bytes)));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Nonnull
+  public static ConvolutionCheckpoint read(@Nonnull final File file) {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return read(channel);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Nonnull
+  public static ConvolutionCheckpoint read(@Nonnull final ReadableByteChannel channel) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, header);
+    if (MAGIC != header.getInt())
+      throw new IllegalArgumentException("Not a convolution checkpoint");
+    final int flags = header.getInt();
+    final long length = header.getLong();
+    if (length < 0 || length > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Payload length " + length);
+    final ByteBuffer payload = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+    if (0 != (flags & COMPRESSED)) {
+      final Inflater inflater = new Inflater();
+      try {
+        readFully(Channels.newChannel(new InflaterInputStream(Channels.newInputStream(channel), inflater,
+            STREAM_BUFFER)), payload);
+      } finally {
+        inflater.end();
+      }
+    } else {
+      readFully(channel, payload);
+    }
+    final int[] dimensions = new int[payload.getInt()];
+    for (int i = 0; i < dimensions.length; i++) {
+      dimensions[i] = payload.getInt();
+    }
+    final int groups = payload.getInt();
+    final int paddingX = payload.getInt();
+    final int paddingY = payload.getInt();
+    final int biasLength = payload.getInt();
+    final double[] bias = biasLength < 0 ? null : new double[biasLength];
+    if (null != bias) {
+      payload.asDoubleBuffer().get(bias);
+      payload.position(payload.position() + Double.BYTES * bias.length);
+    }
+    final double[] weights = new double[payload.remaining() / Double.BYTES];
+    payload.asDoubleBuffer().get(weights);
+    return new ConvolutionCheckpoint(dimensions, weights, groups, NO_PADDING == paddingX ? null : paddingX,
+        NO_PADDING == paddingY ? null : paddingY, bias);
+  }
+
+  /**
+   * A new layer with these weights. A layer with a bias comes back frozen, like a folded one, since the bias is not
+   * trained.
+   */
+  @Nonnull
+  public ConvolutionLayer toLayer() {
+    final ConvolutionLayer layer = new ConvolutionLayer(getKernel(), true, groups);
+    layer.setPaddingX(paddingX);
+    layer.setPaddingY(paddingY);
+    layer.setBias(getBias());
+    if (null != bias)
+      layer.setFrozen(true);
+    return layer;
+  }
+
+  @Nonnull
+  public byte[] toBytes(final boolean compressed) {
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    try {
+      write(Channels.newChannel(stream), compressed);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return stream.toByteArray();
+  }
+
+  /**
+   * Writes the checkpoint to a temporary file next to the target and moves it into place, so the target is never
+   * seen half written.
+   */
+  public void write(@Nonnull final File file, final boolean compressed) {
+    try {
+      final File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+      try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING)) {
+        write(channel, compressed);
+        channel.force(false);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(temp.toPath());
+        throw e;
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void write(@Nonnull final WritableByteChannel channel, final boolean compressed) throws IOException {
+    final ByteBuffer payload = getPayload();
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC);
+    header.putInt(compressed ? COMPRESSED : 0);
+    header.putLong(payload.remaining());
+    header.flip();
+    writeFully(channel, header);
+    if (compressed) {
+      final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        final DeflaterOutputStream stream = new DeflaterOutputStream(Channels.newOutputStream(channel), deflater,
+            STREAM_BUFFER);
+        writeFully(Channels.newChannel(stream), payload);
+        stream.finish();
+        stream.flush();
+      } finally {
+        deflater.end();
+      }
+    } else {
+      writeFully(channel, payload);
+    }
+  }
+
+  /**
+   * Writes the checkpoint to the file on a background thread; the values were already copied, so the layer can keep
+   * training meanwhile. Writes are run one at a time, in submission order.
+   */
+  @Nonnull
+  public CompletableFuture<File> writeAsync(@Nonnull final File file, final boolean compressed) {
+    return CompletableFuture.supplyAsync(() -> {
+      write(file, compressed);
+      return file;
+    }, writer);
+  }
+
+  @Nonnull
+  private ByteBuffer getPayload() {
+    final int biasLength = null == bias ? 0 : bias.length;
+    final long length = (long) Integer.BYTES * (5 + dimensions.length)
+        + (long) Double.BYTES * (biasLength + weights.length);
+    if (length > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Kernel too large for a checkpoint: " + RefArrays.toString(dimensions));
+    final ByteBuffer payload = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+    payload.putInt(dimensions.length);
+    for (int dimension : dimensions) {
+      payload.putInt(dimension);
+    }
+    payload.putInt(groups);
+    payload.putInt(null == paddingX ? NO_PADDING : paddingX);
+    payload.putInt(null == paddingY ? NO_PADDING : paddingY);
+    payload.putInt(null == bias ? -1 : bias.length);
+    if (null != bias) {
+      payload.asDoubleBuffer().put(bias);
+      payload.position(payload.position() + Double.BYTES * bias.length);
+    }
+    payload.asDoubleBuffer().put(weights);
+    payload.position(0);
+    return payload;
+  }
+
+  private static void readFully(@Nonnull final ReadableByteChannel channel, @Nonnull final ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0)
+        throw new IOException("Truncated convolution checkpoint");
+    }
+    buffer.flip();
+  }
+
+  private static void writeFully(@Nonnull final WritableByteChannel channel, @Nonnull final ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  public enum Format {
+    JSON,
+    BINARY,
+    COMPRESSED
+  }
+}
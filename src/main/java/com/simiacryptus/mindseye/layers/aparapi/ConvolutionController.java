@@ -20,7 +20,6 @@
 package com.simiacryptus.mindseye.layers.aparapi;
 
 import com.simiacryptus.mindseye.lang.ComponentException;
-import com.simiacryptus.ref.lang.RecycleBin;
 import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefStringBuilder;
@@ -30,60 +29,313 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class ConvolutionController {
 
   public static final int MAX_BUFFER_SIZE = 256 * 1024 * 1024;
+  public static final int MAX_DIRECT_BUFFER_SIZE = Integer.MAX_VALUE / Double.BYTES;
   private static final BackpropKernel backpropTask = new BackpropKernel();
   private static final ConvolveKernel convolveTask = new ConvolveKernel();
   private static final GradientKernel kernelTask = new GradientKernel();
-  @SuppressWarnings("unused")
+  private static final HalfConvolveKernel halfConvolveTask = new HalfConvolveKernel();
+  private static final int[] NO_INDICES = new int[1];
+  private static final int[] WINDOW_TILES = {8, 16, 32, 64, 128};
+  @Nonnull
+  private static final BufferPool<double[]> sharedBuffers = BufferPool.heap(BufferPool.DEFAULT_CAPACITY);
+  @Nonnull
+  private static final BufferPool<DoubleBuffer> sharedDirectBuffers = BufferPool.direct(BufferPool.DEFAULT_CAPACITY);
+  @Nonnull
+  private static final BufferPool<short[]> sharedHalfBuffers = BufferPool.halves(BufferPool.DEFAULT_CAPACITY);
+  @Nonnull
+  private static final BufferPool<int[]> indexBuffers = BufferPool.ints(BufferPool.DEFAULT_CAPACITY);
   private static final Logger log = LoggerFactory.getLogger(ConvolutionController.class);
+  private static final AtomicBoolean stridedCpuWarned = new AtomicBoolean();
+  @Nonnull
+  private static volatile Backend defaultBackend = Backend.valueOf(System.getProperty(
+      "mindseye.aparapi.backend", Backend.APARAPI.name()));
+  @Nonnull
+  private static volatile Staging defaultStaging = Staging.valueOf(System.getProperty(
+      "mindseye.aparapi.staging", Staging.HEAP.name()));
+  @Nonnull
+  private static volatile Storage defaultStorage = Storage.valueOf(System.getProperty(
+      "mindseye.aparapi.storage", Storage.DOUBLE.name()));
   private final int[] inputSize;
   @Nonnull
   private final int[] kernelSize;
   private final int[] outputSize;
+  private final int groups;
+  private final int strideX;
+  private final int strideY;
   @Nullable
   private Integer paddingX = null;
   @Nullable
   private Integer paddingY = null;
+  private int maxBufferSize = MAX_BUFFER_SIZE;
+  @Nonnull
+  private Backend backend = defaultBackend;
+  @Nonnull
+  private Storage storage = defaultStorage;
+  @Nonnull
+  private Staging staging = defaultStaging;
+  @Nonnull
+  private BufferPool<double[]> buffers = sharedBuffers;
+  @Nonnull
+  private BufferPool<DoubleBuffer> directBuffers = sharedDirectBuffers;
+  @Nonnull
+  private BufferPool<short[]> halfBuffers = sharedHalfBuffers;
+  @Nonnull
+  private Layout layout = Layout.AUTO;
+  private boolean pointwise = true;
 
   public ConvolutionController(final int[] inputSize, @Nonnull final int[] kernelSize, final Integer paddingX,
                                Integer paddingY) {
+    this(inputSize, kernelSize, paddingX, paddingY, 1);
+  }
+
+  public ConvolutionController(final int[] inputSize, @Nonnull final int[] kernelSize, final Integer paddingX,
+                               Integer paddingY, final int groups) {
+    this(inputSize, kernelSize, paddingX, paddingY, groups, 1, 1);
+  }
+
+  public ConvolutionController(final int[] inputSize, @Nonnull final int[] kernelSize, final Integer paddingX,
+                               Integer paddingY, final int groups, final int strideX, final int strideY) {
+    assert 0 < groups;
+    assert 0 < strideX && 0 < strideY;
+    assert 0 == inputSize[2] % groups : "Input bands must be divisible by groups";
     this.inputSize = inputSize;
     this.kernelSize = kernelSize;
+    this.groups = groups;
+    this.strideX = strideX;
+    this.strideY = strideY;
+    if (Backend.CPU == backend && isStrided()) {
+      if (!stridedCpuWarned.getAndSet(true))
+        log.warn("The CPU backend does not support strides; strided convolutions run on Aparapi");
+      this.backend = Backend.APARAPI;
+    }
     this.setPaddingX(paddingX);
     this.setPaddingY(paddingY);
     outputSize = RefIntStream.range(0, kernelSize.length).map(i -> {
       int x;
       @Nullable
       Integer padding;
+      int stride;
       if (i == 0) {
         padding = paddingX;
+        stride = strideX;
       } else if (i == 1) {
         padding = paddingY;
+        stride = strideY;
       } else {
         padding = null;
+        stride = 1;
       }
       if (i == kernelSize.length - 1) {
-        x = kernelSize[i] / inputSize[i];
+        x = kernelSize[i] * groups / inputSize[i];
       } else if (null == padding) {
-        x = inputSize[i];
+        x = (inputSize[i] + stride - 1) / stride;
       } else {
-        x = 1 + inputSize[i] - kernelSize[i] + padding;
+        x = 1 + Math.floorDiv(inputSize[i] - kernelSize[i] + padding, stride);
       }
       assert 0 < x;
       return x;
     }).toArray();
+    assert 0 == outputSize[2] % groups : "Output bands must be divisible by groups";
     assert outputSize.length == 3;
     assert this.kernelSize.length == 3;
     assert this.inputSize.length == 3;
   }
 
+  @Nonnull
+  public static Backend getDefaultBackend() {
+    return defaultBackend;
+  }
+
+  public static void setDefaultBackend(@Nonnull Backend defaultBackend) {
+    ConvolutionController.defaultBackend = defaultBackend;
+  }
+
+  @Nonnull
+  public static Staging getDefaultStaging() {
+    return defaultStaging;
+  }
+
+  public static void setDefaultStaging(@Nonnull Staging defaultStaging) {
+    ConvolutionController.defaultStaging = defaultStaging;
+  }
+
+  @Nonnull
+  public static Storage getDefaultStorage() {
+    return defaultStorage;
+  }
+
+  /**
+   * The storage of controllers created afterwards, including those of layers that do not set their own with
+   * {@link ConvolutionLayer#setStorage(Storage)}.
+   */
+  public static void setDefaultStorage(@Nonnull Storage defaultStorage) {
+    ConvolutionController.defaultStorage = defaultStorage;
+  }
+
+  @Nonnull
+  public static BufferPool<double[]> getBuffers() {
+    return sharedBuffers;
+  }
+
+  @Nonnull
+  public static BufferPool<DoubleBuffer> getDirectBuffers() {
+    return sharedDirectBuffers;
+  }
+
+  @Nonnull
+  public static BufferPool<short[]> getHalfBuffers() {
+    return sharedHalfBuffers;
+  }
+
+  /**
+   * The staging buffers for the positions of the maxima found by {@link #convolvePool}.
+   */
+  @Nonnull
+  public static BufferPool<int[]> getIndexBuffers() {
+    return indexBuffers;
+  }
+
+  /**
+   * Releases the device resources held by the shared kernels and drops every pooled staging buffer. The kernels
+   * acquire new device resources on their next use.
+   */
+  public static void dispose() {
+    synchronized (ConvolutionController.backpropTask) {
+      ConvolutionController.backpropTask.dispose();
+    }
+    synchronized (ConvolutionController.convolveTask) {
+      ConvolutionController.convolveTask.dispose();
+    }
+    synchronized (ConvolutionController.halfConvolveTask) {
+      ConvolutionController.halfConvolveTask.dispose();
+      ConvolutionController.halfConvolveTask.halfTable = null;
+    }
+    synchronized (ConvolutionController.kernelTask) {
+      ConvolutionController.kernelTask.dispose();
+    }
+    log.debug("Disposed kernels; " + sharedBuffers);
+    sharedBuffers.clear();
+    sharedDirectBuffers.clear();
+    sharedHalfBuffers.clear();
+    indexBuffers.clear();
+  }
+
+  @Nonnull
+  public Backend getBackend() {
+    return backend;
+  }
+
+  public void setBackend(@Nonnull Backend backend) {
+    if (Backend.CPU == backend && isStrided())
+      throw new IllegalArgumentException("The CPU backend does not support strides: " + this);
+    this.backend = backend;
+  }
+
+  @Nonnull
+  public Storage getStorage() {
+    return storage;
+  }
+
+  public void setStorage(@Nonnull Storage storage) {
+    this.storage = storage;
+  }
+
+  @Nonnull
+  public Staging getStaging() {
+    return staging;
+  }
+
+  /**
+   * {@link Staging#DIRECT} packs batches into off-heap buffers that the CPU backend reads and writes in place. It has
+   * no effect on the Aparapi backend, which can only transfer heap arrays, or on tiled and half-precision passes.
+   */
+  public void setStaging(@Nonnull Staging staging) {
+    this.staging = staging;
+  }
+
+  /**
+   * Stages this controller's passes in the given pools instead of the shared ones from {@link #getBuffers()},
+   * {@link #getDirectBuffers()} and {@link #getHalfBuffers()}, so that the pool statistics only count its own passes.
+   */
+  public void setBufferPools(@Nonnull final BufferPool<double[]> buffers,
+                             @Nonnull final BufferPool<DoubleBuffer> directBuffers,
+                             @Nonnull final BufferPool<short[]> halfBuffers) {
+    this.buffers = buffers;
+    this.directBuffers = directBuffers;
+    this.halfBuffers = halfBuffers;
+  }
+
+  @Nonnull
+  public Layout getLayout() {
+    return layout;
+  }
+
+  /**
+   * Selects the band layout of the Aparapi staging buffers. {@link Layout#INTERLEAVED} stores the bands of each pixel
+   * together, so the band reductions of the kernels read contiguous memory; the conversion is done while packing.
+   * {@link Layout#AUTO} stays planar, as interleaving has not yet been measured to pay for its conversion.
+   * The CPU backend and tiled passes are always planar.
+   */
+  public void setLayout(@Nonnull Layout layout) {
+    this.layout = layout;
+  }
+
+  /**
+   * Whether the passes run as the blocked matrix products of {@link PointwiseConvolution}, which is the case for 1x1
+   * kernels without padding or stride unless turned off with {@link #setPointwise(boolean)}. This path runs on the
+   * CPU for every backend, since the generic kernels reread each input row once per output band;
+   * <code>PointwiseConvolutionTest.speed</code> measures the gain over the generic kernel body.
+   */
+  public boolean isPointwise() {
+    return isPointwise(inputSize, outputSize, getKernelOffset());
+  }
+
+  public void setPointwise(boolean pointwise) {
+    this.pointwise = pointwise;
+  }
+
   public int[] getOutputDims() {
     return outputSize;
   }
 
+  public int[] getInputDims() {
+    return inputSize;
+  }
+
+  @Nonnull
+  public int[] getKernelSize() {
+    return kernelSize;
+  }
+
+  public int getGroups() {
+    return groups;
+  }
+
+  public int getStrideX() {
+    return strideX;
+  }
+
+  public int getStrideY() {
+    return strideY;
+  }
+
+  public int getMaxBufferSize() {
+    return maxBufferSize;
+  }
+
+  public void setMaxBufferSize(int maxBufferSize) {
+    assert 0 < maxBufferSize;
+    this.maxBufferSize = maxBufferSize;
+  }
+
   @Nullable
   public Integer getPaddingX() {
     return paddingX;
@@ -108,73 +360,90 @@ public final class ConvolutionController {
     assert length == output.length;
     final int inLength = input[0].length;
     final int outLength = output[0].length;
-    final int inputsPerRun = Math.min(Math.floorDiv(ConvolutionController.MAX_BUFFER_SIZE, inLength), length);
-    final int runs = length / inputsPerRun;
-    final int leftover = length - runs * inputsPerRun;
-    try {
-      synchronized (ConvolutionController.backpropTask) {
-        assert 0 < weights.length;
-        assert kernelSize[0] * kernelSize[1] * kernelSize[2] == weights.length;
-        ConvolutionController.backpropTask.setExplicit(true);
-        ConvolutionController.backpropTask.weights = weights;
-        ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.weights);
-        ConvolutionController.backpropTask.kernelSize = kernelSize;
-        ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.kernelSize);
-        ConvolutionController.backpropTask.kernelOffset = new int[]{
-            null == paddingY ? (kernelSize[1] - 1) / 2 : paddingY,
-            null == paddingX ? (kernelSize[0] - 1) / 2 : paddingX};
-        ConvolutionController.backpropTask.put(ConvolutionController.convolveTask.kernelOffset);
-        @Nullable
-        double[] inputBuffer = null;
-        @Nullable
-        double[] outputBuffer = null;
-        for (int run = 0; run < runs; run++) {
-          final int currentIndexOffset = run * inputsPerRun;
-          final int currentNumItems = leftover == 0 ? inputsPerRun : leftover;
-          if (null == inputBuffer || inputBuffer.length != inLength * currentNumItems) {
-            if (null != inputBuffer)
-              RecycleBin.DOUBLES.recycle(inputBuffer, inputBuffer.length);
-            inputBuffer = RecycleBin.DOUBLES.obtain(inLength * currentNumItems);
-          }
-          if (null == outputBuffer || outputBuffer.length != outLength * currentNumItems) {
-            if (null != outputBuffer)
-              RecycleBin.DOUBLES.recycle(outputBuffer, outputBuffer.length);
-            outputBuffer = RecycleBin.DOUBLES.obtain(outLength * currentNumItems);
-          }
-          for (int i = 0; i < currentNumItems; i++) {
-            assert outLength == output[currentIndexOffset + i].length;
-            RefSystem.arraycopy(output[currentIndexOffset + i], 0, outputBuffer,
-                i * outLength, outLength);
-          }
-          assert 0 < inputBuffer.length;
-          assert 0 < outputBuffer.length;
-          ConvolutionController.backpropTask.input = inputBuffer;
-          ConvolutionController.backpropTask.output = outputBuffer;
-          ConvolutionController.backpropTask.outputSize = outputSize;
-          ConvolutionController.backpropTask.inputSize = inputSize;
-          ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.outputSize);
-          ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.inputSize);
-          ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.output);
-          ConvolutionController.backpropTask.exe();
-          ConvolutionController.backpropTask.get(ConvolutionController.backpropTask.input);
-          ConvolutionController.backpropTask.input = null;
-          ConvolutionController.backpropTask.output = null;
-          ConvolutionController.backpropTask.outputSize = null;
-          ConvolutionController.backpropTask.inputSize = null;
-          for (int i = 0; i < currentNumItems; i++) {
-            assert inLength == input[currentIndexOffset + i].length;
-            RefSystem.arraycopy(inputBuffer, i * inLength,
-                input[currentIndexOffset + i], 0, inLength);
-          }
-        }
-        assert inputBuffer != null;
-        RecycleBin.DOUBLES.recycle(inputBuffer, inputBuffer.length);
-        RecycleBin.DOUBLES.recycle(outputBuffer, outputBuffer.length);
-        ConvolutionController.backpropTask.kernelSize = null;
-        ConvolutionController.backpropTask.weights = null;
+    if (isTiled()) {
+      for (int i = 0; i < length; i++) {
+        backprop(input[i], weights, output[i]);
       }
-    } catch (@Nonnull final Throwable e) {
-      throw new ComponentException("Error apply " + this, e);
+      return;
+    }
+    if (isDirect()) {
+      backpropDirect(input, weights, output);
+      return;
+    }
+    final boolean interleaved = isInterleaved();
+    final int inputsPerRun = getInputsPerRun(length, Math.max(inLength, outLength));
+    @Nullable
+    double[] inputBuffer = null;
+    @Nullable
+    double[] outputBuffer = null;
+    for (int currentIndexOffset = 0; currentIndexOffset < length; currentIndexOffset += inputsPerRun) {
+      final int currentNumItems = Math.min(inputsPerRun, length - currentIndexOffset);
+      if (null == inputBuffer || inputBuffer.length != inLength * currentNumItems) {
+        if (null != inputBuffer)
+          buffers.recycle(inputBuffer);
+        inputBuffer = buffers.obtain(inLength * currentNumItems);
+      }
+      if (null == outputBuffer || outputBuffer.length != outLength * currentNumItems) {
+        if (null != outputBuffer)
+          buffers.recycle(outputBuffer);
+        outputBuffer = buffers.obtain(outLength * currentNumItems);
+      }
+      pack(output, currentIndexOffset, currentNumItems, outputBuffer, outputSize, interleaved);
+      backprop(inputSize, outputSize, getKernelOffset(), inputBuffer, weights, outputBuffer, interleaved);
+      unpack(inputBuffer, inputSize, input, currentIndexOffset, currentNumItems, interleaved);
+    }
+    assert inputBuffer != null;
+    buffers.recycle(inputBuffer);
+    buffers.recycle(outputBuffer);
+  }
+
+  public void backprop(@Nonnull final double[] input, @Nonnull final double[] weights,
+                       @Nonnull final double[] output) {
+    if (isTiled()) {
+      backpropTiles(input, weights, output);
+    } else {
+      backprop(inputSize, outputSize, getKernelOffset(), input, weights, output, false);
+    }
+  }
+
+  /**
+   * Recomputes a window of each item's input delta, given in input pixels as <code>{x0, y0, x1, y1}</code>, or null
+   * to leave the item untouched. The windows are tiled and batched as in
+   * {@link #convolve(double[][], double[], double[][], int[][])}.
+   */
+  public void backprop(@Nonnull final double[][] input, @Nonnull final double[] weights,
+                       @Nonnull final double[][] output, @Nonnull final int[][] windows) {
+    assert !isStrided();
+    assert input.length == windows.length;
+    final int[] kernelOffset = getKernelOffset();
+    final int edge = getWindowTile(windows);
+    final int[] tileInputSize = {edge, edge, inputSize[2]};
+    final int[] tileOutputSize = {edge + kernelSize[0] - 1, edge + kernelSize[1] - 1, outputSize[2]};
+    final int inLength = length(tileInputSize);
+    final int outLength = length(tileOutputSize);
+    final int[][] tiles = getWindowTiles(windows, edge);
+    if (0 == tiles.length)
+      return;
+    final int tilesPerRun = getInputsPerRun(tiles.length, Math.max(inLength, outLength));
+    for (int currentIndexOffset = 0; currentIndexOffset < tiles.length; currentIndexOffset += tilesPerRun) {
+      final int currentNumItems = Math.min(tilesPerRun, tiles.length - currentIndexOffset);
+      final int offset = currentIndexOffset;
+      final double[] inputBuffer = buffers.obtain(inLength * currentNumItems);
+      final double[] outputBuffer = buffers.obtain(outLength * currentNumItems);
+      RefIntStream.range(0, currentNumItems).parallel().forEach(i -> {
+        final int[] tile = tiles[offset + i];
+        extractTile(output[tile[0]], 0, outputSize, tile[1] - kernelOffset[0], tile[2] - kernelOffset[1],
+            outputBuffer, i * outLength, tileOutputSize);
+      });
+      backprop(tileInputSize, tileOutputSize, new int[]{0, 0}, inputBuffer, weights, outputBuffer, false);
+      RefIntStream.range(0, currentNumItems).parallel().forEach(i -> {
+        final int[] tile = tiles[offset + i];
+        final int[] window = windows[tile[0]];
+        insertTile(inputBuffer, i * inLength, tileInputSize, Math.min(edge, window[2] - tile[1]),
+            Math.min(edge, window[3] - tile[2]), input[tile[0]], 0, inputSize, tile[1], tile[2]);
+      });
+      buffers.recycle(inputBuffer);
+      buffers.recycle(outputBuffer);
     }
   }
 
@@ -184,76 +453,96 @@ public final class ConvolutionController {
     assert length == output.length;
     final int inLength = input[0].length;
     final int outLength = output[0].length;
-    final int inputsPerRun = Math.min(Math.floorDiv(ConvolutionController.MAX_BUFFER_SIZE, inLength), length);
-    assert 0 < inputsPerRun : "Requested buffer is over max of " + ConvolutionController.MAX_BUFFER_SIZE;
-    final int runs = length / inputsPerRun;
-    final int leftover = length - runs * inputsPerRun;
-    try {
-      synchronized (ConvolutionController.convolveTask) {
-        assert 0 < weights.length;
-        ConvolutionController.convolveTask.setExplicit(true);
-        ConvolutionController.convolveTask.weights = weights;
-        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.weights);
-        ConvolutionController.convolveTask.kernelSize = kernelSize;
-        ConvolutionController.convolveTask.kernelOffset = new int[]{
-            null == paddingY ? (kernelSize[1] - 1) / 2 : paddingY,
-            null == paddingX ? (kernelSize[0] - 1) / 2 : paddingX};
-        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.kernelOffset);
-        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.kernelSize);
-        @Nullable
-        double[] inputBuffer = null;
-        @Nullable
-        double[] outputBuffer = null;
-        for (int run = 0; run <= runs; run++) {
-          final int currentIndexOffset = run * inputsPerRun;
-          final int currentNumItems = run < runs ? inputsPerRun : leftover;
-          if (0 == currentNumItems) {
-            continue;
-          }
-          if (null == inputBuffer || inputBuffer.length != inLength * currentNumItems) {
-            if (null != inputBuffer)
-              RecycleBin.DOUBLES.recycle(inputBuffer, inputBuffer.length);
-            inputBuffer = RecycleBin.DOUBLES.obtain(inLength * currentNumItems);
-          }
-          if (null == outputBuffer || outputBuffer.length != outLength * currentNumItems) {
-            if (null != outputBuffer)
-              RecycleBin.DOUBLES.recycle(outputBuffer, outputBuffer.length);
-            outputBuffer = RecycleBin.DOUBLES.obtain(outLength * currentNumItems);
-          }
-          for (int i = 0; i < currentNumItems; i++) {
-            assert inLength == input[currentIndexOffset + i].length;
-            RefSystem.arraycopy(input[currentIndexOffset + i], 0, inputBuffer,
-                i * inLength, inLength);
-          }
-          assert 0 < inputBuffer.length;
-          assert 0 < outputBuffer.length;
-          ConvolutionController.convolveTask.input = inputBuffer;
-          ConvolutionController.convolveTask.output = outputBuffer;
-          ConvolutionController.convolveTask.outputSize = outputSize;
-          ConvolutionController.convolveTask.inputSize = inputSize;
-          ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.outputSize);
-          ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.inputSize);
-          ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.input);
-          ConvolutionController.convolveTask.exe();
-          ConvolutionController.convolveTask.get(ConvolutionController.convolveTask.output);
-          ConvolutionController.convolveTask.input = null;
-          ConvolutionController.convolveTask.output = null;
-          ConvolutionController.convolveTask.outputSize = null;
-          ConvolutionController.convolveTask.inputSize = null;
-          for (int i = 0; i < currentNumItems; i++) {
-            assert outLength == output[currentIndexOffset + i].length;
-            RefSystem.arraycopy(outputBuffer, i * outLength,
-                output[currentIndexOffset + i], 0, outLength);
-          }
-        }
-        assert inputBuffer != null;
-        RecycleBin.DOUBLES.recycle(inputBuffer, inputBuffer.length);
-        RecycleBin.DOUBLES.recycle(outputBuffer, outputBuffer.length);
-        ConvolutionController.convolveTask.kernelSize = null;
-        ConvolutionController.convolveTask.weights = null;
+    if (isTiled()) {
+      for (int i = 0; i < length; i++) {
+        convolve(input[i], weights, output[i]);
       }
-    } catch (@Nonnull final Throwable e) {
-      throw new ComponentException("Error apply " + this, e);
+      return;
+    }
+    if (Storage.HALF == storage && !isCpu()) {
+      convolveHalf(input, weights, output);
+      return;
+    }
+    if (isDirect()) {
+      convolveDirect(input, weights, output);
+      return;
+    }
+    final boolean interleaved = isInterleaved();
+    final int inputsPerRun = getInputsPerRun(length, Math.max(inLength, outLength));
+    @Nullable
+    double[] inputBuffer = null;
+    @Nullable
+    double[] outputBuffer = null;
+    for (int currentIndexOffset = 0; currentIndexOffset < length; currentIndexOffset += inputsPerRun) {
+      final int currentNumItems = Math.min(inputsPerRun, length - currentIndexOffset);
+      if (null == inputBuffer || inputBuffer.length != inLength * currentNumItems) {
+        if (null != inputBuffer)
+          buffers.recycle(inputBuffer);
+        inputBuffer = buffers.obtain(inLength * currentNumItems);
+      }
+      if (null == outputBuffer || outputBuffer.length != outLength * currentNumItems) {
+        if (null != outputBuffer)
+          buffers.recycle(outputBuffer);
+        outputBuffer = buffers.obtain(outLength * currentNumItems);
+      }
+      pack(input, currentIndexOffset, currentNumItems, inputBuffer, inputSize, interleaved);
+      convolve(inputSize, outputSize, getKernelOffset(), inputBuffer, weights, outputBuffer, interleaved);
+      unpack(outputBuffer, outputSize, output, currentIndexOffset, currentNumItems, interleaved);
+    }
+    assert inputBuffer != null;
+    buffers.recycle(inputBuffer);
+    buffers.recycle(outputBuffer);
+  }
+
+  public void convolve(@Nonnull final double[] input, @Nonnull final double[] weights,
+                       @Nonnull final double[] output) {
+    if (isTiled()) {
+      convolveTiles(input, weights, output);
+    } else {
+      convolve(inputSize, outputSize, getKernelOffset(), input, weights, output, false);
+    }
+  }
+
+  /**
+   * Recomputes a window of each item's output, given in output pixels as <code>{x0, y0, x1, y1}</code>, or null to
+   * leave the item untouched. The windows are covered with square tiles whose edge is one of a few fixed sizes, from
+   * 8 to 128 pixels, so the kernels only ever see a handful of tile shapes. Tiles may reach past their window. All
+   * tiles of the batch run as one pass per buffer budget.
+   */
+  public void convolve(@Nonnull final double[][] input, @Nonnull final double[] weights,
+                       @Nonnull final double[][] output, @Nonnull final int[][] windows) {
+    assert !isStrided();
+    assert input.length == windows.length;
+    final int[] kernelOffset = getKernelOffset();
+    final int[] tileOffset = {kernelSize[0] - 1, kernelSize[1] - 1};
+    final int edge = getWindowTile(windows);
+    final int[] tileOutputSize = {edge, edge, outputSize[2]};
+    final int[] tileInputSize = {edge + tileOffset[0], edge + tileOffset[1], inputSize[2]};
+    final int inLength = length(tileInputSize);
+    final int outLength = length(tileOutputSize);
+    final int[][] tiles = getWindowTiles(windows, edge);
+    if (0 == tiles.length)
+      return;
+    final int tilesPerRun = getInputsPerRun(tiles.length, Math.max(inLength, outLength));
+    for (int currentIndexOffset = 0; currentIndexOffset < tiles.length; currentIndexOffset += tilesPerRun) {
+      final int currentNumItems = Math.min(tilesPerRun, tiles.length - currentIndexOffset);
+      final int offset = currentIndexOffset;
+      final double[] inputBuffer = buffers.obtain(inLength * currentNumItems);
+      final double[] outputBuffer = buffers.obtain(outLength * currentNumItems);
+      RefIntStream.range(0, currentNumItems).parallel().forEach(i -> {
+        final int[] tile = tiles[offset + i];
+        extractTile(input[tile[0]], 0, inputSize, tile[1] - tileOffset[0] + kernelOffset[0],
+            tile[2] - tileOffset[1] + kernelOffset[1], inputBuffer, i * inLength, tileInputSize);
+      });
+      convolve(tileInputSize, tileOutputSize, tileOffset, inputBuffer, weights, outputBuffer, false);
+      RefIntStream.range(0, currentNumItems).parallel().forEach(i -> {
+        final int[] tile = tiles[offset + i];
+        final int[] window = windows[tile[0]];
+        insertTile(outputBuffer, i * outLength, tileOutputSize, Math.min(edge, window[2] - tile[1]),
+            Math.min(edge, window[3] - tile[2]), output[tile[0]], 0, outputSize, tile[1], tile[2]);
+      });
+      buffers.recycle(inputBuffer);
+      buffers.recycle(outputBuffer);
     }
   }
 
@@ -263,48 +552,228 @@ public final class ConvolutionController {
     assert length == output.length;
     final int inLength = input[0].length;
     final int outLength = output[0].length;
-    final int inputsPerRun = Math
-        .min(Math.floorDiv(ConvolutionController.MAX_BUFFER_SIZE, Math.max(inLength, outLength)), length);
-    final int runs = length / inputsPerRun;
-    final int leftover = length - runs * inputsPerRun;
+    if (isTiled()) {
+      for (int i = 0; i < length; i++) {
+        gradient(input[i], weights, output[i]);
+      }
+      return;
+    }
+    if (isDirect()) {
+      gradientDirect(input, weights, output);
+      return;
+    }
+    final boolean interleaved = isInterleaved();
+    final int inputsPerRun = getInputsPerRun(length, Math.max(inLength, outLength));
     @Nullable
     double[] inputBuffer = null;
     @Nullable
     double[] outputBuffer = null;
-    for (int run = 0; run < runs; run++) {
-      final int currentIndexOffset = run * inputsPerRun;
-      final int currentNumItems = leftover == 0 ? inputsPerRun : leftover;
+    for (int currentIndexOffset = 0; currentIndexOffset < length; currentIndexOffset += inputsPerRun) {
+      final int currentNumItems = Math.min(inputsPerRun, length - currentIndexOffset);
       if (null == inputBuffer || inputBuffer.length != inLength * currentNumItems) {
         if (null != inputBuffer)
-          RecycleBin.DOUBLES.recycle(inputBuffer, inputBuffer.length);
-        inputBuffer = RecycleBin.DOUBLES.obtain(inLength * currentNumItems);
+          buffers.recycle(inputBuffer);
+        inputBuffer = buffers.obtain(inLength * currentNumItems);
       }
       if (null == outputBuffer || outputBuffer.length != outLength * currentNumItems) {
         if (null != outputBuffer)
-          RecycleBin.DOUBLES.recycle(outputBuffer, outputBuffer.length);
-        outputBuffer = RecycleBin.DOUBLES.obtain(outLength * currentNumItems);
-      }
-      for (int i = 0; i < currentNumItems; i++) {
-        assert inLength == input[currentIndexOffset + i].length;
-        assert outLength == output[currentIndexOffset + i].length;
-        RefSystem.arraycopy(input[currentIndexOffset + i], 0, inputBuffer, i * inLength,
-            inLength);
-        RefSystem.arraycopy(output[currentIndexOffset + i], 0, outputBuffer,
-            i * outLength, outLength);
-      }
-      final int parallelism = Math.min(16, inLength);
-      final double[] buffer = RecycleBin.DOUBLES.obtain(weights.length * parallelism);
-      gradient(inputBuffer, buffer, weights.length, outputBuffer);
-      RefIntStream.range(0, weights.length).forEach(weightIndex -> {
-        for (int i = weightIndex; i < buffer.length; i += weights.length) {
-          weights[weightIndex] += buffer[i];
+          buffers.recycle(outputBuffer);
+        outputBuffer = buffers.obtain(outLength * currentNumItems);
+      }
+      pack(input, currentIndexOffset, currentNumItems, inputBuffer, inputSize, interleaved);
+      pack(output, currentIndexOffset, currentNumItems, outputBuffer, outputSize, interleaved);
+      gradient(inputSize, outputSize, getKernelOffset(), inputBuffer, weights, outputBuffer, interleaved);
+    }
+    assert inputBuffer != null;
+    buffers.recycle(inputBuffer);
+    buffers.recycle(outputBuffer);
+  }
+
+  public void gradient(@Nonnull final RetainedInput input, @Nonnull final double[] weights,
+                       @Nonnull final double[][] output) {
+    if (isDirect()) {
+      gradientDirect(input, weights, output);
+      return;
+    }
+    final int length = input.length();
+    assert length == output.length;
+    final int inLength = input.getItemLength();
+    final int outLength = output[0].length;
+    final int inputsPerRun = isTiled() ? 1 : getInputsPerRun(length, Math.max(inLength, outLength));
+    final boolean interleaved = isInterleaved();
+    @Nullable
+    double[] inputBuffer = null;
+    @Nullable
+    double[] outputBuffer = null;
+    for (int currentIndexOffset = 0; currentIndexOffset < length; currentIndexOffset += inputsPerRun) {
+      final int currentNumItems = Math.min(inputsPerRun, length - currentIndexOffset);
+      if (null == inputBuffer || inputBuffer.length != inLength * currentNumItems) {
+        if (null != inputBuffer)
+          buffers.recycle(inputBuffer);
+        inputBuffer = buffers.obtain(inLength * currentNumItems);
+      }
+      if (null == outputBuffer || outputBuffer.length != outLength * currentNumItems) {
+        if (null != outputBuffer)
+          buffers.recycle(outputBuffer);
+        outputBuffer = buffers.obtain(outLength * currentNumItems);
+      }
+      final double[] buffer = inputBuffer;
+      final int offset = currentIndexOffset;
+      if (interleaved) {
+        RefIntStream.range(0, currentNumItems).parallel().forEach(i -> {
+          final double[] item = buffers.obtain(inLength);
+          input.read(offset + i, item, 0);
+          interleave(item, buffer, i * inLength, inputSize);
+          buffers.recycle(item);
+        });
+      } else {
+        RefIntStream.range(0, currentNumItems).parallel().forEach(i -> input.read(offset + i, buffer, i * inLength));
+      }
+      pack(output, currentIndexOffset, currentNumItems, outputBuffer, outputSize, interleaved);
+      if (isTiled()) {
+        gradient(inputBuffer, weights, outputBuffer);
+      } else {
+        gradient(inputSize, outputSize, getKernelOffset(), inputBuffer, weights, outputBuffer, interleaved);
+      }
+    }
+    input.freeRef();
+    assert inputBuffer != null;
+    buffers.recycle(inputBuffer);
+    buffers.recycle(outputBuffer);
+  }
+
+  public void gradient(@Nonnull final double[] input, @Nonnull final double[] weights,
+                       @Nonnull final double[] output) {
+    if (isTiled()) {
+      gradientTiles(input, weights, output);
+    } else {
+      gradient(inputSize, outputSize, getKernelOffset(), input, weights, output, false);
+    }
+  }
+
+  /**
+   * Convolves each item and reduces every <code>poolX</code> by <code>poolY</code> window of the result to one output
+   * pixel, so the full resolution output only exists in staging buffers. For {@link Pooling#MAX}, the offset
+   * <code>dx + poolX * dy</code> of each maximum within its window is written to <code>indices</code>.
+   */
+  public void convolvePool(@Nonnull final double[][] input, @Nonnull final double[] weights,
+                           @Nonnull final double[][] output, @Nullable final int[][] indices,
+                           @Nonnull final Pooling pooling, final int poolX, final int poolY) {
+    final int length = input.length;
+    assert length == output.length;
+    assert Pooling.AVG == pooling || null != indices && length == indices.length;
+    final int[] pooledSize = getPooledDims(poolX, poolY);
+    if (isCpu() || isTiled() || Storage.HALF == storage) {
+      final double[] buffer = buffers.obtain(getOutputLength());
+      for (int i = 0; i < length; i++) {
+        convolve(input[i], weights, buffer);
+        pool(buffer, output[i], null == indices ? null : indices[i], pooling, poolX, poolY);
+      }
+      buffers.recycle(buffer);
+      return;
+    }
+    final int inLength = input[0].length;
+    final int outLength = length(pooledSize);
+    final int inputsPerRun = getInputsPerRun(length, Math.max(inLength, outLength));
+    final int[] indexBuffer = Pooling.MAX == pooling ? indexBuffers.obtain(outLength * inputsPerRun) : NO_INDICES;
+    @Nullable
+    double[] inputBuffer = null;
+    @Nullable
+    double[] outputBuffer = null;
+    for (int currentIndexOffset = 0; currentIndexOffset < length; currentIndexOffset += inputsPerRun) {
+      final int currentNumItems = Math.min(inputsPerRun, length - currentIndexOffset);
+      if (null == inputBuffer || inputBuffer.length != inLength * currentNumItems) {
+        if (null != inputBuffer)
+          buffers.recycle(inputBuffer);
+        inputBuffer = buffers.obtain(inLength * currentNumItems);
+      }
+      if (null == outputBuffer || outputBuffer.length != outLength * currentNumItems) {
+        if (null != outputBuffer)
+          buffers.recycle(outputBuffer);
+        outputBuffer = buffers.obtain(outLength * currentNumItems);
+      }
+      pack(input, currentIndexOffset, currentNumItems, inputBuffer, inputSize, false);
+      convolvePool(inputBuffer, weights, outputBuffer, indexBuffer, pooling, poolX, poolY);
+      unpack(outputBuffer, pooledSize, output, currentIndexOffset, currentNumItems, false);
+      if (null != indices) {
+        for (int i = 0; i < currentNumItems; i++) {
+          RefSystem.arraycopy(indexBuffer, i * outLength, indices[currentIndexOffset + i], 0, outLength);
         }
-      });
-      RecycleBin.DOUBLES.recycle(buffer, buffer.length);
+      }
     }
     assert inputBuffer != null;
-    RecycleBin.DOUBLES.recycle(inputBuffer, inputBuffer.length);
-    RecycleBin.DOUBLES.recycle(outputBuffer, outputBuffer.length);
+    buffers.recycle(inputBuffer);
+    buffers.recycle(outputBuffer);
+    if (NO_INDICES != indexBuffer)
+      indexBuffers.recycle(indexBuffer);
+  }
+
+  /**
+   * Expands the delta of one pooled item to the full resolution output, routing each value to the maximum of its
+   * window or spreading it evenly over the window. Pixels outside every window get zero.
+   */
+  public void unpool(@Nonnull final double[] pooled, @Nullable final int[] indices, @Nonnull final double[] output,
+                     @Nonnull final Pooling pooling, final int poolX, final int poolY) {
+    assert Pooling.AVG == pooling || null != indices;
+    final int[] pooledSize = getPooledDims(poolX, poolY);
+    final int width = pooledSize[0];
+    final int height = pooledSize[1];
+    final double scale = 1.0 / (poolX * poolY);
+    RefArrays.fill(output, 0.0);
+    for (int band = 0; band < outputSize[2]; band++) {
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          final int i = x + width * (y + height * band);
+          if (Pooling.MAX == pooling) {
+            final int dx = indices[i] % poolX;
+            final int dy = indices[i] / poolX;
+            output[x * poolX + dx + outputSize[0] * (y * poolY + dy + outputSize[1] * band)] = pooled[i];
+          } else {
+            for (int dy = 0; dy < poolY; dy++) {
+              for (int dx = 0; dx < poolX; dx++) {
+                output[x * poolX + dx + outputSize[0] * (y * poolY + dy + outputSize[1] * band)] = pooled[i] * scale;
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The output dimensions after pooling, rejecting windows larger than the convolution output.
+   */
+  @Nonnull
+  public int[] getPooledDims(final int poolX, final int poolY) {
+    if (poolX <= 0 || poolY <= 0 || outputSize[0] < poolX || outputSize[1] < poolY)
+      throw new IllegalArgumentException("Pool " + poolX + "," + poolY + " does not fit the output of " + this);
+    return new int[]{outputSize[0] / poolX, outputSize[1] / poolY, outputSize[2]};
+  }
+
+  public int getInputLength() {
+    return inputSize[0] * inputSize[1] * inputSize[2];
+  }
+
+  public int getOutputLength() {
+    return outputSize[0] * outputSize[1] * outputSize[2];
+  }
+
+  /**
+   * The number of items staged per launch. Strided controllers are never tiled, so one of their items can exceed the
+   * buffer budget; it then runs on its own, over budget.
+   */
+  public int getInputsPerRun(final int length, final int itemLength) {
+    final int inputsPerRun = Math.min(Math.floorDiv(maxBufferSize, itemLength), length);
+    if (0 < inputsPerRun) {
+      return inputsPerRun;
+    } else {
+      log.warn("Item of " + itemLength + " exceeds the buffer budget of " + maxBufferSize + " for " + this);
+      return 1;
+    }
+  }
+
+  public boolean isTiled() {
+    return !isStrided() && Math.max(getInputLength(), getOutputLength()) > maxBufferSize;
   }
 
   @Override
@@ -316,12 +785,644 @@ public final class ConvolutionController {
     builder.append(RefArrays.toString(kernelSize));
     builder.append(" => ");
     builder.append(RefArrays.toString(outputSize));
+    if (1 != groups) {
+      builder.append(" / ");
+      builder.append(groups);
+    }
+    if (isStrided()) {
+      builder.append(" @ ");
+      builder.append(strideX);
+      builder.append(",");
+      builder.append(strideY);
+    }
     builder.append("]");
     return builder.toString();
   }
 
-  private void gradient(@Nonnull final double[] input, @Nonnull final double[] weights, final int weightSize,
-                        @Nonnull final double[] output) {
+  private void convolveHalf(@Nonnull final double[][] input, @Nonnull final double[] weights,
+                            @Nonnull final double[][] output) {
+    final int length = input.length;
+    final int inLength = input[0].length;
+    final int outLength = output[0].length;
+    final int inputsPerRun = getInputsPerRun(length, Math.max(inLength, outLength));
+    final short[] halfWeights = halfBuffers.obtain(weights.length);
+    HalfPrecision.encode(weights, 0, halfWeights, 0, weights.length);
+    final int[] kernelOffset = getKernelOffset();
+    for (int currentIndexOffset = 0; currentIndexOffset < length; currentIndexOffset += inputsPerRun) {
+      final int currentNumItems = Math.min(inputsPerRun, length - currentIndexOffset);
+      final short[] inputBuffer = halfBuffers.obtain(inLength * currentNumItems);
+      HalfPrecision.encode(input, currentIndexOffset, currentNumItems, inLength, inputBuffer);
+      final double[] outputBuffer = buffers.obtain(outLength * currentNumItems);
+      convolve(inputSize, outputSize, kernelOffset, inputBuffer, halfWeights, outputBuffer);
+      unpack(outputBuffer, outLength, output, currentIndexOffset, currentNumItems);
+      buffers.recycle(outputBuffer);
+      halfBuffers.recycle(inputBuffer);
+    }
+    halfBuffers.recycle(halfWeights);
+  }
+
+  private void convolveDirect(@Nonnull final double[][] input, @Nonnull final double[] weights,
+                              @Nonnull final double[][] output) {
+    final int length = input.length;
+    final int inLength = input[0].length;
+    final int outLength = output[0].length;
+    final int inputsPerRun = getDirectInputsPerRun(length, Math.max(inLength, outLength));
+    final CpuConvolution convolution = cpu(inputSize, outputSize, getKernelOffset());
+    for (int currentIndexOffset = 0; currentIndexOffset < length; currentIndexOffset += inputsPerRun) {
+      final int currentNumItems = Math.min(inputsPerRun, length - currentIndexOffset);
+      final DoubleBuffer inputBuffer = directBuffers.obtain(inLength * currentNumItems);
+      final DoubleBuffer outputBuffer = directBuffers.obtain(outLength * currentNumItems);
+      pack(input, currentIndexOffset, currentNumItems, inputBuffer, inLength);
+      convolution.convolve(inputBuffer, weights, outputBuffer);
+      unpack(outputBuffer, outLength, output, currentIndexOffset, currentNumItems);
+      directBuffers.recycle(inputBuffer);
+      directBuffers.recycle(outputBuffer);
+    }
+  }
+
+  private void backpropDirect(@Nonnull final double[][] input, @Nonnull final double[] weights,
+                              @Nonnull final double[][] output) {
+    final int length = input.length;
+    final int inLength = input[0].length;
+    final int outLength = output[0].length;
+    final int inputsPerRun = getDirectInputsPerRun(length, Math.max(inLength, outLength));
+    final CpuConvolution convolution = cpu(inputSize, outputSize, getKernelOffset());
+    for (int currentIndexOffset = 0; currentIndexOffset < length; currentIndexOffset += inputsPerRun) {
+      final int currentNumItems = Math.min(inputsPerRun, length - currentIndexOffset);
+      final DoubleBuffer inputBuffer = directBuffers.obtain(inLength * currentNumItems);
+      final DoubleBuffer outputBuffer = directBuffers.obtain(outLength * currentNumItems);
+      pack(output, currentIndexOffset, currentNumItems, outputBuffer, outLength);
+      convolution.backprop(inputBuffer, weights, outputBuffer);
+      unpack(inputBuffer, inLength, input, currentIndexOffset, currentNumItems);
+      directBuffers.recycle(inputBuffer);
+      directBuffers.recycle(outputBuffer);
+    }
+  }
+
+  private void gradientDirect(@Nonnull final double[][] input, @Nonnull final double[] weights,
+                              @Nonnull final double[][] output) {
+    final int length = input.length;
+    final int inLength = input[0].length;
+    final int outLength = output[0].length;
+    final int inputsPerRun = getDirectInputsPerRun(length, Math.max(inLength, outLength));
+    final CpuConvolution convolution = cpu(inputSize, outputSize, getKernelOffset());
+    final double[] gradient = buffers.obtain(weights.length);
+    for (int currentIndexOffset = 0; currentIndexOffset < length; currentIndexOffset += inputsPerRun) {
+      final int currentNumItems = Math.min(inputsPerRun, length - currentIndexOffset);
+      final DoubleBuffer inputBuffer = directBuffers.obtain(inLength * currentNumItems);
+      final DoubleBuffer outputBuffer = directBuffers.obtain(outLength * currentNumItems);
+      pack(input, currentIndexOffset, currentNumItems, inputBuffer, inLength);
+      pack(output, currentIndexOffset, currentNumItems, outputBuffer, outLength);
+      convolution.gradient(inputBuffer, gradient, outputBuffer);
+      accumulate(weights, gradient);
+      directBuffers.recycle(inputBuffer);
+      directBuffers.recycle(outputBuffer);
+    }
+    buffers.recycle(gradient);
+  }
+
+  private void gradientDirect(@Nonnull final RetainedInput input, @Nonnull final double[] weights,
+                              @Nonnull final double[][] output) {
+    final int length = input.length();
+    assert length == output.length;
+    final int inLength = input.getItemLength();
+    final int outLength = output[0].length;
+    final int inputsPerRun = getDirectInputsPerRun(length, Math.max(inLength, outLength));
+    final CpuConvolution convolution = cpu(inputSize, outputSize, getKernelOffset());
+    final double[] gradient = buffers.obtain(weights.length);
+    for (int currentIndexOffset = 0; currentIndexOffset < length; currentIndexOffset += inputsPerRun) {
+      final int currentNumItems = Math.min(inputsPerRun, length - currentIndexOffset);
+      final DoubleBuffer inputBuffer = directBuffers.obtain(inLength * currentNumItems);
+      final DoubleBuffer outputBuffer = directBuffers.obtain(outLength * currentNumItems);
+      final int offset = currentIndexOffset;
+      RefIntStream.range(0, currentNumItems).parallel().forEach(i -> {
+        final double[] item = buffers.obtain(inLength);
+        input.read(offset + i, item, 0);
+        final DoubleBuffer slice = inputBuffer.duplicate();
+        slice.position(i * inLength);
+        slice.put(item);
+        buffers.recycle(item);
+      });
+      pack(output, currentIndexOffset, currentNumItems, outputBuffer, outLength);
+      convolution.gradient(inputBuffer, gradient, outputBuffer);
+      accumulate(weights, gradient);
+      directBuffers.recycle(inputBuffer);
+      directBuffers.recycle(outputBuffer);
+    }
+    buffers.recycle(gradient);
+    input.freeRef();
+  }
+
+  private boolean isInterleaved() {
+    if (isCpu() || isTiled() || isPointwise())
+      return false;
+    switch (layout) {
+      case INTERLEAVED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private boolean isDirect() {
+    return Staging.DIRECT == staging && Storage.DOUBLE == storage && isCpu() && !isTiled() && !isPointwise()
+        && Math.max(getInputLength(), getOutputLength()) <= MAX_DIRECT_BUFFER_SIZE;
+  }
+
+  private int getDirectInputsPerRun(final int length, final int itemLength) {
+    return Math.max(1, Math.min(Math.floorDiv(Math.min(maxBufferSize, MAX_DIRECT_BUFFER_SIZE), itemLength), length));
+  }
+
+  private boolean isPointwise(@Nonnull final int[] inputSize, @Nonnull final int[] outputSize,
+                              @Nonnull final int[] kernelOffset) {
+    return pointwise && 1 == kernelSize[0] && 1 == kernelSize[1] && !isStrided() && 0 == kernelOffset[0]
+        && 0 == kernelOffset[1] && inputSize[0] == outputSize[0] && inputSize[1] == outputSize[1];
+  }
+
+  boolean isStrided() {
+    return 1 != strideX || 1 != strideY;
+  }
+
+  private boolean isCpu() {
+    return Backend.CPU == backend;
+  }
+
+  private static int length(@Nonnull final int[] size) {
+    return size[0] * size[1] * size[2];
+  }
+
+  private static void pack(@Nonnull final double[][] items, final int offset, final int count,
+                           @Nonnull final double[] buffer, final int itemLength) {
+    RefIntStream.range(0, count).parallel().forEach(i -> {
+      assert itemLength == items[offset + i].length;
+      RefSystem.arraycopy(items[offset + i], 0, buffer, i * itemLength, itemLength);
+    });
+  }
+
+  private static void unpack(@Nonnull final double[] buffer, final int itemLength, @Nonnull final double[][] items,
+                             final int offset, final int count) {
+    RefIntStream.range(0, count).parallel().forEach(i -> {
+      assert itemLength == items[offset + i].length;
+      RefSystem.arraycopy(buffer, i * itemLength, items[offset + i], 0, itemLength);
+    });
+  }
+
+  private static void pack(@Nonnull final double[][] items, final int offset, final int count,
+                           @Nonnull final DoubleBuffer buffer, final int itemLength) {
+    RefIntStream.range(0, count).parallel().forEach(i -> {
+      assert itemLength == items[offset + i].length;
+      final DoubleBuffer slice = buffer.duplicate();
+      slice.position(i * itemLength);
+      slice.put(items[offset + i], 0, itemLength);
+    });
+  }
+
+  private static void unpack(@Nonnull final DoubleBuffer buffer, final int itemLength, @Nonnull final double[][] items,
+                             final int offset, final int count) {
+    RefIntStream.range(0, count).parallel().forEach(i -> {
+      assert itemLength == items[offset + i].length;
+      final DoubleBuffer slice = buffer.duplicate();
+      slice.position(i * itemLength);
+      slice.get(items[offset + i], 0, itemLength);
+    });
+  }
+
+  private static void pack(@Nonnull final double[][] items, final int offset, final int count,
+                           @Nonnull final double[] buffer, @Nonnull final int[] size, final boolean interleaved) {
+    final int itemLength = length(size);
+    if (!interleaved) {
+      pack(items, offset, count, buffer, itemLength);
+      return;
+    }
+    RefIntStream.range(0, count).parallel().forEach(i -> {
+      assert itemLength == items[offset + i].length;
+      interleave(items[offset + i], buffer, i * itemLength, size);
+    });
+  }
+
+  private static void unpack(@Nonnull final double[] buffer, @Nonnull final int[] size, @Nonnull final double[][] items,
+                             final int offset, final int count, final boolean interleaved) {
+    final int itemLength = length(size);
+    if (!interleaved) {
+      unpack(buffer, itemLength, items, offset, count);
+      return;
+    }
+    RefIntStream.range(0, count).parallel().forEach(i -> {
+      assert itemLength == items[offset + i].length;
+      final double[] item = items[offset + i];
+      final int plane = size[0] * size[1];
+      final int bands = size[2];
+      for (int pixel = 0; pixel < plane; pixel++) {
+        final int from = i * itemLength + pixel * bands;
+        for (int band = 0; band < bands; band++) {
+          item[pixel + plane * band] = buffer[from + band];
+        }
+      }
+    });
+  }
+
+  private static void interleave(@Nonnull final double[] item, @Nonnull final double[] buffer, final int offset,
+                                 @Nonnull final int[] size) {
+    final int plane = size[0] * size[1];
+    final int bands = size[2];
+    for (int pixel = 0; pixel < plane; pixel++) {
+      final int to = offset + pixel * bands;
+      for (int band = 0; band < bands; band++) {
+        buffer[to + band] = item[pixel + plane * band];
+      }
+    }
+  }
+
+  private static void accumulate(@Nonnull final double[] weights, @Nonnull final double[] buffer) {
+    synchronized (weights) {
+      RefIntStream.range(0, weights.length).parallel().forEach(weightIndex -> {
+        for (int i = weightIndex; i < buffer.length; i += weights.length) {
+          weights[weightIndex] += buffer[i];
+        }
+      });
+    }
+  }
+
+  private static void extractTile(@Nonnull final double[] image, final int imageOffset, @Nonnull final int[] imageSize,
+                                  final int x, final int y, @Nonnull final double[] tile, @Nonnull final int[] tileSize) {
+    extractTile(image, imageOffset, imageSize, x, y, tile, 0, tileSize);
+  }
+
+  private static void extractTile(@Nonnull final double[] image, final int imageOffset, @Nonnull final int[] imageSize,
+                                  final int x, final int y, @Nonnull final double[] tile, final int tileOffset,
+                                  @Nonnull final int[] tileSize) {
+    final int fromX = Math.max(0, -x);
+    final int toX = Math.min(tileSize[0], imageSize[0] - x);
+    for (int band = 0; band < tileSize[2]; band++) {
+      for (int row = 0; row < tileSize[1]; row++) {
+        final int tileRow = tileOffset + tileSize[0] * (row + tileSize[1] * band);
+        final int imageY = y + row;
+        if (imageY < 0 || imageY >= imageSize[1] || fromX >= toX) {
+          RefArrays.fill(tile, tileRow, tileRow + tileSize[0], 0.0);
+          continue;
+        }
+        RefArrays.fill(tile, tileRow, tileRow + fromX, 0.0);
+        RefSystem.arraycopy(image, imageOffset + x + fromX + imageSize[0] * (imageY + imageSize[1] * band), tile,
+            tileRow + fromX, toX - fromX);
+        RefArrays.fill(tile, tileRow + toX, tileRow + tileSize[0], 0.0);
+      }
+    }
+  }
+
+  private static void insertTile(@Nonnull final double[] tile, @Nonnull final int[] tileSize, @Nonnull final double[] image,
+                                 final int imageOffset, @Nonnull final int[] imageSize, final int x, final int y) {
+    insertTile(tile, 0, tileSize, tileSize[0], tileSize[1], image, imageOffset, imageSize, x, y);
+  }
+
+  /**
+   * Copies the top left <code>width</code> by <code>height</code> pixels of the tile into the image.
+   */
+  private static void insertTile(@Nonnull final double[] tile, final int tileOffset, @Nonnull final int[] tileSize,
+                                 final int width, final int height, @Nonnull final double[] image,
+                                 final int imageOffset, @Nonnull final int[] imageSize, final int x, final int y) {
+    for (int band = 0; band < tileSize[2]; band++) {
+      for (int row = 0; row < height; row++) {
+        RefSystem.arraycopy(tile, tileOffset + tileSize[0] * (row + tileSize[1] * band), image,
+            imageOffset + x + imageSize[0] * (y + row + imageSize[1] * band), width);
+      }
+    }
+  }
+
+  @Nonnull
+  int[] getKernelOffset() {
+    return new int[]{
+        null == paddingX ? (kernelSize[0] - 1) / 2 : paddingX,
+        null == paddingY ? (kernelSize[1] - 1) / 2 : paddingY};
+  }
+
+  @Nonnull
+  private int[] getTileSize() {
+    final int bands = Math.max(inputSize[2], outputSize[2]);
+    final int minimum = kernelSize[0] * kernelSize[1] * bands;
+    final int budget = Math.max(Math.min(minimum, maxBufferSize),
+        maxBufferSize / Math.max(1, ForkJoinPool.getCommonPoolParallelism()));
+    int width = Math.max(inputSize[0], outputSize[0]);
+    int height = Math.max(inputSize[1], outputSize[1]);
+    while ((width + kernelSize[0] - 1) * (height + kernelSize[1] - 1) * bands > budget) {
+      if (width >= height && width > 1) {
+        width = (width + 1) / 2;
+      } else if (height > 1) {
+        height = (height + 1) / 2;
+      } else {
+        throw new ComponentException("Single pixel tile is over max of " + budget + " for " + this);
+      }
+    }
+    return new int[]{width, height};
+  }
+
+  /**
+   * The edge of the tiles covering the given windows: the smallest of {@link #WINDOW_TILES} that holds the longest
+   * window edge, or the largest one whose padded tile fits the buffer budget.
+   */
+  private int getWindowTile(@Nonnull final int[][] windows) {
+    int longest = 1;
+    for (final int[] window : windows) {
+      if (null != window)
+        longest = Math.max(longest, Math.max(window[2] - window[0], window[3] - window[1]));
+    }
+    final int bands = Math.max(inputSize[2], outputSize[2]);
+    int edge = WINDOW_TILES[0];
+    for (final int candidate : WINDOW_TILES) {
+      if ((long) (candidate + kernelSize[0] - 1) * (candidate + kernelSize[1] - 1) * bands > maxBufferSize)
+        break;
+      edge = candidate;
+      if (candidate >= longest)
+        break;
+    }
+    return edge;
+  }
+
+  /**
+   * The tiles covering each non-null window, as <code>{item, x, y}</code>.
+   */
+  @Nonnull
+  private static int[][] getWindowTiles(@Nonnull final int[][] windows, final int edge) {
+    final ArrayList<int[]> tiles = new ArrayList<>();
+    for (int item = 0; item < windows.length; item++) {
+      final int[] window = windows[item];
+      if (null == window)
+        continue;
+      for (int y = window[1]; y < window[3]; y += edge) {
+        for (int x = window[0]; x < window[2]; x += edge) {
+          tiles.add(new int[]{item, x, y});
+        }
+      }
+    }
+    return tiles.toArray(new int[0][]);
+  }
+
+  private void convolveTiles(@Nonnull final double[] input, @Nonnull final double[] weights,
+                             @Nonnull final double[] output) {
+    final int[] tileSize = getTileSize();
+    final int[] kernelOffset = getKernelOffset();
+    final int[] tileOffset = {kernelSize[0] - 1, kernelSize[1] - 1};
+    final int tilesX = (outputSize[0] + tileSize[0] - 1) / tileSize[0];
+    final int tilesY = (outputSize[1] + tileSize[1] - 1) / tileSize[1];
+    final int items = input.length / getInputLength();
+    RefIntStream.range(0, items * tilesX * tilesY).parallel().forEach(tile -> {
+      final int item = tile / (tilesX * tilesY);
+      final int x = tile % tilesX * tileSize[0];
+      final int y = tile / tilesX % tilesY * tileSize[1];
+      final int[] tileOutputSize = {Math.min(tileSize[0], outputSize[0] - x),
+          Math.min(tileSize[1], outputSize[1] - y), outputSize[2]};
+      final int[] tileInputSize = {tileOutputSize[0] + tileOffset[0], tileOutputSize[1] + tileOffset[1], inputSize[2]};
+      final double[] inputTile = buffers.obtain(length(tileInputSize));
+      final double[] outputTile = buffers.obtain(length(tileOutputSize));
+      extractTile(input, item * getInputLength(), inputSize, x - tileOffset[0] + kernelOffset[0],
+          y - tileOffset[1] + kernelOffset[1], inputTile, tileInputSize);
+      convolve(tileInputSize, tileOutputSize, tileOffset, inputTile, weights, outputTile, false);
+      insertTile(outputTile, tileOutputSize, output, item * getOutputLength(), outputSize, x, y);
+      buffers.recycle(inputTile);
+      buffers.recycle(outputTile);
+    });
+  }
+
+  private void backpropTiles(@Nonnull final double[] input, @Nonnull final double[] weights,
+                             @Nonnull final double[] output) {
+    final int[] tileSize = getTileSize();
+    final int[] kernelOffset = getKernelOffset();
+    final int[] tileOffset = {0, 0};
+    final int tilesX = (inputSize[0] + tileSize[0] - 1) / tileSize[0];
+    final int tilesY = (inputSize[1] + tileSize[1] - 1) / tileSize[1];
+    final int items = input.length / getInputLength();
+    RefIntStream.range(0, items * tilesX * tilesY).parallel().forEach(tile -> {
+      final int item = tile / (tilesX * tilesY);
+      final int x = tile % tilesX * tileSize[0];
+      final int y = tile / tilesX % tilesY * tileSize[1];
+      final int[] tileInputSize = {Math.min(tileSize[0], inputSize[0] - x),
+          Math.min(tileSize[1], inputSize[1] - y), inputSize[2]};
+      final int[] tileOutputSize = {tileInputSize[0] + kernelSize[0] - 1, tileInputSize[1] + kernelSize[1] - 1,
+          outputSize[2]};
+      final double[] inputTile = buffers.obtain(length(tileInputSize));
+      final double[] outputTile = buffers.obtain(length(tileOutputSize));
+      extractTile(output, item * getOutputLength(), outputSize, x - kernelOffset[0], y - kernelOffset[1],
+          outputTile, tileOutputSize);
+      backprop(tileInputSize, tileOutputSize, tileOffset, inputTile, weights, outputTile, false);
+      insertTile(inputTile, tileInputSize, input, item * getInputLength(), inputSize, x, y);
+      buffers.recycle(inputTile);
+      buffers.recycle(outputTile);
+    });
+  }
+
+  private void gradientTiles(@Nonnull final double[] input, @Nonnull final double[] weights,
+                             @Nonnull final double[] output) {
+    final int[] tileSize = getTileSize();
+    final int[] kernelOffset = getKernelOffset();
+    final int[] tileOffset = {0, 0};
+    final int tilesX = (inputSize[0] + tileSize[0] - 1) / tileSize[0];
+    final int tilesY = (inputSize[1] + tileSize[1] - 1) / tileSize[1];
+    final int items = input.length / getInputLength();
+    RefIntStream.range(0, items * tilesX * tilesY).parallel().forEach(tile -> {
+      final int item = tile / (tilesX * tilesY);
+      final int x = tile % tilesX * tileSize[0];
+      final int y = tile / tilesX % tilesY * tileSize[1];
+      final int[] tileInputSize = {Math.min(tileSize[0], inputSize[0] - x),
+          Math.min(tileSize[1], inputSize[1] - y), inputSize[2]};
+      final int[] tileOutputSize = {tileInputSize[0] + kernelSize[0] - 1, tileInputSize[1] + kernelSize[1] - 1,
+          outputSize[2]};
+      final double[] inputTile = buffers.obtain(length(tileInputSize));
+      final double[] outputTile = buffers.obtain(length(tileOutputSize));
+      extractTile(input, item * getInputLength(), inputSize, x, y, inputTile, tileInputSize);
+      extractTile(output, item * getOutputLength(), outputSize, x - kernelOffset[0], y - kernelOffset[1],
+          outputTile, tileOutputSize);
+      gradient(tileInputSize, tileOutputSize, tileOffset, inputTile, weights, outputTile, false);
+      buffers.recycle(inputTile);
+      buffers.recycle(outputTile);
+    });
+  }
+
+  private void backprop(@Nonnull final int[] inputSize, @Nonnull final int[] outputSize, @Nonnull final int[] kernelOffset,
+                        @Nonnull final double[] input, @Nonnull final double[] weights, @Nonnull final double[] output,
+                        final boolean interleaved) {
+    assert 0 < input.length;
+    assert 0 < output.length;
+    if (isPointwise(inputSize, outputSize, kernelOffset)) {
+      assert !interleaved;
+      pointwise(inputSize, outputSize).backprop(input, weights, output);
+      return;
+    }
+    if (isCpu()) {
+      assert !interleaved;
+      cpu(inputSize, outputSize, kernelOffset).backprop(input, weights, output);
+      return;
+    }
+    try {
+      synchronized (ConvolutionController.backpropTask) {
+        assert 0 < weights.length;
+        assert kernelSize[0] * kernelSize[1] * kernelSize[2] == weights.length;
+        ConvolutionController.backpropTask.setExplicit(true);
+        ConvolutionController.backpropTask.weights = weights;
+        ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.weights);
+        ConvolutionController.backpropTask.kernelSize = kernelSize;
+        ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.kernelSize);
+        ConvolutionController.backpropTask.kernelOffset = kernelOffset;
+        ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.kernelOffset);
+        ConvolutionController.backpropTask.groups = groups;
+        ConvolutionController.backpropTask.strideX = strideX;
+        ConvolutionController.backpropTask.strideY = strideY;
+        ConvolutionController.backpropTask.interleaved = interleaved ? 1 : 0;
+        ConvolutionController.backpropTask.input = input;
+        ConvolutionController.backpropTask.output = output;
+        ConvolutionController.backpropTask.outputSize = outputSize;
+        ConvolutionController.backpropTask.inputSize = inputSize;
+        ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.outputSize);
+        ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.inputSize);
+        ConvolutionController.backpropTask.put(ConvolutionController.backpropTask.output);
+        ConvolutionController.backpropTask.exe();
+        ConvolutionController.backpropTask.get(ConvolutionController.backpropTask.input);
+        ConvolutionController.backpropTask.input = null;
+        ConvolutionController.backpropTask.output = null;
+        ConvolutionController.backpropTask.outputSize = null;
+        ConvolutionController.backpropTask.inputSize = null;
+        ConvolutionController.backpropTask.kernelSize = null;
+        ConvolutionController.backpropTask.weights = null;
+      }
+    } catch (@Nonnull final Throwable e) {
+      throw new ComponentException("Error apply " + this, e);
+    }
+  }
+
+  private void convolve(@Nonnull final int[] inputSize, @Nonnull final int[] outputSize, @Nonnull final int[] kernelOffset,
+                        @Nonnull final double[] input, @Nonnull final double[] weights, @Nonnull final double[] output,
+                        final boolean interleaved) {
+    assert 0 < input.length;
+    assert 0 < output.length;
+    assert !interleaved || !isCpu() && Storage.DOUBLE == storage;
+    if (Storage.HALF == storage) {
+      if (isCpu()) {
+        final double[] halfInput = buffers.obtain(input.length);
+        final double[] halfWeights = buffers.obtain(weights.length);
+        HalfPrecision.round(input, halfInput);
+        HalfPrecision.round(weights, halfWeights);
+        cpu(inputSize, outputSize, kernelOffset).convolve(halfInput, halfWeights, output);
+        buffers.recycle(halfInput);
+        buffers.recycle(halfWeights);
+      } else {
+        final short[] halfInput = halfBuffers.obtain(input.length);
+        final short[] halfWeights = halfBuffers.obtain(weights.length);
+        HalfPrecision.encode(input, 0, halfInput, 0, input.length);
+        HalfPrecision.encode(weights, 0, halfWeights, 0, weights.length);
+        convolve(inputSize, outputSize, kernelOffset, halfInput, halfWeights, output);
+        halfBuffers.recycle(halfInput);
+        halfBuffers.recycle(halfWeights);
+      }
+      return;
+    }
+    if (isPointwise(inputSize, outputSize, kernelOffset)) {
+      assert !interleaved;
+      pointwise(inputSize, outputSize).convolve(input, weights, output);
+      return;
+    }
+    if (isCpu()) {
+      cpu(inputSize, outputSize, kernelOffset).convolve(input, weights, output);
+      return;
+    }
+    try {
+      synchronized (ConvolutionController.convolveTask) {
+        assert 0 < weights.length;
+        ConvolutionController.convolveTask.setExplicit(true);
+        ConvolutionController.convolveTask.weights = weights;
+        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.weights);
+        ConvolutionController.convolveTask.kernelSize = kernelSize;
+        ConvolutionController.convolveTask.kernelOffset = kernelOffset;
+        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.kernelOffset);
+        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.kernelSize);
+        ConvolutionController.convolveTask.groups = groups;
+        ConvolutionController.convolveTask.strideX = strideX;
+        ConvolutionController.convolveTask.strideY = strideY;
+        ConvolutionController.convolveTask.interleaved = interleaved ? 1 : 0;
+        ConvolutionController.convolveTask.input = input;
+        ConvolutionController.convolveTask.output = output;
+        ConvolutionController.convolveTask.outputSize = outputSize;
+        ConvolutionController.convolveTask.inputSize = inputSize;
+        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.outputSize);
+        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.inputSize);
+        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.input);
+        ConvolutionController.convolveTask.exe();
+        ConvolutionController.convolveTask.get(ConvolutionController.convolveTask.output);
+        ConvolutionController.convolveTask.input = null;
+        ConvolutionController.convolveTask.output = null;
+        ConvolutionController.convolveTask.outputSize = null;
+        ConvolutionController.convolveTask.inputSize = null;
+        ConvolutionController.convolveTask.kernelSize = null;
+        ConvolutionController.convolveTask.weights = null;
+      }
+    } catch (@Nonnull final Throwable e) {
+      throw new ComponentException("Error apply " + this, e);
+    }
+  }
+
+  private void convolve(@Nonnull final int[] inputSize, @Nonnull final int[] outputSize, @Nonnull final int[] kernelOffset,
+                        @Nonnull final short[] input, @Nonnull final short[] weights, @Nonnull final double[] output) {
+    assert 0 < input.length;
+    assert 0 < output.length;
+    try {
+      synchronized (ConvolutionController.halfConvolveTask) {
+        assert 0 < weights.length;
+        ConvolutionController.halfConvolveTask.setExplicit(true);
+        if (null == ConvolutionController.halfConvolveTask.halfTable) {
+          ConvolutionController.halfConvolveTask.halfTable = HalfPrecision.getTable();
+          ConvolutionController.halfConvolveTask.put(ConvolutionController.halfConvolveTask.halfTable);
+        }
+        ConvolutionController.halfConvolveTask.weights = weights;
+        ConvolutionController.halfConvolveTask.put(ConvolutionController.halfConvolveTask.weights);
+        ConvolutionController.halfConvolveTask.kernelSize = kernelSize;
+        ConvolutionController.halfConvolveTask.kernelOffset = kernelOffset;
+        ConvolutionController.halfConvolveTask.put(ConvolutionController.halfConvolveTask.kernelOffset);
+        ConvolutionController.halfConvolveTask.put(ConvolutionController.halfConvolveTask.kernelSize);
+        ConvolutionController.halfConvolveTask.groups = groups;
+        ConvolutionController.halfConvolveTask.strideX = strideX;
+        ConvolutionController.halfConvolveTask.strideY = strideY;
+        ConvolutionController.halfConvolveTask.input = input;
+        ConvolutionController.halfConvolveTask.output = output;
+        ConvolutionController.halfConvolveTask.outputSize = outputSize;
+        ConvolutionController.halfConvolveTask.inputSize = inputSize;
+        ConvolutionController.halfConvolveTask.put(ConvolutionController.halfConvolveTask.outputSize);
+        ConvolutionController.halfConvolveTask.put(ConvolutionController.halfConvolveTask.inputSize);
+        ConvolutionController.halfConvolveTask.put(ConvolutionController.halfConvolveTask.input);
+        ConvolutionController.halfConvolveTask.exe();
+        ConvolutionController.halfConvolveTask.get(ConvolutionController.halfConvolveTask.output);
+        ConvolutionController.halfConvolveTask.input = null;
+        ConvolutionController.halfConvolveTask.output = null;
+        ConvolutionController.halfConvolveTask.outputSize = null;
+        ConvolutionController.halfConvolveTask.inputSize = null;
+        ConvolutionController.halfConvolveTask.kernelSize = null;
+        ConvolutionController.halfConvolveTask.weights = null;
+      }
+    } catch (@Nonnull final Throwable e) {
+      throw new ComponentException("Error apply " + this, e);
+    }
+  }
+
+  private void gradient(@Nonnull final int[] inputSize, @Nonnull final int[] outputSize, @Nonnull final int[] kernelOffset,
+                        @Nonnull final double[] input, @Nonnull final double[] weights, @Nonnull final double[] output,
+                        final boolean interleaved) {
+    final double[] buffer;
+    if (isPointwise(inputSize, outputSize, kernelOffset)) {
+      assert !interleaved;
+      buffer = buffers.obtain(weights.length);
+      pointwise(inputSize, outputSize).gradient(input, buffer, output);
+    } else if (isCpu()) {
+      assert !interleaved;
+      buffer = buffers.obtain(weights.length);
+      cpu(inputSize, outputSize, kernelOffset).gradient(input, buffer, output);
+    } else {
+      final int parallelism = Math.min(16, input.length);
+      buffer = buffers.obtain(weights.length * parallelism);
+      gradient(inputSize, outputSize, kernelOffset, input, buffer, weights.length, output, interleaved);
+    }
+    accumulate(weights, buffer);
+    buffers.recycle(buffer);
+  }
+
+  private void gradient(@Nonnull final int[] inputSize, @Nonnull final int[] outputSize, @Nonnull final int[] kernelOffset,
+                        @Nonnull final double[] input, @Nonnull final double[] weights, final int weightSize,
+                        @Nonnull final double[] output, final boolean interleaved) {
     assert 0 < input.length;
     assert 0 < weights.length;
     assert 0 < output.length;
@@ -335,11 +1436,13 @@ public final class ConvolutionController {
         ConvolutionController.kernelTask.kernelSize = kernelSize;
         ConvolutionController.kernelTask.weightSize = weightSize;
         ConvolutionController.kernelTask.paralellism = weights.length / weightSize;
-        ConvolutionController.kernelTask.kernelOffset = new int[]{
-            paddingY == null ? (kernelSize[1] - 1) / 2 : paddingY,
-            paddingX == null ? (kernelSize[0] - 1) / 2 : paddingX};
+        ConvolutionController.kernelTask.kernelOffset = kernelOffset;
+        ConvolutionController.kernelTask.groups = groups;
+        ConvolutionController.kernelTask.strideX = strideX;
+        ConvolutionController.kernelTask.strideY = strideY;
+        ConvolutionController.kernelTask.interleaved = interleaved ? 1 : 0;
         ConvolutionController.kernelTask.setExplicit(true);
-        ConvolutionController.kernelTask.put(ConvolutionController.convolveTask.kernelOffset);
+        ConvolutionController.kernelTask.put(ConvolutionController.kernelTask.kernelOffset);
         ConvolutionController.kernelTask.put(ConvolutionController.kernelTask.outputSize);
         ConvolutionController.kernelTask.put(ConvolutionController.kernelTask.inputSize);
         ConvolutionController.kernelTask.put(ConvolutionController.kernelTask.kernelSize);
@@ -358,4 +1461,130 @@ public final class ConvolutionController {
       throw new ComponentException("Error apply " + this, e);
     }
   }
+
+  /**
+   * Runs one pass of a 1x1 convolution as a matrix product. For the gradient, the weights are partial sums of
+   * <code>weightSize</code> values each, to be accumulated by the caller.
+   */
+  @Nonnull
+  private PointwiseConvolution pointwise(@Nonnull final int[] inputSize, @Nonnull final int[] outputSize) {
+    return new PointwiseConvolution(inputSize[2], outputSize[2], inputSize[0] * inputSize[1], groups,
+        VectorOps.INSTANCE, ForkJoinPool.commonPool(), buffers);
+  }
+
+  @Nonnull
+  private CpuConvolution cpu(@Nonnull final int[] inputSize, @Nonnull final int[] outputSize,
+                             @Nonnull final int[] kernelOffset) {
+    return new CpuConvolution(inputSize, kernelSize, outputSize, kernelOffset, groups, VectorOps.INSTANCE,
+        ForkJoinPool.commonPool(), buffers, directBuffers);
+  }
+
+  private void convolvePool(@Nonnull final double[] input, @Nonnull final double[] weights,
+                            @Nonnull final double[] output, @Nonnull final int[] indices,
+                            @Nonnull final Pooling pooling, final int poolX, final int poolY) {
+    try {
+      synchronized (ConvolutionController.convolveTask) {
+        ConvolutionController.convolveTask.setExplicit(true);
+        ConvolutionController.convolveTask.weights = weights;
+        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.weights);
+        ConvolutionController.convolveTask.kernelSize = kernelSize;
+        ConvolutionController.convolveTask.kernelOffset = getKernelOffset();
+        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.kernelOffset);
+        ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.kernelSize);
+        ConvolutionController.convolveTask.groups = groups;
+        ConvolutionController.convolveTask.strideX = strideX;
+        ConvolutionController.convolveTask.strideY = strideY;
+        ConvolutionController.convolveTask.interleaved = 0;
+        ConvolutionController.convolveTask.poolX = poolX;
+        ConvolutionController.convolveTask.poolY = poolY;
+        ConvolutionController.convolveTask.max = Pooling.MAX == pooling ? 1 : 0;
+        ConvolutionController.convolveTask.input = input;
+        ConvolutionController.convolveTask.output = output;
+        ConvolutionController.convolveTask.indices = indices;
+        ConvolutionController.convolveTask.outputSize = outputSize;
+        ConvolutionController.convolveTask.inputSize = inputSize;
+        try {
+          ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.outputSize);
+          ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.inputSize);
+          ConvolutionController.convolveTask.put(ConvolutionController.convolveTask.input);
+          ConvolutionController.convolveTask.exe();
+          ConvolutionController.convolveTask.get(ConvolutionController.convolveTask.output);
+          if (Pooling.MAX == pooling)
+            ConvolutionController.convolveTask.get(ConvolutionController.convolveTask.indices);
+        } finally {
+          ConvolutionController.convolveTask.poolX = 1;
+          ConvolutionController.convolveTask.poolY = 1;
+          ConvolutionController.convolveTask.max = 0;
+          ConvolutionController.convolveTask.indices = NO_INDICES;
+          ConvolutionController.convolveTask.input = null;
+          ConvolutionController.convolveTask.output = null;
+          ConvolutionController.convolveTask.outputSize = null;
+          ConvolutionController.convolveTask.inputSize = null;
+          ConvolutionController.convolveTask.kernelSize = null;
+          ConvolutionController.convolveTask.weights = null;
+        }
+      }
+    } catch (@Nonnull final Throwable e) {
+      throw new ComponentException("Error apply " + this, e);
+    }
+  }
+
+  private void pool(@Nonnull final double[] source, @Nonnull final double[] target, @Nullable final int[] indices,
+                    @Nonnull final Pooling pooling, final int poolX, final int poolY) {
+    assert Pooling.AVG == pooling || null != indices;
+    final int width = outputSize[0] / poolX;
+    final int height = outputSize[1] / poolY;
+    for (int band = 0; band < outputSize[2]; band++) {
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          double accum = 0;
+          int index = 0;
+          for (int dy = 0; dy < poolY; dy++) {
+            for (int dx = 0; dx < poolX; dx++) {
+              final double value = source[x * poolX + dx + outputSize[0] * (y * poolY + dy + outputSize[1] * band)];
+              if (Pooling.AVG == pooling) {
+                accum += value;
+              } else if (0 == dx && 0 == dy || value > accum) {
+                accum = value;
+                index = dx + poolX * dy;
+              }
+            }
+          }
+          final int i = x + width * (y + height * band);
+          if (Pooling.AVG == pooling) {
+            target[i] = accum / (poolX * poolY);
+          } else {
+            target[i] = accum;
+            indices[i] = index;
+          }
+        }
+      }
+    }
+  }
+
+  public enum Backend {
+    APARAPI,
+    CPU
+  }
+
+  public enum Pooling {
+    MAX,
+    AVG
+  }
+
+  public enum Storage {
+    DOUBLE,
+    HALF
+  }
+
+  public enum Layout {
+    AUTO,
+    PLANAR,
+    INTERLEAVED
+  }
+
+  public enum Staging {
+    HEAP,
+    DIRECT
+  }
 }
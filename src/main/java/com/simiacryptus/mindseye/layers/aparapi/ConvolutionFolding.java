@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.layers.java.ImgBandBiasLayer;
+import com.simiacryptus.mindseye.layers.java.ImgBandScaleLayer;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Folds per-band affine transforms that follow a {@link ConvolutionLayer} into its kernel and bias, for inference.
+ * Inference batch normalization is the affine transform with <code>scale = gamma / sqrt(variance + epsilon)</code>
+ * and <code>shift = beta - mean * scale</code>. The bias is not trained, so folded layers are frozen.
+ */
+public final class ConvolutionFolding {
+
+  private ConvolutionFolding() {
+  }
+
+  /**
+   * Folds the per-band scale, then shift, into a copy of the convolution. The band count is taken from the
+   * convolution's bias when it has one; the scale, shift and bias must all have that many bands, and it must divide
+   * the kernel's bands into whole groups, or an {@link IllegalArgumentException} is thrown.
+   */
+  @Nonnull
+  public static ConvolutionLayer fold(@Nonnull final ConvolutionLayer convolution, @Nullable final double[] scale,
+                                      @Nullable final double[] shift) {
+    final Tensor kernel = convolution.getKernel();
+    assert kernel != null;
+    final int[] kernelDims = kernel.getDimensions();
+    final int groups = convolution.getGroups();
+    final double[] bias = convolution.getBias();
+    final int outputBands = null != bias ? bias.length
+        : null != scale ? scale.length
+        : null != shift ? shift.length : 0;
+    if ((null != scale && scale.length != outputBands) || (null != shift && shift.length != outputBands)) {
+      kernel.freeRef();
+      convolution.freeRef();
+      throw new IllegalArgumentException("Cannot fold " + (null == scale ? "no" : scale.length) + " scale and "
+          + (null == shift ? "no" : shift.length) + " shift bands into " + outputBands + " output bands");
+    }
+    if (0 == outputBands || 0 != outputBands % groups || 0 != kernelDims[2] % outputBands) {
+      kernel.freeRef();
+      convolution.freeRef();
+      throw new IllegalArgumentException("Cannot fold " + outputBands + " bands into "
+          + RefArrays.toString(kernelDims));
+    }
+    final int outputBandsPerGroup = outputBands / groups;
+    final int inputBandsPerGroup = kernelDims[2] / outputBands;
+    final int plane = kernelDims[0] * kernelDims[1];
+    final double[] weights = RefArrays.copyOf(kernel.getData(), kernel.length());
+    kernel.freeRef();
+    if (null != scale) {
+      for (int k2 = 0; k2 < kernelDims[2]; k2++) {
+        final int i2 = k2 / outputBandsPerGroup;
+        final int o2 = i2 / inputBandsPerGroup * outputBandsPerGroup + k2 % outputBandsPerGroup;
+        for (int k = k2 * plane; k < (k2 + 1) * plane; k++) {
+          weights[k] *= scale[o2];
+        }
+      }
+    }
+    final double[] foldedBias = new double[outputBands];
+    for (int o2 = 0; o2 < outputBands; o2++) {
+      final double value = null == bias ? 0 : bias[o2];
+      foldedBias[o2] = (null == scale ? value : value * scale[o2]) + (null == shift ? 0 : shift[o2]);
+    }
+    ConvolutionLayer folded = new ConvolutionLayer(new Tensor(weights, kernelDims), true, groups);
+    folded.setPaddingX(convolution.getPaddingX());
+    folded.setPaddingY(convolution.getPaddingY());
+    folded.setBias(foldedBias);
+    folded.setRetention(convolution.getRetention());
+    folded.setIncremental(convolution.isIncremental());
+    folded.setWeightFormat(convolution.getWeightFormat());
+    folded.setStorage(convolution.getStorage());
+    folded.setFrozen(true);
+    convolution.freeRef();
+    return folded;
+  }
+
+  @Nonnull
+  public static Layer[] fold(@Nonnull final Layer... layers) {
+    final Layer[] result = new Layer[layers.length];
+    int count = 0;
+    for (int i = 0; i < layers.length; i++) {
+      if (!(layers[i] instanceof ConvolutionLayer)) {
+        result[count++] = layers[i];
+        continue;
+      }
+      double[] scale = null;
+      double[] shift = null;
+      int next = i + 1;
+      for (; next < layers.length; next++) {
+        if (layers[next] instanceof ImgBandScaleLayer) {
+          final double[] weights = getWeights(layers[next]);
+          for (int b = 0; b < weights.length; b++) {
+            if (null != scale)
+              scale[b] *= weights[b];
+            if (null != shift)
+              shift[b] *= weights[b];
+          }
+          if (null == scale)
+            scale = RefArrays.copyOf(weights, weights.length);
+        } else if (layers[next] instanceof ImgBandBiasLayer) {
+          final double[] weights = getWeights(layers[next]);
+          if (null == shift)
+            shift = new double[weights.length];
+          for (int b = 0; b < weights.length; b++) {
+            shift[b] += weights[b];
+          }
+        } else {
+          break;
+        }
+      }
+      if (next == i + 1) {
+        result[count++] = layers[i];
+        continue;
+      }
+      for (int j = i + 1; j < next; j++) {
+        layers[j].freeRef();
+      }
+      result[count++] = fold((ConvolutionLayer) layers[i], scale, shift);
+      i = next - 1;
+    }
+    return RefArrays.copyOf(result, count);
+  }
+
+  @Nonnull
+  private static double[] getWeights(@Nonnull final Layer layer) {
+    final RefList<double[]> state = layer.state();
+    assert state != null;
+    final double[] weights = state.get(0);
+    state.freeRef();
+    return weights;
+  }
+}
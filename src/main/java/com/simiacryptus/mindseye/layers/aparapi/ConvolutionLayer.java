@@ -19,30 +19,63 @@
 
 package com.simiacryptus.mindseye.layers.aparapi;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.lang.RecycleBin;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.File;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.DoubleSupplier;
 import java.util.function.ToDoubleFunction;
 
 @SuppressWarnings("serial")
 public class ConvolutionLayer extends LayerBase {
 
+  private static final Logger log = LoggerFactory.getLogger(ConvolutionLayer.class);
+  private final int groups;
+  /**
+   * @deprecated Null until the weights of a layer backed by a weight file are loaded; use {@link #getKernel()}.
+   */
+  @Deprecated
   @Nullable
-  public final Tensor kernel;
+  public volatile Tensor kernel;
+  @Nullable
+  private WeightFile weightFile;
   @Nullable
   private Integer paddingX = null;
   @Nullable
   private Integer paddingY = null;
+  @Nullable
+  private double[] bias = null;
+  @Nonnull
+  private RetainedInput.Mode retention = RetainedInput.Mode.FULL;
+  private boolean deferredGradient = false;
+  private boolean incremental = false;
+  @Nonnull
+  private ConvolutionCheckpoint.Format weightFormat = ConvolutionCheckpoint.Format.JSON;
+  @Nullable
+  private ConvolutionController.Storage storage = null;
+  @Nullable
+  private transient volatile GradientAccumulator gradientAccumulator;
+  @Nullable
+  private transient SharedAllReduce allReduce;
+  @Nonnull
+  private final transient IncrementalCache forwardCache = new IncrementalCache(IncrementalCache.Pass.FORWARD);
+  @Nonnull
+  private final transient IncrementalCache backwardCache = new IncrementalCache(IncrementalCache.Pass.BACKWARD);
+  private transient boolean untrainedBiasReported = false;
 
   protected ConvolutionLayer() {
     this(null, true);
@@ -67,22 +100,69 @@ public class ConvolutionLayer extends LayerBase {
     this(width, height, inputBands * outputBands, simple);
   }
 
+  public ConvolutionLayer(final int width, final int height, final int inputBands, final int outputBands,
+                          final int groups, final boolean simple) {
+    this(new Tensor(width, height, getKernelBands(inputBands, outputBands, groups)), simple, groups);
+    assert !simple || 0 == (width - 1) % 2 : "Simple kernels must have odd width";
+    assert !simple || 0 == (height - 1) % 2 : "Simple kernels must have odd height";
+  }
+
   protected ConvolutionLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> resources) {
     super(json);
-    Tensor temp_00_0001 = Tensor.fromJson(json.get("filter"), resources);
-    kernel = temp_00_0001 == null ? null : temp_00_0001.addRef();
-    if (null != temp_00_0001)
-      temp_00_0001.freeRef();
+    JsonElement filterFile = json.get("filterFile");
+    JsonElement filterResource = json.get("filterResource");
+    if (null != filterFile && filterFile.isJsonPrimitive()) {
+      weightFile = WeightFile.open(new File(filterFile.getAsString()));
+    } else if (null != filterResource && filterResource.isJsonPrimitive()) {
+      final byte[] bytes = null == resources ? null : resources.get(filterResource.getAsString());
+      if (null == bytes)
+        throw new IllegalArgumentException("Missing resource " + filterResource.getAsString());
+      final ConvolutionCheckpoint checkpoint = ConvolutionCheckpoint.fromBytes(bytes);
+      kernel = checkpoint.getKernel();
+      this.bias = checkpoint.getBias();
+    } else {
+      Tensor temp_00_0001 = Tensor.fromJson(json.get("filter"), resources);
+      kernel = temp_00_0001 == null ? null : temp_00_0001.addRef();
+      if (null != temp_00_0001)
+        temp_00_0001.freeRef();
+    }
+    JsonElement groups = json.get("groups");
+    this.groups = null != groups && groups.isJsonPrimitive() ? groups.getAsInt() : 1;
     JsonElement paddingX = json.get("paddingX");
     if (null != paddingX && paddingX.isJsonPrimitive())
       this.setPaddingX(paddingX.getAsInt());
     JsonElement paddingY = json.get("paddingY");
     if (null != paddingY && paddingY.isJsonPrimitive())
       this.setPaddingY(paddingY.getAsInt());
+    JsonElement retention = json.get("retention");
+    if (null != retention && retention.isJsonPrimitive())
+      this.retention = RetainedInput.Mode.valueOf(retention.getAsString());
+    JsonElement incremental = json.get("incremental");
+    if (null != incremental && incremental.isJsonPrimitive())
+      this.incremental = incremental.getAsBoolean();
+    JsonElement weightFormat = json.get("weightFormat");
+    if (null != weightFormat && weightFormat.isJsonPrimitive())
+      this.weightFormat = ConvolutionCheckpoint.Format.valueOf(weightFormat.getAsString());
+    JsonElement storage = json.get("storage");
+    if (null != storage && storage.isJsonPrimitive())
+      this.storage = ConvolutionController.Storage.valueOf(storage.getAsString());
+    JsonElement bias = json.get("bias");
+    if (null != bias && bias.isJsonArray()) {
+      JsonArray array = bias.getAsJsonArray();
+      this.bias = new double[array.size()];
+      for (int i = 0; i < this.bias.length; i++) {
+        this.bias[i] = array.get(i).getAsDouble();
+      }
+    }
   }
 
   protected ConvolutionLayer(@Nonnull final Tensor kernel, final boolean simple) {
+    this(kernel, simple, 1);
+  }
+
+  protected ConvolutionLayer(@Nonnull final Tensor kernel, final boolean simple, final int groups) {
     super();
+    this.groups = groups;
     this.paddingX = simple ? null : 0;
     this.paddingY = simple ? null : 0;
     @Nonnull
@@ -109,6 +189,29 @@ public class ConvolutionLayer extends LayerBase {
     kernel.freeRef();
   }
 
+  @Nullable
+  public Tensor getKernel() {
+    loadKernel();
+    return kernel == null ? null : kernel.addRef();
+  }
+
+  @Nonnull
+  public int[] getKernelDimensions() {
+    final Tensor kernel = this.kernel;
+    if (null != kernel)
+      return kernel.getDimensions();
+    synchronized (this) {
+      if (null != this.kernel)
+        return this.kernel.getDimensions();
+      assert weightFile != null;
+      return weightFile.getDimensions();
+    }
+  }
+
+  public int getGroups() {
+    return groups;
+  }
+
   @Nullable
   public Integer getPaddingX() {
     return paddingX;
@@ -127,7 +230,156 @@ public class ConvolutionLayer extends LayerBase {
     this.paddingY = paddingY;
   }
 
+  @Nonnull
+  public RetainedInput.Mode getRetention() {
+    return retention;
+  }
+
+  public void setRetention(@Nonnull RetainedInput.Mode retention) {
+    this.retention = retention;
+  }
+
+  public boolean isDeferredGradient() {
+    return deferredGradient;
+  }
+
+  /**
+   * When set, backward passes only sum the weight gradient into a buffer taken from the layer's
+   * {@link GradientAccumulator}, and {@link #flushGradient(DeltaSet)} must be called once per step to merge those
+   * buffers into the delta set. The pool is shared by all threads and synchronized on acquire and release; it keeps up
+   * to one kernel-sized buffer per available processor alive for the lifetime of the layer.
+   */
+  public void setDeferredGradient(boolean deferredGradient) {
+    if (!deferredGradient && null != allReduce)
+      throw new IllegalStateException("An all-reduce requires the deferred gradient");
+    this.deferredGradient = deferredGradient;
+  }
+
+  public boolean isIncremental() {
+    return incremental;
+  }
+
+  /**
+   * When set, each pass keeps its last input and output and, while the weights and shapes are unchanged, recomputes
+   * only the output reached by the part of the input that changed since, as when optimizing an image through a
+   * frozen network. The changed part is found by comparing with the kept input unless given by
+   * {@link #markDirty(int, int, int, int)}.
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+    invalidate();
+  }
+
+  /**
+   * Declares the rectangle of the input, in pixels, that changed since the last evaluation, for every item of the
+   * next incremental batch.
+   */
+  public void markDirty(final int x, final int y, final int width, final int height) {
+    forwardCache.markDirty(x, y, width, height);
+  }
+
+  /**
+   * Drops the results kept for incremental mode, so the next passes are computed in full.
+   */
+  public void invalidate() {
+    forwardCache.invalidate();
+    backwardCache.invalidate();
+  }
+
+  /**
+   * The fraction of output positions the forward pass actually computed while in incremental mode.
+   */
+  public double getRecomputedFraction() {
+    return forwardCache.getRecomputedFraction();
+  }
+
+  @Nonnull
+  public ConvolutionCheckpoint.Format getWeightFormat() {
+    return weightFormat;
+  }
+
+  /**
+   * Selects how {@link #getJson(Map, DataSerializer)} stores the kernel and bias. The binary formats store a
+   * {@link ConvolutionCheckpoint} in the resources map, deflated for {@link ConvolutionCheckpoint.Format#COMPRESSED},
+   * and fall back to JSON when no resources map is given.
+   */
+  public void setWeightFormat(@Nonnull ConvolutionCheckpoint.Format weightFormat) {
+    this.weightFormat = weightFormat;
+  }
+
+  @Nullable
+  public ConvolutionController.Storage getStorage() {
+    return storage;
+  }
+
+  /**
+   * Selects the precision the forward pass stores the weights and input in, or null to follow
+   * {@link ConvolutionController#getDefaultStorage()}. The backward passes always run in double precision.
+   */
+  public void setStorage(@Nullable ConvolutionController.Storage storage) {
+    this.storage = storage;
+  }
+
+  /**
+   * Copies the kernel, bias and padding now and writes them to the file on a background thread, so training can
+   * continue during the write. Read the file back with {@link ConvolutionCheckpoint#read(File)}.
+   */
+  @Nonnull
+  public CompletableFuture<File> snapshot(@Nonnull final File file, final boolean compressed) {
+    return ConvolutionCheckpoint.of(addRef()).writeAsync(file, compressed);
+  }
+
+  @Nullable
+  public SharedAllReduce getAllReduce() {
+    return allReduce;
+  }
+
+  /**
+   * Sums the weight gradient over the worker processes sharing the region in {@link #flushGradient(DeltaSet)}, before
+   * it reaches the delta set. This requires the deferred gradient, so each worker joins exactly one reduction per step
+   * however many backward passes or threads it runs. Every worker evaluates the same network on its own shard of the
+   * batch; start them from the same weights with {@link SharedAllReduce#broadcast(double[], int)} and they stay
+   * identical after each update.
+   */
+  public void setAllReduce(@Nullable SharedAllReduce allReduce) {
+    if (null != allReduce && !deferredGradient)
+      throw new IllegalStateException("An all-reduce requires the deferred gradient");
+    this.allReduce = allReduce;
+  }
+
+  public void flushGradient(@Nonnull DeltaSet<UUID> buffer) {
+    final GradientAccumulator gradientAccumulator = null == allReduce ? this.gradientAccumulator
+        : getGradientAccumulator();
+    if (null != gradientAccumulator) {
+      final double[] gradient = RecycleBin.DOUBLES.obtain(gradientAccumulator.getLength());
+      gradientAccumulator.drainTo(gradient);
+      if (null != allReduce) {
+        allReduce.reduce(gradient);
+      }
+      final Tensor kernel = getKernel();
+      Delta<UUID> kernelDelta = buffer.get(getId(), kernel);
+      assert kernelDelta != null;
+      kernelDelta.addInPlace(gradient);
+      kernelDelta.freeRef();
+      RecycleBin.DOUBLES.recycle(gradient, gradient.length);
+    }
+    buffer.freeRef();
+  }
+
+  @Nullable
+  public double[] getBias() {
+    return bias;
+  }
+
+  /**
+   * A per-band bias added after the convolution. It is not trained, so layers with a bias should be frozen.
+   */
+  public void setBias(@Nullable double[] bias) {
+    this.bias = bias;
+  }
+
   public void setWeights(@Nonnull DoubleSupplier f) {
+    loadKernel();
     assert kernel != null;
     kernel.coordStream(true).forEach(c -> {
       kernel.set(c, f.getAsDouble());
@@ -135,6 +387,7 @@ public class ConvolutionLayer extends LayerBase {
   }
 
   public void setWeights(@Nonnull ToDoubleFunction<Coordinate> f) {
+    loadKernel();
     assert kernel != null;
     kernel.coordStream(true).forEach(c -> {
       kernel.set(c, f.applyAsDouble(c));
@@ -147,6 +400,13 @@ public class ConvolutionLayer extends LayerBase {
     return new ConvolutionLayer(json, rs);
   }
 
+  private static int getKernelBands(final int inputBands, final int outputBands, final int groups) {
+    if (groups <= 0 || 0 != inputBands % groups || 0 != outputBands % groups)
+      throw new IllegalArgumentException(
+          "Bands " + inputBands + " => " + outputBands + " are not divisible into " + groups + " groups");
+    return inputBands * outputBands / groups;
+  }
+
   @Nonnull
   @Override
   public Result eval(@Nonnull final Result... inObj) {
@@ -156,12 +416,16 @@ public class ConvolutionLayer extends LayerBase {
     Tensor temp_00_0012 = batch.get(0);
     @Nonnull final int[] inputDims = temp_00_0012.getDimensions();
     temp_00_0012.freeRef();
+    loadKernel();
     assert kernel != null;
+    if (null != bias && !isFrozen() && !untrainedBiasReported) {
+      untrainedBiasReported = true;
+      log.warn(getName() + " trains its kernel but not its bias; freeze folded layers");
+    }
     @Nonnull final int[] kernelDims = kernel.getDimensions();
     final ConvolutionLayer convolutionLayer = ConvolutionLayer.this.addRef();
     assert convolutionLayer.kernel != null;
-    @Nonnull final ConvolutionController convolutionController = new ConvolutionController(inputDims, kernelDims, paddingX,
-        paddingY);
+    @Nonnull final ConvolutionController convolutionController = newController(inputDims);
     final Tensor[] output = RefIntStream.range(0, batch.length())
         .mapToObj(dataIndex -> new Tensor(convolutionController.getOutputDims())).toArray(i -> new Tensor[i]);
     try {
@@ -176,35 +440,91 @@ public class ConvolutionLayer extends LayerBase {
         x.freeRef();
         return temp_00_0007;
       }).toArray(i -> new double[i][]);
-      convolutionController.convolve(inputBuffers, convolutionLayer.kernel.getData(), outputBuffers);
+      if (incremental) {
+        forwardCache.apply(convolutionController, inputBuffers, convolutionLayer.kernel.getData(), outputBuffers);
+      } else {
+        convolutionController.convolve(inputBuffers, convolutionLayer.kernel.getData(), outputBuffers);
+      }
+      final int[] outputDims = convolutionController.getOutputDims();
+      for (double[] outputBuffer : outputBuffers) {
+        convolutionLayer.addBias(outputBuffer, outputDims[0] * outputDims[1]);
+      }
     } catch (@Nonnull final Throwable e) {
       throw new RuntimeException("Error mapCoords png res " + RefArrays.toString(inputDims), e);
     }
     int outputLength = output.length;
     boolean alive = input.isAlive();
-    Accumulator accumulator = new Accumulator(batch, kernelDims, convolutionController, convolutionLayer, outputLength, inputDims, input.getAccumulator(), input.isAlive());
+    final RetainedInput retained;
+    if (isFrozen()) {
+      batch.freeRef();
+      retained = null;
+    } else {
+      retained = RetainedInput.create(retention, batch);
+    }
+    Accumulator accumulator = new Accumulator(retained, kernelDims, convolutionController, convolutionLayer, outputLength, inputDims, input.getAccumulator(), input.isAlive());
     input.freeRef();
     return new Result(new TensorArray(output), accumulator, alive || !isFrozen());
   }
 
+  @Nonnull
+  public ConvolutionController newController(@Nonnull final int[] inputDims) {
+    final ConvolutionController controller = new ConvolutionController(inputDims, getKernelDimensions(), paddingX,
+        paddingY, groups);
+    if (null != storage)
+      controller.setStorage(storage);
+    return controller;
+  }
+
   @Nonnull
   @Override
   public JsonObject getJson(Map<CharSequence, byte[]> resources, @Nonnull DataSerializer dataSerializer) {
     @Nonnull final JsonObject json = super.getJsonStub();
-    assert kernel != null;
-    json.add("filter", kernel.getJson(resources, dataSerializer));
-    JsonElement paddingX = json.get("paddingX");
-    if (null != paddingX && paddingX.isJsonPrimitive())
-      this.setPaddingX(paddingX.getAsInt());
-    JsonElement paddingY = json.get("paddingY");
-    if (null != paddingY && paddingY.isJsonPrimitive())
-      this.setPaddingY(paddingY.getAsInt());
+    final Tensor kernel;
+    final WeightFile weightFile;
+    synchronized (this) {
+      kernel = this.kernel;
+      weightFile = this.weightFile;
+    }
+    final boolean binary = null != kernel && null != resources && ConvolutionCheckpoint.Format.JSON != weightFormat;
+    if (binary) {
+      final String key = getId() + ".filter";
+      final boolean compressed = ConvolutionCheckpoint.Format.COMPRESSED == weightFormat;
+      resources.put(key, ConvolutionCheckpoint.of(addRef()).toBytes(compressed));
+      json.addProperty("filterResource", key);
+    } else if (null != kernel) {
+      json.add("filter", kernel.getJson(resources, dataSerializer));
+    } else {
+      assert weightFile != null;
+      json.addProperty("filterFile", weightFile.getFile().getAbsolutePath());
+    }
+    if (1 != groups)
+      json.addProperty("groups", groups);
+    if (null != paddingX)
+      json.addProperty("paddingX", paddingX);
+    if (null != paddingY)
+      json.addProperty("paddingY", paddingY);
+    if (RetainedInput.Mode.FULL != retention)
+      json.addProperty("retention", retention.name());
+    if (incremental)
+      json.addProperty("incremental", true);
+    if (ConvolutionCheckpoint.Format.JSON != weightFormat)
+      json.addProperty("weightFormat", weightFormat.name());
+    if (null != storage)
+      json.addProperty("storage", storage.name());
+    if (!binary && null != bias) {
+      JsonArray array = new JsonArray();
+      for (double value : bias) {
+        array.add(value);
+      }
+      json.add("bias", array);
+    }
     return json;
   }
 
   @Nonnull
   @Override
   public RefList<double[]> state() {
+    loadKernel();
     assert kernel != null;
     return RefArrays.asList(kernel.getData());
   }
@@ -222,9 +542,78 @@ public class ConvolutionLayer extends LayerBase {
     return (ConvolutionLayer) super.addRef();
   }
 
+  void addBias(@Nonnull final double[] output, final int plane) {
+    if (null == bias)
+      return;
+    assert 0 == output.length % (plane * bias.length);
+    for (int offset = 0; offset < output.length; offset += plane) {
+      final double value = bias[offset / plane % bias.length];
+      for (int i = offset; i < offset + plane; i++) {
+        output[i] += value;
+      }
+    }
+  }
+
+  private void loadKernel() {
+    if (null == kernel) {
+      synchronized (this) {
+        if (null == kernel && null != weightFile) {
+          kernel = weightFile.read();
+          weightFile = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * A zeroed buffer from the layer's gradient pool, for a backward pass to add its weight gradient into. Hand it back
+   * with {@link #releaseGradient(DeltaSet, double[])}.
+   */
+  @Nonnull
+  double[] acquireGradient() {
+    return getGradientAccumulator().acquire();
+  }
+
+  /**
+   * Returns a buffer from {@link #acquireGradient()} to the pool. Unless the gradient is deferred, its sum is first
+   * added to the delta set and the buffer zeroed; a deferred gradient stays in the pool until
+   * {@link #flushGradient(DeltaSet)}.
+   */
+  void releaseGradient(@Nonnull DeltaSet<UUID> buffer, @Nonnull final double[] weightGradient) {
+    if (!deferredGradient) {
+      Delta<UUID> kernelDelta = buffer.get(getId(), getKernel());
+      assert kernelDelta != null;
+      kernelDelta.addInPlace(weightGradient);
+      kernelDelta.freeRef();
+      RefArrays.fill(weightGradient, 0.0);
+    }
+    buffer.freeRef();
+    getGradientAccumulator().release(weightGradient);
+  }
+
+  /**
+   * The kernel dimensions are fixed for the life of the layer, so one accumulator serves every pass and deferred
+   * gradients are only ever taken out by {@link #flushGradient(DeltaSet)}.
+   */
+  @Nonnull
+  private GradientAccumulator getGradientAccumulator() {
+    GradientAccumulator gradientAccumulator = this.gradientAccumulator;
+    if (null == gradientAccumulator) {
+      synchronized (this) {
+        gradientAccumulator = this.gradientAccumulator;
+        if (null == gradientAccumulator) {
+          gradientAccumulator = new GradientAccumulator(Tensor.length(getKernelDimensions()));
+          this.gradientAccumulator = gradientAccumulator;
+        }
+      }
+    }
+    return gradientAccumulator;
+  }
+
   private class Accumulator extends Result.Accumulator {
 
-    private final TensorList batch;
+    @Nullable
+    private final RetainedInput retained;
     private final int[] kernelDims;
     private final ConvolutionController convolutionController;
     private final ConvolutionLayer convolutionLayer;
@@ -233,8 +622,8 @@ public class ConvolutionLayer extends LayerBase {
     private Result.Accumulator accumulator;
     private boolean alive;
 
-    public Accumulator(TensorList batch, int[] kernelDims, ConvolutionController convolutionController, ConvolutionLayer convolutionLayer, int outputLength, int[] inputDims, Result.Accumulator accumulator, boolean alive) {
-      this.batch = batch;
+    public Accumulator(RetainedInput retained, int[] kernelDims, ConvolutionController convolutionController, ConvolutionLayer convolutionLayer, int outputLength, int[] inputDims, Result.Accumulator accumulator, boolean alive) {
+      this.retained = retained;
       this.kernelDims = kernelDims;
       this.convolutionController = convolutionController;
       this.convolutionLayer = convolutionLayer;
@@ -246,41 +635,29 @@ public class ConvolutionLayer extends LayerBase {
 
     @Override
     public void accept(@Nonnull DeltaSet<UUID> buffer, @Nonnull TensorList error) {
-      if (!ConvolutionLayer.this.isFrozen()) {
-        final double[][] inputBuffers = batch.stream().map(x -> {
-          double[] temp_00_0008 = x.getData();
-          x.freeRef();
-          return temp_00_0008;
-        }).toArray(i -> new double[i][]);
-        final double[][] outputBuffers = error.stream().map(x -> {
-          double[] temp_00_0009 = x.getData();
-          x.freeRef();
-          return temp_00_0009;
-        }).toArray(i -> new double[i][]);
-        @Nonnull final Tensor weightGradient = new Tensor(kernelDims);
-        convolutionController.gradient(inputBuffers, weightGradient.getData(), outputBuffers);
-
-        Delta<UUID> kernelDelta = buffer.get(convolutionLayer.getId(), convolutionLayer.kernel.addRef());
-        assert kernelDelta != null;
-        kernelDelta.addInPlace(weightGradient);
-        kernelDelta.freeRef();
+      final double[][] errorBuffers = error.stream().map(x -> {
+        double[] temp_00_0009 = x.getData();
+        x.freeRef();
+        return temp_00_0009;
+      }).toArray(i -> new double[i][]);
+      if (null != retained && !ConvolutionLayer.this.isFrozen()) {
+        assert getGradientAccumulator().getLength() == Tensor.length(kernelDims);
+        final double[] weightGradient = acquireGradient();
+        convolutionController.gradient(retained.addRef(), weightGradient, errorBuffers);
+        releaseGradient(buffer.addRef(), weightGradient);
       }
       if (alive) {
-        final Tensor[] inputBufferTensors = RefIntStream.range(0, outputLength)
-            .mapToObj(dataIndex -> new Tensor(inputDims)).toArray(i -> new Tensor[i]);
-        final double[][] inputBuffers = RefArrays.stream(RefUtil.addRef(inputBufferTensors)).map(x -> {
-          double[] temp_00_0010 = x.getData();
-          x.freeRef();
-          return temp_00_0010;
-        }).toArray(i -> new double[i][]);
-        final double[][] outputBuffers = error.stream().map(x -> {
-          double[] temp_00_0011 = x.getData();
-          x.freeRef();
-          return temp_00_0011;
-        }).toArray(i -> new double[i][]);
-        convolutionController.backprop(inputBuffers, convolutionLayer.kernel.getData(), outputBuffers);
+        final int inputLength = inputDims[0] * inputDims[1] * inputDims[2];
+        final double[][] inputBuffers = RefIntStream.range(0, outputLength)
+            .mapToObj(dataIndex -> RecycleBin.DOUBLES.obtain(inputLength)).toArray(i -> new double[i][]);
+        if (incremental) {
+          backwardCache.apply(convolutionController, errorBuffers, convolutionLayer.kernel.getData(), inputBuffers);
+        } else {
+          convolutionController.backprop(inputBuffers, convolutionLayer.kernel.getData(), errorBuffers);
+        }
         @Nonnull
-        TensorArray tensorArray = new TensorArray(inputBufferTensors);
+        TensorArray tensorArray = new TensorArray(RefArrays.stream(inputBuffers)
+            .map(data -> new Tensor(data, inputDims)).toArray(i -> new Tensor[i]));
         Result.Accumulator accumulator = this.accumulator;
         try {
           accumulator.accept(buffer.addRef(), tensorArray);
@@ -296,7 +673,8 @@ public class ConvolutionLayer extends LayerBase {
     void _free() {
       super._free();
       accumulator.freeRef();
-      batch.freeRef();
+      if (null != retained)
+        retained.freeRef();
       convolutionLayer.freeRef();
     }
   }
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A {@link ConvolutionLayer} followed by max or average pooling over non-overlapping windows, in one pass. Only the
+ * pooled output is kept, with the position of each maximum for max pooling; the backward pass expands the pooled
+ * delta through those positions into a pooled full resolution buffer for the backprop and gradient passes. The input
+ * is only retained while the layer is not frozen, and the weight gradient is summed into a buffer from a
+ * {@link GradientAccumulator}.
+ */
+@SuppressWarnings("serial")
+public class ConvolutionPoolLayer extends LayerBase {
+
+  @Nullable
+  private final Tensor kernel;
+  private final int groups;
+  @Nonnull
+  private final ConvolutionController.Pooling pooling;
+  private final int poolX;
+  private final int poolY;
+  @Nullable
+  private Integer paddingX = null;
+  @Nullable
+  private Integer paddingY = null;
+  @Nullable
+  private double[] bias = null;
+  @Nullable
+  private transient volatile GradientAccumulator gradientAccumulator;
+
+  public ConvolutionPoolLayer(final int width, final int height, final int inputBands, final int outputBands,
+                              @Nonnull final ConvolutionController.Pooling pooling, final int pool) {
+    this(new Tensor(width, height, inputBands * outputBands), 1, pooling, pool, pool);
+  }
+
+  protected ConvolutionPoolLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> resources) {
+    super(json);
+    Tensor temp_00_0001 = Tensor.fromJson(json.get("filter"), resources);
+    kernel = temp_00_0001 == null ? null : temp_00_0001.addRef();
+    if (null != temp_00_0001)
+      temp_00_0001.freeRef();
+    JsonElement groups = json.get("groups");
+    this.groups = null != groups && groups.isJsonPrimitive() ? groups.getAsInt() : 1;
+    pooling = ConvolutionController.Pooling.valueOf(json.get("pooling").getAsString());
+    poolX = json.get("poolX").getAsInt();
+    poolY = json.get("poolY").getAsInt();
+    JsonElement paddingX = json.get("paddingX");
+    if (null != paddingX && paddingX.isJsonPrimitive())
+      this.setPaddingX(paddingX.getAsInt());
+    JsonElement paddingY = json.get("paddingY");
+    if (null != paddingY && paddingY.isJsonPrimitive())
+      this.setPaddingY(paddingY.getAsInt());
+    JsonElement bias = json.get("bias");
+    if (null != bias && bias.isJsonArray()) {
+      JsonArray array = bias.getAsJsonArray();
+      this.bias = new double[array.size()];
+      for (int i = 0; i < this.bias.length; i++) {
+        this.bias[i] = array.get(i).getAsDouble();
+      }
+    }
+  }
+
+  protected ConvolutionPoolLayer(@Nonnull final Tensor kernel, final int groups,
+                                 @Nonnull final ConvolutionController.Pooling pooling, final int poolX,
+                                 final int poolY) {
+    super();
+    int[] dimensions = kernel.getDimensions();
+    if (dimensions.length != 3 || dimensions[0] <= 0 || dimensions[1] <= 0 || dimensions[2] <= 0) {
+      kernel.freeRef();
+      throw new IllegalArgumentException(RefArrays.toString(dimensions));
+    }
+    if (poolX <= 0 || poolY <= 0) {
+      kernel.freeRef();
+      throw new IllegalArgumentException("Pool " + poolX + "," + poolY);
+    }
+    this.kernel = kernel;
+    this.groups = groups;
+    this.pooling = pooling;
+    this.poolX = poolX;
+    this.poolY = poolY;
+  }
+
+  @Nullable
+  public Tensor getKernel() {
+    return kernel == null ? null : kernel.addRef();
+  }
+
+  public int getGroups() {
+    return groups;
+  }
+
+  @Nonnull
+  public ConvolutionController.Pooling getPooling() {
+    return pooling;
+  }
+
+  public int getPoolX() {
+    return poolX;
+  }
+
+  public int getPoolY() {
+    return poolY;
+  }
+
+  @Nullable
+  public Integer getPaddingX() {
+    return paddingX;
+  }
+
+  public void setPaddingX(Integer paddingX) {
+    this.paddingX = paddingX;
+  }
+
+  @Nullable
+  public Integer getPaddingY() {
+    return paddingY;
+  }
+
+  public void setPaddingY(Integer paddingY) {
+    this.paddingY = paddingY;
+  }
+
+  @Nullable
+  public double[] getBias() {
+    return bias;
+  }
+
+  public void setBias(@Nullable double[] bias) {
+    this.bias = bias;
+  }
+
+  public void setWeights(@Nonnull DoubleSupplier f) {
+    assert kernel != null;
+    kernel.coordStream(true).forEach(c -> {
+      kernel.set(c, f.getAsDouble());
+    });
+  }
+
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static ConvolutionPoolLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new ConvolutionPoolLayer(json, rs);
+  }
+
+  /**
+   * Fuses a convolution with the pooling layer that follows it. The result shares the kernel of the convolution,
+   * whose reference is consumed.
+   */
+  @Nonnull
+  public static ConvolutionPoolLayer fuse(@Nonnull final ConvolutionLayer convolution,
+                                          @Nonnull final ConvolutionController.Pooling pooling, final int poolX,
+                                          final int poolY) {
+    final Tensor kernel = convolution.getKernel();
+    assert kernel != null;
+    ConvolutionPoolLayer fused = new ConvolutionPoolLayer(kernel, convolution.getGroups(), pooling, poolX, poolY);
+    fused.setPaddingX(convolution.getPaddingX());
+    fused.setPaddingY(convolution.getPaddingY());
+    fused.setBias(convolution.getBias());
+    fused.setFrozen(convolution.isFrozen());
+    convolution.freeRef();
+    return fused;
+  }
+
+  @Nonnull
+  public ConvolutionController newController(@Nonnull final int[] inputDims) {
+    assert kernel != null;
+    return new ConvolutionController(inputDims, kernel.getDimensions(), paddingX, paddingY, groups);
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nonnull final Result... inObj) {
+    final Result input = inObj[0].addRef();
+    RefUtil.freeRef(inObj);
+    final TensorList batch = input.getData();
+    Tensor temp_00_0002 = batch.get(0);
+    @Nonnull final int[] inputDims = temp_00_0002.getDimensions();
+    temp_00_0002.freeRef();
+    @Nonnull final ConvolutionController controller = newController(inputDims);
+    final int[] outputDims;
+    try {
+      outputDims = controller.getPooledDims(poolX, poolY);
+    } catch (IllegalArgumentException e) {
+      batch.freeRef();
+      input.freeRef();
+      throw e;
+    }
+    final Tensor[] output = RefIntStream.range(0, batch.length())
+        .mapToObj(dataIndex -> new Tensor(outputDims)).toArray(i -> new Tensor[i]);
+    @Nullable final int[][] indices = ConvolutionController.Pooling.MAX == pooling
+        ? new int[output.length][Tensor.length(outputDims)] : null;
+    try {
+      final double[][] inputBuffers = batch.stream().map(x -> {
+        double[] data = x.getData();
+        x.freeRef();
+        return data;
+      }).toArray(i -> new double[i][]);
+      final double[][] outputBuffers = RefArrays.stream(RefUtil.addRef(output)).map(x -> {
+        double[] data = x.getData();
+        x.freeRef();
+        return data;
+      }).toArray(i -> new double[i][]);
+      assert kernel != null;
+      controller.convolvePool(inputBuffers, kernel.getData(), outputBuffers, indices, pooling, poolX, poolY);
+      for (double[] outputBuffer : outputBuffers) {
+        addBias(outputBuffer, outputDims[0] * outputDims[1]);
+      }
+    } catch (@Nonnull final Throwable e) {
+      throw new RuntimeException("Error mapCoords png res " + RefArrays.toString(inputDims), e);
+    }
+    boolean alive = input.isAlive();
+    final RetainedInput retained;
+    if (isFrozen()) {
+      batch.freeRef();
+      retained = null;
+    } else {
+      retained = RetainedInput.create(RetainedInput.Mode.FULL, batch);
+    }
+    Accumulator accumulator = new Accumulator(retained, indices, controller, inputDims, input.getAccumulator(), alive);
+    input.freeRef();
+    return new Result(new TensorArray(output), accumulator, alive || !isFrozen());
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, @Nonnull DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJsonStub();
+    assert kernel != null;
+    json.add("filter", kernel.getJson(resources, dataSerializer));
+    if (1 != groups)
+      json.addProperty("groups", groups);
+    json.addProperty("pooling", pooling.name());
+    json.addProperty("poolX", poolX);
+    json.addProperty("poolY", poolY);
+    if (null != paddingX)
+      json.addProperty("paddingX", paddingX);
+    if (null != paddingY)
+      json.addProperty("paddingY", paddingY);
+    if (null != bias) {
+      JsonArray array = new JsonArray();
+      for (double value : bias) {
+        array.add(value);
+      }
+      json.add("bias", array);
+    }
+    return json;
+  }
+
+  @Nonnull
+  @Override
+  public RefList<double[]> state() {
+    assert kernel != null;
+    return RefArrays.asList(kernel.getData());
+  }
+
+  public void _free() {
+    if (null != kernel)
+      kernel.freeRef();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  ConvolutionPoolLayer addRef() {
+    return (ConvolutionPoolLayer) super.addRef();
+  }
+
+  private void addBias(@Nonnull final double[] output, final int plane) {
+    if (null == bias)
+      return;
+    assert 0 == output.length % (plane * bias.length);
+    for (int offset = 0; offset < output.length; offset += plane) {
+      final double value = bias[offset / plane % bias.length];
+      for (int i = offset; i < offset + plane; i++) {
+        output[i] += value;
+      }
+    }
+  }
+
+  @Nonnull
+  private GradientAccumulator getGradientAccumulator() {
+    GradientAccumulator gradientAccumulator = this.gradientAccumulator;
+    if (null == gradientAccumulator) {
+      synchronized (this) {
+        gradientAccumulator = this.gradientAccumulator;
+        if (null == gradientAccumulator) {
+          assert kernel != null;
+          gradientAccumulator = new GradientAccumulator(kernel.length());
+          this.gradientAccumulator = gradientAccumulator;
+        }
+      }
+    }
+    return gradientAccumulator;
+  }
+
+  private class Accumulator extends Result.Accumulator {
+
+    @Nullable
+    private final RetainedInput retained;
+    @Nullable
+    private final int[][] indices;
+    private final ConvolutionController controller;
+    private final int[] inputDims;
+    private final ConvolutionPoolLayer layer;
+    private Result.Accumulator accumulator;
+    private boolean alive;
+
+    public Accumulator(RetainedInput retained, @Nullable int[][] indices, ConvolutionController controller,
+                       int[] inputDims, Result.Accumulator accumulator, boolean alive) {
+      this.retained = retained;
+      this.indices = indices;
+      this.controller = controller;
+      this.inputDims = inputDims;
+      this.layer = ConvolutionPoolLayer.this.addRef();
+      this.accumulator = accumulator;
+      this.alive = alive;
+    }
+
+    @Override
+    public void accept(@Nonnull DeltaSet<UUID> buffer, @Nonnull TensorList error) {
+      final double[][] pooledBuffers = error.stream().map(x -> {
+        double[] data = x.getData();
+        x.freeRef();
+        return data;
+      }).toArray(i -> new double[i][]);
+      final int outputLength = controller.getOutputLength();
+      final double[][] errorBuffers = RefIntStream.range(0, pooledBuffers.length).parallel().mapToObj(i -> {
+        final double[] data = ConvolutionController.getBuffers().obtain(outputLength);
+        controller.unpool(pooledBuffers[i], null == indices ? null : indices[i], data, pooling, poolX, poolY);
+        return data;
+      }).toArray(i -> new double[i][]);
+      error.freeRef();
+      assert kernel != null;
+      if (null != retained && !isFrozen()) {
+        final GradientAccumulator gradientAccumulator = getGradientAccumulator();
+        final double[] weightGradient = gradientAccumulator.acquire();
+        controller.gradient(retained.addRef(), weightGradient, errorBuffers);
+        Delta<UUID> kernelDelta = buffer.get(layer.getId(), kernel.addRef());
+        assert kernelDelta != null;
+        kernelDelta.addInPlace(weightGradient);
+        kernelDelta.freeRef();
+        RefArrays.fill(weightGradient, 0.0);
+        gradientAccumulator.release(weightGradient);
+      }
+      if (alive) {
+        final Tensor[] inputDeltas = RefIntStream.range(0, errorBuffers.length)
+            .mapToObj(dataIndex -> new Tensor(inputDims)).toArray(i -> new Tensor[i]);
+        final double[][] inputBuffers = RefArrays.stream(RefUtil.addRef(inputDeltas)).map(x -> {
+          double[] data = x.getData();
+          x.freeRef();
+          return data;
+        }).toArray(i -> new double[i][]);
+        controller.backprop(inputBuffers, kernel.getData(), errorBuffers);
+        accumulator.accept(buffer.addRef(), new TensorArray(inputDeltas));
+      }
+      for (double[] errorBuffer : errorBuffers) {
+        ConvolutionController.getBuffers().recycle(errorBuffer);
+      }
+      buffer.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      accumulator.freeRef();
+      if (null != retained)
+        retained.freeRef();
+      layer.freeRef();
+    }
+  }
+}
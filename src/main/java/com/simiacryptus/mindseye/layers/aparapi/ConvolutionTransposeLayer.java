@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.lang.RecycleBin;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Transposed convolution, the adjoint of a (strided) {@link ConvolutionLayer}. The forward pass runs the backprop
+ * kernel, and the backward pass runs the convolve and gradient kernels. With the default padding, a stride of
+ * <code>s</code> upsamples each spatial dimension by a factor of <code>s</code>.
+ */
+@SuppressWarnings("serial")
+public class ConvolutionTransposeLayer extends LayerBase {
+
+  @Nullable
+  private final Tensor kernel;
+  private final int strideX;
+  private final int strideY;
+  @Nullable
+  private Integer paddingX = null;
+  @Nullable
+  private Integer paddingY = null;
+
+  public ConvolutionTransposeLayer(final int width, final int height, final int inputBands, final int outputBands) {
+    this(width, height, inputBands, outputBands, 1);
+  }
+
+  public ConvolutionTransposeLayer(final int width, final int height, final int inputBands, final int outputBands,
+                                   final int stride) {
+    this(new Tensor(width, height, inputBands * outputBands), stride, stride);
+  }
+
+  protected ConvolutionTransposeLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> resources) {
+    super(json);
+    Tensor temp_00_0001 = Tensor.fromJson(json.get("filter"), resources);
+    kernel = temp_00_0001 == null ? null : temp_00_0001.addRef();
+    if (null != temp_00_0001)
+      temp_00_0001.freeRef();
+    strideX = json.get("strideX").getAsInt();
+    strideY = json.get("strideY").getAsInt();
+    JsonElement paddingX = json.get("paddingX");
+    if (null != paddingX && paddingX.isJsonPrimitive())
+      this.setPaddingX(paddingX.getAsInt());
+    JsonElement paddingY = json.get("paddingY");
+    if (null != paddingY && paddingY.isJsonPrimitive())
+      this.setPaddingY(paddingY.getAsInt());
+  }
+
+  protected ConvolutionTransposeLayer(@Nonnull final Tensor kernel, final int strideX, final int strideY) {
+    super();
+    int[] dimensions = kernel.getDimensions();
+    if (dimensions.length != 3 || dimensions[0] <= 0 || dimensions[1] <= 0 || dimensions[2] <= 0) {
+      kernel.freeRef();
+      throw new IllegalArgumentException(RefArrays.toString(dimensions));
+    }
+    if (strideX <= 0 || strideY <= 0) {
+      kernel.freeRef();
+      throw new IllegalArgumentException("Stride " + strideX + "," + strideY);
+    }
+    this.kernel = kernel;
+    this.strideX = strideX;
+    this.strideY = strideY;
+  }
+
+  @Nullable
+  public Tensor getKernel() {
+    return kernel == null ? null : kernel.addRef();
+  }
+
+  @Nullable
+  public Integer getPaddingX() {
+    return paddingX;
+  }
+
+  public void setPaddingX(Integer paddingX) {
+    this.paddingX = paddingX;
+  }
+
+  @Nullable
+  public Integer getPaddingY() {
+    return paddingY;
+  }
+
+  public void setPaddingY(Integer paddingY) {
+    this.paddingY = paddingY;
+  }
+
+  public int getStrideX() {
+    return strideX;
+  }
+
+  public int getStrideY() {
+    return strideY;
+  }
+
+  public void setWeights(@Nonnull DoubleSupplier f) {
+    assert kernel != null;
+    kernel.coordStream(true).forEach(c -> {
+      kernel.set(c, f.getAsDouble());
+    });
+  }
+
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static ConvolutionTransposeLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new ConvolutionTransposeLayer(json, rs);
+  }
+
+  @Nonnull
+  public int[] getOutputDims(@Nonnull final int[] inputDims) {
+    assert kernel != null;
+    final int[] kernelDims = kernel.getDimensions();
+    if (0 != kernelDims[2] % inputDims[2])
+      throw new IllegalArgumentException(RefArrays.toString(inputDims) + " x " + RefArrays.toString(kernelDims));
+    return new int[]{
+        null == paddingX ? inputDims[0] * strideX : (inputDims[0] - 1) * strideX + kernelDims[0] - paddingX,
+        null == paddingY ? inputDims[1] * strideY : (inputDims[1] - 1) * strideY + kernelDims[1] - paddingY,
+        kernelDims[2] / inputDims[2]};
+  }
+
+  @Nonnull
+  public ConvolutionController newController(@Nonnull final int[] inputDims) {
+    assert kernel != null;
+    ConvolutionController controller = new ConvolutionController(getOutputDims(inputDims), kernel.getDimensions(),
+        paddingX, paddingY, 1, strideX, strideY);
+    assert RefArrays.equals(inputDims, controller.getOutputDims()) : RefArrays.toString(inputDims) + " != "
+        + RefArrays.toString(controller.getOutputDims());
+    return controller;
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nonnull final Result... inObj) {
+    final Result input = inObj[0].addRef();
+    RefUtil.freeRef(inObj);
+    final TensorList batch = input.getData();
+    Tensor temp_00_0002 = batch.get(0);
+    @Nonnull final int[] inputDims = temp_00_0002.getDimensions();
+    temp_00_0002.freeRef();
+    @Nonnull final ConvolutionController controller = newController(inputDims);
+    final int[] outputDims = getOutputDims(inputDims);
+    final Tensor[] output = RefIntStream.range(0, batch.length())
+        .mapToObj(dataIndex -> new Tensor(outputDims)).toArray(i -> new Tensor[i]);
+    try {
+      final double[][] inputBuffers = batch.stream().map(x -> {
+        double[] data = x.getData();
+        x.freeRef();
+        return data;
+      }).toArray(i -> new double[i][]);
+      final double[][] outputBuffers = RefArrays.stream(RefUtil.addRef(output)).map(x -> {
+        double[] data = x.getData();
+        x.freeRef();
+        return data;
+      }).toArray(i -> new double[i][]);
+      assert kernel != null;
+      controller.backprop(outputBuffers, kernel.getData(), inputBuffers);
+    } catch (@Nonnull final Throwable e) {
+      throw new RuntimeException("Error mapCoords png res " + RefArrays.toString(inputDims), e);
+    }
+    boolean alive = input.isAlive();
+    Accumulator accumulator = new Accumulator(batch, controller, inputDims, input.getAccumulator(), alive);
+    input.freeRef();
+    return new Result(new TensorArray(output), accumulator, alive || !isFrozen());
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, @Nonnull DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJsonStub();
+    assert kernel != null;
+    json.add("filter", kernel.getJson(resources, dataSerializer));
+    json.addProperty("strideX", strideX);
+    json.addProperty("strideY", strideY);
+    if (null != paddingX)
+      json.addProperty("paddingX", paddingX);
+    if (null != paddingY)
+      json.addProperty("paddingY", paddingY);
+    return json;
+  }
+
+  @Nonnull
+  @Override
+  public RefList<double[]> state() {
+    assert kernel != null;
+    return RefArrays.asList(kernel.getData());
+  }
+
+  public void _free() {
+    if (null != kernel)
+      kernel.freeRef();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  ConvolutionTransposeLayer addRef() {
+    return (ConvolutionTransposeLayer) super.addRef();
+  }
+
+  private class Accumulator extends Result.Accumulator {
+
+    private final TensorList batch;
+    private final ConvolutionController controller;
+    private final int[] inputDims;
+    private final ConvolutionTransposeLayer layer;
+    private Result.Accumulator accumulator;
+    private boolean alive;
+
+    public Accumulator(TensorList batch, ConvolutionController controller, int[] inputDims,
+                       Result.Accumulator accumulator, boolean alive) {
+      this.batch = batch;
+      this.controller = controller;
+      this.inputDims = inputDims;
+      this.layer = ConvolutionTransposeLayer.this.addRef();
+      this.accumulator = accumulator;
+      this.alive = alive;
+    }
+
+    @Override
+    public void accept(@Nonnull DeltaSet<UUID> buffer, @Nonnull TensorList error) {
+      final double[][] errorBuffers = error.stream().map(x -> {
+        double[] data = x.getData();
+        x.freeRef();
+        return data;
+      }).toArray(i -> new double[i][]);
+      error.freeRef();
+      assert kernel != null;
+      if (!isFrozen()) {
+        final double[][] inputBuffers = batch.stream().map(x -> {
+          double[] data = x.getData();
+          x.freeRef();
+          return data;
+        }).toArray(i -> new double[i][]);
+        @Nonnull final Tensor weightGradient = new Tensor(kernel.getDimensions());
+        controller.gradient(errorBuffers, weightGradient.getData(), inputBuffers);
+        Delta<UUID> kernelDelta = buffer.get(layer.getId(), kernel.addRef());
+        assert kernelDelta != null;
+        kernelDelta.addInPlace(weightGradient);
+        kernelDelta.freeRef();
+      }
+      if (alive) {
+        final int inputLength = inputDims[0] * inputDims[1] * inputDims[2];
+        final double[][] inputDeltas = RefIntStream.range(0, errorBuffers.length)
+            .mapToObj(dataIndex -> RecycleBin.DOUBLES.obtain(inputLength)).toArray(i -> new double[i][]);
+        controller.convolve(errorBuffers, kernel.getData(), inputDeltas);
+        @Nonnull
+        TensorArray tensorArray = new TensorArray(RefArrays.stream(inputDeltas)
+            .map(data -> new Tensor(data, inputDims)).toArray(i -> new Tensor[i]));
+        accumulator.accept(buffer.addRef(), tensorArray);
+      }
+      buffer.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      accumulator.freeRef();
+      batch.freeRef();
+      layer.freeRef();
+    }
+  }
+}
@@ -20,7 +20,6 @@
 package com.simiacryptus.mindseye.layers.aparapi;
 
 import com.aparapi.Kernel;
-import com.aparapi.Range;
 
 import javax.annotation.Nullable;
 
@@ -33,12 +32,27 @@ public final class ConvolveKernel extends Kernel {
   public int[] kernelOffset;
   @Nullable
   public int[] kernelSize;
+  public int groups = 1;
+  public int strideX = 1;
+  public int strideY = 1;
+  public int interleaved = 0;
   @Nullable
   public double[] output;
   @Nullable
   public int[] outputSize;
   @Nullable
   public double[] weights;
+  /**
+   * The pooling window. Any window other than 1x1, or max pooling, makes each work-item compute the convolution
+   * outputs of one window in planar layout and write only their maximum or mean, with the offset
+   * <code>dx + poolX * dy</code> of the maximum in <code>indices</code> for max pooling. The indices start as a
+   * placeholder, since the kernel references them even when it does not pool.
+   */
+  public int poolX = 1;
+  public int poolY = 1;
+  public int max = 0;
+  @Nullable
+  public int[] indices = new int[1];
 
   public ConvolveKernel() {
     super();
@@ -49,42 +63,103 @@ public final class ConvolveKernel extends Kernel {
     assert null != weights;
     assert kernelSize[0] * kernelSize[1] * kernelSize[2] == weights.length;
     assert output != null;
-    execute(Range.create(output.length, 1));
+    assert outputSize != null;
+    if (pooled()) {
+      if (outputSize[0] < poolX || outputSize[1] < poolY)
+        throw new IllegalArgumentException("Pool " + poolX + "," + poolY + " is larger than the output");
+      final int plane = outputSize[0] / poolX * (outputSize[1] / poolY);
+      execute(LaunchPlanner.getDefault().plan(outputSize[0] / poolX, outputSize[1] / poolY, output.length / plane));
+    } else if (0 != interleaved) {
+      final int row = outputSize[2] * outputSize[0];
+      execute(LaunchPlanner.getDefault().plan(outputSize[2], outputSize[0], output.length / row));
+    } else {
+      final int plane = outputSize[0] * outputSize[1];
+      execute(LaunchPlanner.getDefault().plan(outputSize[0], outputSize[1], output.length / plane));
+    }
   }
 
   @Override
   public void run() {
-    final int i = getGlobalId();
+    final int x = getGlobalId(0);
+    final int y = getGlobalId(1);
+    final int z = getGlobalId(2);
     assert outputSize != null;
-    final int os0 = outputSize[0];
-    final int os1 = os0 * outputSize[1];
-    final int os2 = os1 * outputSize[2];
-    final int batch = i / os2;
-    final int o2 = i % os2 / os1;
-    final int o1 = i % os1 / os0;
-    final int o0 = i % os0;
+    assert output != null;
+    if (pooled()) {
+      pool(x, y, z);
+    } else if (0 != interleaved) {
+      final int i = x + outputSize[2] * (y + outputSize[0] * z);
+      if (x < outputSize[2] && y < outputSize[0] && i < output.length) {
+        output[i] = run(y, z % outputSize[1], x, z / outputSize[1]);
+      }
+    } else {
+      final int i = x + outputSize[0] * (y + outputSize[1] * z);
+      if (x < outputSize[0] && y < outputSize[1] && i < output.length) {
+        output[i] = run(x, y, z % outputSize[2], z / outputSize[2]);
+      }
+    }
+  }
+
+  private boolean pooled() {
+    return 1 != poolX || 1 != poolY || 0 != max;
+  }
+
+  private void pool(final int x, final int y, final int z) {
+    assert outputSize != null;
+    assert output != null;
+    final int width = outputSize[0] / poolX;
+    final int height = outputSize[1] / poolY;
+    final int i = x + width * (y + height * z);
+    if (x < width && y < height && i < output.length) {
+      final int o2 = z % outputSize[2];
+      final int batch = z / outputSize[2];
+      double accum = 0;
+      int index = 0;
+      for (int dy = 0; dy < poolY; dy++) {
+        for (int dx = 0; dx < poolX; dx++) {
+          final double value = run(x * poolX + dx, y * poolY + dy, o2, batch);
+          if (0 == max) {
+            accum += value;
+          } else if ((0 == dx && 0 == dy) || value > accum) {
+            accum = value;
+            index = dx + poolX * dy;
+          }
+        }
+      }
+      if (0 == max) {
+        output[i] = accum / (poolX * poolY);
+      } else {
+        assert indices != null;
+        output[i] = accum;
+        indices[i] = index;
+      }
+    }
+  }
+
+  public final double run(final int o0, final int o1, final int o2, final int batch) {
+    assert outputSize != null;
+    assert inputSize != null;
+    assert kernelSize != null;
+    final int outputBandsPerGroup = outputSize[2] / groups;
+    final int inputBandsPerGroup = inputSize[2] / groups;
+    final int group = o2 / outputBandsPerGroup;
+    final int groupBand = o2 - group * outputBandsPerGroup;
 
     double accum = 0;
     assert weights != null;
-    for (int k = 0; k < weights.length; k++) {
-      if (0. != weights[k]) {
-        assert kernelSize != null;
-        final int ks0 = kernelSize[0];
-        final int ks1 = ks0 * kernelSize[1];
-        final int ks2 = ks1 * kernelSize[2];
-        final int k2 = k % ks2 / ks1;
-        final int k1 = k % ks1 / ks0;
-        final int k0 = k % ks0;
-
-        final int x = k2 - o2;
-        if (x >= 0 && 0 == x % outputSize[2]) {
-          final int i2 = x / outputSize[2];
-          assert inputSize != null;
-          if (i2 >= 0 && i2 < inputSize[2]) {
-            final int i0 = o0 - k0 + kernelOffset[0];
-            final int i1 = o1 - k1 + kernelOffset[1];
-            if (i0 >= 0 && i1 >= 0 && i1 < inputSize[1] && i0 < inputSize[0]) {
-              final int i11 = i0 + inputSize[0] * (i1 + inputSize[1] * (i2 + inputSize[2] * batch));
+    for (int b = 0; b < inputBandsPerGroup; b++) {
+      final int i2 = group * inputBandsPerGroup + b;
+      final int k2 = i2 * outputBandsPerGroup + groupBand;
+      for (int k1 = 0; k1 < kernelSize[1]; k1++) {
+        final int i1 = o1 * strideY - k1 + kernelOffset[1];
+        if (i1 >= 0 && i1 < inputSize[1]) {
+          for (int k0 = 0; k0 < kernelSize[0]; k0++) {
+            final int i0 = o0 * strideX - k0 + kernelOffset[0];
+            if (i0 >= 0 && i0 < inputSize[0]) {
+              final int k = k0 + kernelSize[0] * (k1 + kernelSize[1] * k2);
+              final int i11 = 0 != interleaved
+                  ? i2 + inputSize[2] * (i0 + inputSize[0] * (i1 + inputSize[1] * batch))
+                  : i0 + inputSize[0] * (i1 + inputSize[1] * (i2 + inputSize[2] * batch));
               assert input != null;
               accum += input[i11] * weights[k];
             }
@@ -92,8 +167,7 @@ public final class ConvolveKernel extends Kernel {
         }
       }
     }
-    assert output != null;
-    output[i] = accum;
+    return accum;
   }
 
 }
\ No newline at end of file
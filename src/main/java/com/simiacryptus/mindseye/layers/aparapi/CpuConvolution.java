@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.ref.wrappers.RefArrays;
+
+import javax.annotation.Nonnull;
+import java.nio.DoubleBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Direct convolution on the CPU, with the same buffer layout and semantics as {@link ConvolveKernel},
+ * {@link BackpropKernel} and {@link GradientKernel}. The index decoding is hoisted out of the inner loops, which
+ * reduce to contiguous row operations over {@link VectorOps}. Work is split into tasks of one item, one band and a
+ * block of rows sized to stay in cache, and run on a work-stealing {@link ForkJoinPool}. Each pass also accepts
+ * off-heap {@link DoubleBuffer}s for the activations, which are addressed by absolute index. The per-chunk partial
+ * sums of the weight gradient come from the same pool as the activations, direct or heap.
+ */
+public final class CpuConvolution {
+
+  private static final int BLOCK_BYTES = 128 * 1024;
+  private static final int TASKS_PER_THREAD = 4;
+
+  @Nonnull
+  private final int[] inputSize;
+  @Nonnull
+  private final int[] kernelSize;
+  @Nonnull
+  private final int[] outputSize;
+  @Nonnull
+  private final int[] kernelOffset;
+  private final int groups;
+  @Nonnull
+  private final VectorOps ops;
+  @Nonnull
+  private final ForkJoinPool pool;
+  @Nonnull
+  private final BufferPool<double[]> buffers;
+  @Nonnull
+  private final BufferPool<DoubleBuffer> directBuffers;
+
+  public CpuConvolution(@Nonnull final int[] inputSize, @Nonnull final int[] kernelSize, @Nonnull final int[] outputSize,
+                        @Nonnull final int[] kernelOffset, final int groups) {
+    this(inputSize, kernelSize, outputSize, kernelOffset, groups, VectorOps.INSTANCE, ForkJoinPool.commonPool());
+  }
+
+  public CpuConvolution(@Nonnull final int[] inputSize, @Nonnull final int[] kernelSize, @Nonnull final int[] outputSize,
+                        @Nonnull final int[] kernelOffset, final int groups, @Nonnull final VectorOps ops,
+                        @Nonnull final ForkJoinPool pool) {
+    this(inputSize, kernelSize, outputSize, kernelOffset, groups, ops, pool, ConvolutionController.getBuffers(),
+        ConvolutionController.getDirectBuffers());
+  }
+
+  /**
+   * Takes the partial sums of the weight gradient from the given pools, the direct one when the rows are direct.
+   */
+  public CpuConvolution(@Nonnull final int[] inputSize, @Nonnull final int[] kernelSize, @Nonnull final int[] outputSize,
+                        @Nonnull final int[] kernelOffset, final int groups, @Nonnull final VectorOps ops,
+                        @Nonnull final ForkJoinPool pool, @Nonnull final BufferPool<double[]> buffers,
+                        @Nonnull final BufferPool<DoubleBuffer> directBuffers) {
+    this.inputSize = inputSize;
+    this.kernelSize = kernelSize;
+    this.outputSize = outputSize;
+    this.kernelOffset = kernelOffset;
+    this.groups = groups;
+    this.ops = ops;
+    this.pool = pool;
+    this.buffers = buffers;
+    this.directBuffers = directBuffers;
+  }
+
+  public void convolve(@Nonnull final double[] input, @Nonnull final double[] weights, @Nonnull final double[] output) {
+    convolve(new ArrayRows(ops, input, output), weights, output.length);
+  }
+
+  public void convolve(@Nonnull final DoubleBuffer input, @Nonnull final double[] weights,
+                       @Nonnull final DoubleBuffer output) {
+    convolve(new DirectRows(ops, input, output), weights, output.capacity());
+  }
+
+  public void backprop(@Nonnull final double[] input, @Nonnull final double[] weights, @Nonnull final double[] output) {
+    backprop(new ArrayRows(ops, output, input), weights, input.length);
+  }
+
+  public void backprop(@Nonnull final DoubleBuffer input, @Nonnull final double[] weights,
+                       @Nonnull final DoubleBuffer output) {
+    backprop(new DirectRows(ops, output, input), weights, input.capacity());
+  }
+
+  public void gradient(@Nonnull final double[] input, @Nonnull final double[] weights, @Nonnull final double[] output) {
+    gradient(new ArrayRows(ops, input, output), weights, input.length);
+  }
+
+  public void gradient(@Nonnull final DoubleBuffer input, @Nonnull final double[] weights,
+                       @Nonnull final DoubleBuffer output) {
+    gradient(new DirectRows(ops, input, output), weights, input.capacity());
+  }
+
+  private void convolve(@Nonnull final Rows rows, @Nonnull final double[] weights, final int outputLength) {
+    final int items = outputLength / (outputSize[0] * outputSize[1] * outputSize[2]);
+    final int rowsPerBlock = getRowsPerBlock(outputSize[0], inputSize[0], inputSize[2] / groups);
+    final int blocks = (outputSize[1] + rowsPerBlock - 1) / rowsPerBlock;
+    forEach(items * outputSize[2] * blocks, task -> {
+      final int block = task % blocks;
+      final int o2 = task / blocks % outputSize[2];
+      final int item = task / blocks / outputSize[2];
+      convolve(rows, weights, item, o2, block * rowsPerBlock, Math.min(outputSize[1], (block + 1) * rowsPerBlock));
+    });
+  }
+
+  private void backprop(@Nonnull final Rows rows, @Nonnull final double[] weights, final int inputLength) {
+    final int items = inputLength / (inputSize[0] * inputSize[1] * inputSize[2]);
+    final int rowsPerBlock = getRowsPerBlock(inputSize[0], outputSize[0], outputSize[2] / groups);
+    final int blocks = (inputSize[1] + rowsPerBlock - 1) / rowsPerBlock;
+    forEach(items * inputSize[2] * blocks, task -> {
+      final int block = task % blocks;
+      final int i2 = task / blocks % inputSize[2];
+      final int item = task / blocks / inputSize[2];
+      backprop(rows, weights, item, i2, block * rowsPerBlock, Math.min(inputSize[1], (block + 1) * rowsPerBlock));
+    });
+  }
+
+  private void gradient(@Nonnull final Rows rows, @Nonnull final double[] weights, final int inputLength) {
+    final int items = inputLength / (inputSize[0] * inputSize[1] * inputSize[2]);
+    final int chunks = Math.max(1, Math.min(items, pool.getParallelism() * TASKS_PER_THREAD / weights.length));
+    if (1 == chunks) {
+      forEach(weights.length, k -> weights[k] = gradient(rows, k, 0, items));
+      return;
+    }
+    final int length = chunks * weights.length;
+    final DoubleBuffer partial = rows.isDirect() ? directBuffers.obtain(length)
+        : DoubleBuffer.wrap(buffers.obtain(length));
+    forEach(length, task -> {
+      final int k = task % weights.length;
+      final int chunk = task / weights.length;
+      partial.put(task, gradient(rows, k, chunk * items / chunks, (chunk + 1) * items / chunks));
+    });
+    forEach(weights.length, k -> {
+      double sum = 0;
+      for (int i = k; i < length; i += weights.length) {
+        sum += partial.get(i);
+      }
+      weights[k] = sum;
+    });
+    if (partial.isDirect()) {
+      directBuffers.recycle(partial);
+    } else {
+      buffers.recycle(partial.array());
+    }
+  }
+
+  private void convolve(@Nonnull final Rows rows, @Nonnull final double[] weights, final int item, final int o2,
+                        final int fromRow, final int toRow) {
+    final int outputBandsPerGroup = outputSize[2] / groups;
+    final int inputBandsPerGroup = inputSize[2] / groups;
+    final int group = o2 / outputBandsPerGroup;
+    final int groupBand = o2 - group * outputBandsPerGroup;
+    final int inputPlane = inputSize[0] * inputSize[1];
+    final int outputPlane = outputSize[0] * outputSize[1];
+    for (int o1 = fromRow; o1 < toRow; o1++) {
+      final int outputRow = outputSize[0] * o1 + outputPlane * (o2 + outputSize[2] * item);
+      rows.clear(outputRow, outputRow + outputSize[0]);
+      for (int b = 0; b < inputBandsPerGroup; b++) {
+        final int i2 = group * inputBandsPerGroup + b;
+        final int k2 = i2 * outputBandsPerGroup + groupBand;
+        for (int k1 = 0; k1 < kernelSize[1]; k1++) {
+          final int i1 = o1 - k1 + kernelOffset[1];
+          if (i1 < 0 || i1 >= inputSize[1]) {
+            continue;
+          }
+          final int inputRow = inputSize[0] * i1 + inputPlane * (i2 + inputSize[2] * item);
+          for (int k0 = 0; k0 < kernelSize[0]; k0++) {
+            final double weight = weights[k0 + kernelSize[0] * (k1 + kernelSize[1] * k2)];
+            final int shift = kernelOffset[0] - k0;
+            final int from = Math.max(0, -shift);
+            final int to = Math.min(outputSize[0], inputSize[0] - shift);
+            if (0. != weight && from < to) {
+              rows.axpy(weight, inputRow + from + shift, outputRow + from, to - from);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void backprop(@Nonnull final Rows rows, @Nonnull final double[] weights, final int item, final int i2,
+                        final int fromRow, final int toRow) {
+    final int outputBandsPerGroup = outputSize[2] / groups;
+    final int inputBandsPerGroup = inputSize[2] / groups;
+    final int group = i2 / inputBandsPerGroup;
+    final int inputPlane = inputSize[0] * inputSize[1];
+    final int outputPlane = outputSize[0] * outputSize[1];
+    for (int i1 = fromRow; i1 < toRow; i1++) {
+      final int inputRow = inputSize[0] * i1 + inputPlane * (i2 + inputSize[2] * item);
+      rows.clear(inputRow, inputRow + inputSize[0]);
+      for (int b = 0; b < outputBandsPerGroup; b++) {
+        final int o2 = group * outputBandsPerGroup + b;
+        final int k2 = i2 * outputBandsPerGroup + b;
+        for (int k1 = 0; k1 < kernelSize[1]; k1++) {
+          final int o1 = i1 + k1 - kernelOffset[1];
+          if (o1 < 0 || o1 >= outputSize[1]) {
+            continue;
+          }
+          final int outputRow = outputSize[0] * o1 + outputPlane * (o2 + outputSize[2] * item);
+          for (int k0 = 0; k0 < kernelSize[0]; k0++) {
+            final double weight = weights[k0 + kernelSize[0] * (k1 + kernelSize[1] * k2)];
+            final int shift = k0 - kernelOffset[0];
+            final int from = Math.max(0, -shift);
+            final int to = Math.min(inputSize[0], outputSize[0] - shift);
+            if (0. != weight && from < to) {
+              rows.axpy(weight, outputRow + from + shift, inputRow + from, to - from);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private double gradient(@Nonnull final Rows rows, final int k, final int fromItem, final int toItem) {
+    final int ks01 = kernelSize[0] * kernelSize[1];
+    final int k2 = k / ks01;
+    final int k1 = k % ks01 / kernelSize[0];
+    final int k0 = k % kernelSize[0];
+    final int outputBandsPerGroup = outputSize[2] / groups;
+    final int inputBandsPerGroup = inputSize[2] / groups;
+    final int i2 = k2 / outputBandsPerGroup;
+    final int o2 = i2 / inputBandsPerGroup * outputBandsPerGroup + k2 % outputBandsPerGroup;
+    final int inputPlane = inputSize[0] * inputSize[1];
+    final int outputPlane = outputSize[0] * outputSize[1];
+    final int shift = k0 - kernelOffset[0];
+    final int from = Math.max(0, -shift);
+    final int to = Math.min(inputSize[0], outputSize[0] - shift);
+    if (from >= to) {
+      return 0;
+    }
+    double sum = 0;
+    for (int item = fromItem; item < toItem; item++) {
+      for (int i1 = 0; i1 < inputSize[1]; i1++) {
+        final int o1 = i1 + k1 - kernelOffset[1];
+        if (o1 < 0 || o1 >= outputSize[1]) {
+          continue;
+        }
+        final int inputRow = inputSize[0] * i1 + inputPlane * (i2 + inputSize[2] * item);
+        final int outputRow = outputSize[0] * o1 + outputPlane * (o2 + outputSize[2] * item);
+        sum += rows.dot(inputRow + from, outputRow + from + shift, to - from);
+      }
+    }
+    return sum;
+  }
+
+  private int getRowsPerBlock(final int rowLength, final int sourceRowLength, final int sourceBands) {
+    final int rowBytes = Double.BYTES * (rowLength + sourceRowLength * sourceBands);
+    return Math.max(1, BLOCK_BYTES / rowBytes - kernelSize[1] + 1);
+  }
+
+  private void forEach(final int tasks, @Nonnull final IntConsumer body) {
+    forEach(pool, tasks, body);
+  }
+
+  /**
+   * Runs the tasks on the pool, split into ranges of about a quarter of the tasks per worker, or inline when there
+   * is only one task or one worker.
+   */
+  static void forEach(@Nonnull final ForkJoinPool pool, final int tasks, @Nonnull final IntConsumer body) {
+    if (1 == tasks || 1 == pool.getParallelism()) {
+      for (int task = 0; task < tasks; task++) {
+        body.accept(task);
+      }
+    } else {
+      final int grain = Math.max(1, tasks / (pool.getParallelism() * TASKS_PER_THREAD));
+      pool.invoke(new RangeTask(body, 0, tasks, grain));
+    }
+  }
+
+  /**
+   * The source and target of a pass: rows are read from the source and accumulated into, or cleared in, the target.
+   */
+  private interface Rows {
+    boolean isDirect();
+
+    void clear(int from, int to);
+
+    void axpy(double a, int sourceOffset, int targetOffset, int length);
+
+    double dot(int sourceOffset, int targetOffset, int length);
+  }
+
+  private static final class ArrayRows implements Rows {
+    @Nonnull
+    private final VectorOps ops;
+    @Nonnull
+    private final double[] source;
+    @Nonnull
+    private final double[] target;
+
+    ArrayRows(@Nonnull final VectorOps ops, @Nonnull final double[] source, @Nonnull final double[] target) {
+      this.ops = ops;
+      this.source = source;
+      this.target = target;
+    }
+
+    @Override
+    public boolean isDirect() {
+      return false;
+    }
+
+    @Override
+    public void clear(final int from, final int to) {
+      RefArrays.fill(target, from, to, 0.0);
+    }
+
+    @Override
+    public void axpy(final double a, final int sourceOffset, final int targetOffset, final int length) {
+      ops.axpy(a, source, sourceOffset, target, targetOffset, length);
+    }
+
+    @Override
+    public double dot(final int sourceOffset, final int targetOffset, final int length) {
+      return ops.dot(source, sourceOffset, target, targetOffset, length);
+    }
+  }
+
+  private static final class DirectRows implements Rows {
+    @Nonnull
+    private final VectorOps ops;
+    @Nonnull
+    private final DoubleBuffer source;
+    @Nonnull
+    private final DoubleBuffer target;
+
+    DirectRows(@Nonnull final VectorOps ops, @Nonnull final DoubleBuffer source, @Nonnull final DoubleBuffer target) {
+      this.ops = ops;
+      this.source = source;
+      this.target = target;
+    }
+
+    @Override
+    public boolean isDirect() {
+      return true;
+    }
+
+    @Override
+    public void clear(final int from, final int to) {
+      for (int i = from; i < to; i++) {
+        target.put(i, 0.0);
+      }
+    }
+
+    @Override
+    public void axpy(final double a, final int sourceOffset, final int targetOffset, final int length) {
+      ops.axpy(a, source, sourceOffset, target, targetOffset, length);
+    }
+
+    @Override
+    public double dot(final int sourceOffset, final int targetOffset, final int length) {
+      return ops.dot(source, sourceOffset, target, targetOffset, length);
+    }
+  }
+
+  private static final class RangeTask extends RecursiveAction {
+    @Nonnull
+    private final IntConsumer body;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    RangeTask(@Nonnull final IntConsumer body, final int from, final int to, final int grain) {
+      this.body = body;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= grain) {
+        for (int task = from; task < to; task++) {
+          body.accept(task);
+        }
+      } else {
+        final int mid = (from + to) >>> 1;
+        invokeAll(new RangeTask(body, from, mid, grain), new RangeTask(body, mid, to, grain));
+      }
+    }
+  }
+}
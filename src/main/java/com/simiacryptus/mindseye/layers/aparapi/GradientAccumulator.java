@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of weight gradient buffers, reused across steps. A thread takes a buffer with {@link #acquire()},
+ * adds its gradient without holding any lock and hands it back with {@link #release(double[])}; when every buffer is
+ * in use, it waits for one. {@link #drainTo(double[])} waits for the buffers in use, sums all of them in stripes of
+ * weights and returns them zeroed, with {@link #acquire()} waiting until it is done.
+ */
+public final class GradientAccumulator {
+
+  private static final int STRIPE = 4096;
+
+  private final int length;
+  private final int capacity;
+  @Nonnull
+  private final ArrayDeque<double[]> idle = new ArrayDeque<>();
+  private int buffers = 0;
+  private boolean draining = false;
+
+  public GradientAccumulator(final int length) {
+    this(length, Runtime.getRuntime().availableProcessors());
+  }
+
+  public GradientAccumulator(final int length, final int capacity) {
+    assert 0 < capacity;
+    this.length = length;
+    this.capacity = capacity;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * The number of buffers allocated so far, at most {@link #getCapacity()}.
+   */
+  public synchronized int getBuffers() {
+    return buffers;
+  }
+
+  @Nonnull
+  public synchronized double[] acquire() {
+    while (draining || idle.isEmpty() && buffers == capacity) {
+      await();
+    }
+    final double[] buffer = idle.pollFirst();
+    if (null != buffer)
+      return buffer;
+    buffers++;
+    return new double[length];
+  }
+
+  public synchronized void release(@Nonnull final double[] buffer) {
+    assert length == buffer.length;
+    idle.addFirst(buffer);
+    notifyAll();
+  }
+
+  public void drainTo(@Nonnull final double[] target) {
+    assert length == target.length;
+    final double[][] buffers;
+    synchronized (this) {
+      while (draining) {
+        await();
+      }
+      draining = true;
+      while (idle.size() < this.buffers) {
+        await();
+      }
+      buffers = idle.toArray(new double[0][]);
+    }
+    try {
+      RefIntStream.range(0, (length + STRIPE - 1) / STRIPE).parallel().forEach(stripe -> {
+        final int from = stripe * STRIPE;
+        final int to = Math.min(length, from + STRIPE);
+        for (double[] buffer : buffers) {
+          for (int i = from; i < to; i++) {
+            target[i] += buffer[i];
+          }
+          RefArrays.fill(buffer, from, to, 0.0);
+        }
+      });
+    } finally {
+      synchronized (this) {
+        draining = false;
+        notifyAll();
+      }
+    }
+  }
+
+  private void await() {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+}
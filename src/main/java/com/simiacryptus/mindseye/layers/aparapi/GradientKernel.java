@@ -20,7 +20,6 @@
 package com.simiacryptus.mindseye.layers.aparapi;
 
 import com.aparapi.Kernel;
-import com.aparapi.Range;
 
 import javax.annotation.Nullable;
 
@@ -33,6 +32,10 @@ public final class GradientKernel extends Kernel {
   public int[] kernelOffset;
   @Nullable
   public int[] kernelSize;
+  public int groups = 1;
+  public int strideX = 1;
+  public int strideY = 1;
+  public int interleaved = 0;
   @Nullable
   public double[] output;
   @Nullable
@@ -48,13 +51,19 @@ public final class GradientKernel extends Kernel {
   public void exe() {
     if (null == kernelSize)
       throw new IllegalStateException();
-    execute(Range.create(weightSize, paralellism));
+    execute(LaunchPlanner.getDefault().plan(weightSize, paralellism));
   }
 
   @Override
   public void run() {
     final int k = getGlobalId(0);
     final int threadNumber = getGlobalId(1);
+    if (k < weightSize && threadNumber < paralellism) {
+      run(k, threadNumber);
+    }
+  }
+
+  public final void run(final int k, final int threadNumber) {
     assert kernelSize != null;
     final int ks0 = kernelSize[0];
     final int ks1 = ks0 * kernelSize[1];
@@ -62,29 +71,38 @@ public final class GradientKernel extends Kernel {
     final int k1 = k % ks1 / ks0;
     final int k0 = k % ks0;
 
+    assert inputSize != null;
+    assert outputSize != null;
+    final int outputBandsPerGroup = outputSize[2] / groups;
+    final int inputBandsPerGroup = inputSize[2] / groups;
+    final int i2 = k2 / outputBandsPerGroup;
+    final int o2 = i2 / inputBandsPerGroup * outputBandsPerGroup + k2 % outputBandsPerGroup;
+    final int is0 = inputSize[0];
+    final int is1 = is0 * inputSize[1];
+    final int is2 = is1 * inputSize[2];
+
     double accum = 0.;
     assert input != null;
-    for (int i = threadNumber; i < input.length; i += paralellism) {
+    final int positions = input.length / is2 * is1;
+    for (int j = threadNumber; j < positions; j += paralellism) {
+      final int batch = j / is1;
+      final int i1 = j % is1 / is0;
+      final int i0 = j % is0;
+      final int i = 0 != interleaved
+          ? i2 + inputSize[2] * (i0 + is0 * i1 + is1 * batch)
+          : i0 + is0 * i1 + is1 * i2 + is2 * batch;
       if (0. != input[i]) {
-        assert inputSize != null;
-        final int is0 = inputSize[0];
-        final int is1 = is0 * inputSize[1];
-        final int is2 = is1 * inputSize[2];
-        final int batch = i / is2;
-        final int i2 = i % is2 / is1;
-        final int i1 = i % is1 / is0;
-        final int i0 = i % is0;
-
-        assert outputSize != null;
-        final int o2 = k2 - i2 * outputSize[2];
-        if (o2 >= 0 && o2 < outputSize[2]) {
-          final int o1 = i1 + k1 - kernelOffset[1];
-          final int o0 = i0 + k0 - kernelOffset[0];
-          if (o0 < outputSize[0] && o1 < outputSize[1] && o0 >= 0 && o1 >= 0) {
-            final int o = o0 + outputSize[0] * (o1 + outputSize[1] * (o2 + outputSize[2] * batch));
-            assert output != null;
-            accum += input[i] * output[o];
-          }
+        final int s1 = i1 + k1 - kernelOffset[1];
+        final int s0 = i0 + k0 - kernelOffset[0];
+        final int o1 = s1 / strideY;
+        final int o0 = s0 / strideX;
+        if (s0 >= 0 && s1 >= 0 && s0 == o0 * strideX && s1 == o1 * strideY && o0 < outputSize[0]
+            && o1 < outputSize[1]) {
+          final int o = 0 != interleaved
+              ? o2 + outputSize[2] * (o0 + outputSize[0] * (o1 + outputSize[1] * batch))
+              : o0 + outputSize[0] * (o1 + outputSize[1] * (o2 + outputSize[2] * batch));
+          assert output != null;
+          accum += input[i] * output[o];
         }
       }
     }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.aparapi.Kernel;
+
+import javax.annotation.Nullable;
+
+public final class HalfConvolveKernel extends Kernel {
+
+  @Nullable
+  public short[] input;
+  @Nullable
+  public int[] inputSize;
+  public int[] kernelOffset;
+  @Nullable
+  public int[] kernelSize;
+  public int groups = 1;
+  public int strideX = 1;
+  public int strideY = 1;
+  @Nullable
+  public double[] output;
+  @Nullable
+  public int[] outputSize;
+  @Nullable
+  public short[] weights;
+  @Nullable
+  public float[] halfTable;
+
+  public HalfConvolveKernel() {
+    super();
+  }
+
+  public void exe() {
+    assert null != kernelSize;
+    assert null != weights;
+    assert kernelSize[0] * kernelSize[1] * kernelSize[2] == weights.length;
+    assert output != null;
+    assert outputSize != null;
+    final int plane = outputSize[0] * outputSize[1];
+    execute(LaunchPlanner.getDefault().plan(outputSize[0], outputSize[1], output.length / plane));
+  }
+
+  @Override
+  public void run() {
+    final int o0 = getGlobalId(0);
+    final int o1 = getGlobalId(1);
+    final int z = getGlobalId(2);
+    assert outputSize != null;
+    assert output != null;
+    final int i = o0 + outputSize[0] * (o1 + outputSize[1] * z);
+    if (o0 < outputSize[0] && o1 < outputSize[1] && i < output.length) {
+      output[i] = run(o0, o1, z % outputSize[2], z / outputSize[2]);
+    }
+  }
+
+  public final double run(final int o0, final int o1, final int o2, final int batch) {
+    assert outputSize != null;
+    assert inputSize != null;
+    assert kernelSize != null;
+    final int outputBandsPerGroup = outputSize[2] / groups;
+    final int inputBandsPerGroup = inputSize[2] / groups;
+    final int group = o2 / outputBandsPerGroup;
+    final int groupBand = o2 - group * outputBandsPerGroup;
+
+    double accum = 0;
+    assert weights != null;
+    assert halfTable != null;
+    for (int b = 0; b < inputBandsPerGroup; b++) {
+      final int i2 = group * inputBandsPerGroup + b;
+      final int k2 = i2 * outputBandsPerGroup + groupBand;
+      for (int k1 = 0; k1 < kernelSize[1]; k1++) {
+        final int i1 = o1 * strideY - k1 + kernelOffset[1];
+        if (i1 >= 0 && i1 < inputSize[1]) {
+          for (int k0 = 0; k0 < kernelSize[0]; k0++) {
+            final int i0 = o0 * strideX - k0 + kernelOffset[0];
+            if (i0 >= 0 && i0 < inputSize[0]) {
+              final int k = k0 + kernelSize[0] * (k1 + kernelSize[1] * k2);
+              final int i11 = i0 + inputSize[0] * (i1 + inputSize[1] * (i2 + inputSize[2] * batch));
+              assert input != null;
+              final double x = halfTable[input[i11] & 0xffff];
+              final double w = halfTable[weights[k] & 0xffff];
+              accum += x * w;
+            }
+          }
+        }
+      }
+    }
+    return accum;
+  }
+
+}
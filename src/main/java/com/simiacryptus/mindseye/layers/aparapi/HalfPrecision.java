@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.ref.wrappers.RefIntStream;
+
+import javax.annotation.Nonnull;
+
+/**
+ * IEEE 754 binary16 storage. Values are rounded to nearest-even, so a normal value (magnitude 2^-14 to 65504)
+ * keeps a relative error of at most {@link #UNIT_ROUNDOFF}. Smaller values keep an absolute error of at most
+ * {@link #SUBNORMAL_ERROR}, and larger values overflow to infinity. A product of two rounded operands accumulated
+ * in double therefore stays within <code>(2u + u^2)</code> of the sum of absolute products, plus the subnormal
+ * term when operands are that small.
+ */
+public final class HalfPrecision {
+
+  public static final double UNIT_ROUNDOFF = 1.0 / (1 << 11);
+  public static final double SUBNORMAL_ERROR = 1.0 / (1 << 25);
+  public static final double MAX_VALUE = 65504;
+  @Nonnull
+  private static final float[] TABLE = new float[1 << 16];
+
+  static {
+    for (int i = 0; i < TABLE.length; i++) {
+      TABLE[i] = (float) toDouble((short) i);
+    }
+  }
+
+  private HalfPrecision() {
+  }
+
+  @Nonnull
+  public static float[] getTable() {
+    return TABLE;
+  }
+
+  public static short toHalf(final double value) {
+    final long bits = Double.doubleToRawLongBits(value);
+    final int sign = (int) (bits >>> 48) & 0x8000;
+    final int exponent = (int) (bits >>> 52) & 0x7ff;
+    final long mantissa = bits & 0xfffffffffffffL;
+    if (0x7ff == exponent) {
+      return (short) (sign | 0x7c00 | (0 == mantissa ? 0 : 0x200));
+    }
+    final int halfExponent = exponent - 1023 + 15;
+    if (halfExponent >= 0x1f) {
+      return (short) (sign | 0x7c00);
+    }
+    if (halfExponent <= 0) {
+      if (halfExponent < -10) {
+        return (short) sign;
+      }
+      return (short) (sign | round(mantissa | 1L << 52, 43 - halfExponent));
+    }
+    return (short) (sign | round((long) halfExponent << 52 | mantissa, 42));
+  }
+
+  public static double toDouble(final short half) {
+    final int exponent = half >> 10 & 0x1f;
+    final int mantissa = half & 0x3ff;
+    final double magnitude;
+    if (0 == exponent) {
+      magnitude = Math.scalb((double) mantissa, -24);
+    } else if (0x1f == exponent) {
+      magnitude = 0 == mantissa ? Double.POSITIVE_INFINITY : Double.NaN;
+    } else {
+      magnitude = Math.scalb((double) (0x400 | mantissa), exponent - 25);
+    }
+    return 0 == (half & 0x8000) ? magnitude : -magnitude;
+  }
+
+  public static void encode(@Nonnull final double[] from, final int fromOffset, @Nonnull final short[] to,
+                            final int toOffset, final int length) {
+    for (int i = 0; i < length; i++) {
+      to[toOffset + i] = toHalf(from[fromOffset + i]);
+    }
+  }
+
+  @Nonnull
+  public static short[] encode(@Nonnull final double[] data) {
+    final short[] half = new short[data.length];
+    encode(data, 0, half, 0, data.length);
+    return half;
+  }
+
+  @Nonnull
+  public static short[] encode(@Nonnull final double[][] items, final int offset, final int count,
+                               final int itemLength) {
+    final short[] half = new short[count * itemLength];
+    encode(items, offset, count, itemLength, half);
+    return half;
+  }
+
+  public static void encode(@Nonnull final double[][] items, final int offset, final int count, final int itemLength,
+                            @Nonnull final short[] half) {
+    assert count * itemLength <= half.length;
+    RefIntStream.range(0, count).parallel().forEach(i -> {
+      assert itemLength == items[offset + i].length;
+      encode(items[offset + i], 0, half, i * itemLength, itemLength);
+    });
+  }
+
+  public static void round(@Nonnull final double[] from, @Nonnull final double[] to) {
+    for (int i = 0; i < from.length; i++) {
+      to[i] = TABLE[toHalf(from[i]) & 0xffff];
+    }
+  }
+
+  private static long round(final long value, final int shift) {
+    final long quotient = value >>> shift;
+    final long remainder = value & (1L << shift) - 1;
+    final long halfway = 1L << shift - 1;
+    return remainder > halfway || remainder == halfway && 1 == (quotient & 1) ? quotient + 1 : quotient;
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The last source and result of one convolution pass, used to recompute only the part of the result reached by a
+ * changed region of the source. The region is either given by the caller with {@link #markDirty(int, int, int, int)}
+ * or found by comparing the source with the cached copy. Any change of shape, batch size or weights recomputes
+ * the whole result. The changed windows of every item are recomputed together in one batched pass.
+ * <p>
+ * A copy of the source is only kept while updates rely on the comparison. An update with a marked region drops it,
+ * and the next unmarked update after that recomputes in full to take a fresh copy.
+ */
+public final class IncrementalCache {
+
+  @Nonnull
+  private final Pass pass;
+  @Nullable
+  private double[][] source;
+  @Nullable
+  private double[][] result;
+  @Nullable
+  private double[] weights;
+  @Nullable
+  private int[] dirty;
+  private long recomputed;
+  private long total;
+
+  public IncrementalCache(@Nonnull final Pass pass) {
+    this.pass = pass;
+  }
+
+  /**
+   * The fraction of result positions computed since the cache was created, counting full recomputations.
+   */
+  public synchronized double getRecomputedFraction() {
+    return 0 == total ? 0 : (double) recomputed / total;
+  }
+
+  /**
+   * Restricts the next update to the given rectangle of the source, in pixels, instead of comparing the source with
+   * the cached copy. Repeated calls before an update are merged into their bounding rectangle.
+   */
+  public synchronized void markDirty(final int x, final int y, final int width, final int height) {
+    if (width <= 0 || height <= 0)
+      return;
+    if (null == dirty) {
+      dirty = new int[]{x, y, x + width, y + height};
+    } else {
+      dirty[0] = Math.min(dirty[0], x);
+      dirty[1] = Math.min(dirty[1], y);
+      dirty[2] = Math.max(dirty[2], x + width);
+      dirty[3] = Math.max(dirty[3], y + height);
+    }
+  }
+
+  public synchronized void invalidate() {
+    source = null;
+    result = null;
+    weights = null;
+    dirty = null;
+  }
+
+  public synchronized void apply(@Nonnull final ConvolutionController controller, @Nonnull final double[][] source,
+                                 @Nonnull final double[] weights, @Nonnull final double[][] result) {
+    final int[] given = dirty;
+    dirty = null;
+    final int resultLength = result.length * result[0].length;
+    if (!isValid(controller, source, weights) || null == given && null == this.source) {
+      pass.run(controller, source, weights, result);
+      this.source = null == given ? copy(source) : null;
+      this.result = copy(result);
+      this.weights = weights.clone();
+      recomputed += resultLength;
+      total += resultLength;
+      return;
+    }
+    assert this.result != null;
+    assert null != given || null != this.source;
+    final int[] sourceSize = pass.getSourceSize(controller);
+    final int[] resultSize = pass.getResultSize(controller);
+    final int[] kernelSize = controller.getKernelSize();
+    final int[] kernelOffset = controller.getKernelOffset();
+    final int[][] windows = new int[source.length][];
+    boolean changed = false;
+    for (int item = 0; item < source.length; item++) {
+      RefSystem.arraycopy(this.result[item], 0, result[item], 0, result[item].length);
+      final int[] box = null != given ? given : findChange(this.source[item], source[item], sourceSize);
+      if (null == box)
+        continue;
+      final int[] window = pass.getWindow(box, kernelSize, kernelOffset);
+      window[0] = Math.max(0, window[0]);
+      window[1] = Math.max(0, window[1]);
+      window[2] = Math.min(resultSize[0], window[2]);
+      window[3] = Math.min(resultSize[1], window[3]);
+      if (window[0] < window[2] && window[1] < window[3]) {
+        windows[item] = window;
+        changed = true;
+        recomputed += (long) (window[2] - window[0]) * (window[3] - window[1]) * resultSize[2];
+      }
+    }
+    if (changed)
+      pass.run(controller, source, weights, result, windows);
+    for (int item = 0; item < source.length; item++) {
+      if (null == windows[item])
+        continue;
+      if (null == given) {
+        RefSystem.arraycopy(source[item], 0, this.source[item], 0, source[item].length);
+      }
+      RefSystem.arraycopy(result[item], 0, this.result[item], 0, result[item].length);
+    }
+    if (null != given)
+      this.source = null;
+    total += resultLength;
+  }
+
+  private boolean isValid(@Nonnull final ConvolutionController controller, @Nonnull final double[][] source,
+                          @Nonnull final double[] weights) {
+    if (null == this.result || null == this.weights || controller.isStrided())
+      return false;
+    final int[] sourceSize = pass.getSourceSize(controller);
+    if (this.result.length != source.length || sourceSize[0] * sourceSize[1] * sourceSize[2] != source[0].length)
+      return false;
+    final int[] resultSize = pass.getResultSize(controller);
+    if (this.result[0].length != resultSize[0] * resultSize[1] * resultSize[2])
+      return false;
+    return RefArrays.equals(this.weights, weights);
+  }
+
+  @Nullable
+  private static int[] findChange(@Nonnull final double[] cached, @Nonnull final double[] current,
+                                  @Nonnull final int[] size) {
+    int x0 = size[0], y0 = size[1], x1 = 0, y1 = 0;
+    for (int band = 0; band < size[2]; band++) {
+      for (int y = 0; y < size[1]; y++) {
+        final int row = size[0] * (y + size[1] * band);
+        for (int x = 0; x < size[0]; x++) {
+          if (cached[row + x] != current[row + x]) {
+            x0 = Math.min(x0, x);
+            y0 = Math.min(y0, y);
+            x1 = Math.max(x1, x + 1);
+            y1 = Math.max(y1, y + 1);
+          }
+        }
+      }
+    }
+    return x0 < x1 ? new int[]{x0, y0, x1, y1} : null;
+  }
+
+  @Nonnull
+  private static double[][] copy(@Nonnull final double[][] data) {
+    final double[][] copy = new double[data.length][];
+    for (int i = 0; i < data.length; i++) {
+      copy[i] = data[i].clone();
+    }
+    return copy;
+  }
+
+  /**
+   * Which pass the cache serves: {@link #FORWARD} maps the layer input to its output, {@link #BACKWARD} maps the
+   * output delta to the input delta.
+   */
+  public enum Pass {
+    FORWARD {
+      @Nonnull
+      @Override
+      int[] getSourceSize(@Nonnull final ConvolutionController controller) {
+        return controller.getInputDims();
+      }
+
+      @Nonnull
+      @Override
+      int[] getResultSize(@Nonnull final ConvolutionController controller) {
+        return controller.getOutputDims();
+      }
+
+      @Nonnull
+      @Override
+      int[] getWindow(@Nonnull final int[] box, @Nonnull final int[] kernelSize, @Nonnull final int[] kernelOffset) {
+        return new int[]{box[0] - kernelOffset[0], box[1] - kernelOffset[1],
+            box[2] + kernelSize[0] - 1 - kernelOffset[0], box[3] + kernelSize[1] - 1 - kernelOffset[1]};
+      }
+
+      @Override
+      void run(@Nonnull final ConvolutionController controller, @Nonnull final double[][] source,
+               @Nonnull final double[] weights, @Nonnull final double[][] result) {
+        controller.convolve(source, weights, result);
+      }
+
+      @Override
+      void run(@Nonnull final ConvolutionController controller, @Nonnull final double[][] source,
+               @Nonnull final double[] weights, @Nonnull final double[][] result, @Nonnull final int[][] windows) {
+        controller.convolve(source, weights, result, windows);
+      }
+    },
+    BACKWARD {
+      @Nonnull
+      @Override
+      int[] getSourceSize(@Nonnull final ConvolutionController controller) {
+        return controller.getOutputDims();
+      }
+
+      @Nonnull
+      @Override
+      int[] getResultSize(@Nonnull final ConvolutionController controller) {
+        return controller.getInputDims();
+      }
+
+      @Nonnull
+      @Override
+      int[] getWindow(@Nonnull final int[] box, @Nonnull final int[] kernelSize, @Nonnull final int[] kernelOffset) {
+        return new int[]{box[0] - kernelSize[0] + 1 + kernelOffset[0], box[1] - kernelSize[1] + 1 + kernelOffset[1],
+            box[2] + kernelOffset[0], box[3] + kernelOffset[1]};
+      }
+
+      @Override
+      void run(@Nonnull final ConvolutionController controller, @Nonnull final double[][] source,
+               @Nonnull final double[] weights, @Nonnull final double[][] result) {
+        controller.backprop(result, weights, source);
+      }
+
+      @Override
+      void run(@Nonnull final ConvolutionController controller, @Nonnull final double[][] source,
+               @Nonnull final double[] weights, @Nonnull final double[][] result, @Nonnull final int[][] windows) {
+        controller.backprop(result, weights, source, windows);
+      }
+    };
+
+    @Nonnull
+    abstract int[] getSourceSize(@Nonnull ConvolutionController controller);
+
+    @Nonnull
+    abstract int[] getResultSize(@Nonnull ConvolutionController controller);
+
+    @Nonnull
+    abstract int[] getWindow(@Nonnull int[] box, @Nonnull int[] kernelSize, @Nonnull int[] kernelOffset);
+
+    abstract void run(@Nonnull ConvolutionController controller, @Nonnull double[][] source, @Nonnull double[] weights,
+                      @Nonnull double[][] result);
+
+    abstract void run(@Nonnull ConvolutionController controller, @Nonnull double[][] source, @Nonnull double[] weights,
+                      @Nonnull double[][] result, @Nonnull int[][] windows);
+  }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefArrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Replaces a {@link ConvolutionLayer} by two cheaper convolutions whose composition approximates its kernel, for
+ * inference. The kernel is reshaped into a matrix and truncated to the smallest rank whose relative Frobenius error
+ * is within the tolerance; the mode with the fewest multiply-adds per output pixel is kept, and the layer is left
+ * dense when no mode is cheaper. Like folding, the result is frozen.
+ */
+public final class KernelDecomposition extends ReferenceCountingBase {
+
+  private static final int MAX_SWEEPS = 64;
+
+  @Nonnull
+  private final Mode mode;
+  private final int rank;
+  private final double error;
+  private final double speedup;
+  @Nonnull
+  private final Layer layer;
+
+  private KernelDecomposition(@Nonnull final Mode mode, final int rank, final double error, final double speedup,
+                              @Nonnull final Layer layer) {
+    this.mode = mode;
+    this.rank = rank;
+    this.error = error;
+    this.speedup = speedup;
+    this.layer = layer;
+  }
+
+  @Nonnull
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * The number of intermediate bands between the two passes, or zero when the layer was left dense.
+   */
+  public int getRank() {
+    return rank;
+  }
+
+  /**
+   * The Frobenius norm of the kernel error, relative to the norm of the kernel.
+   */
+  public double getError() {
+    return error;
+  }
+
+  /**
+   * The ratio of multiply-adds per output pixel of the original layer to those of the replacement, ignoring borders.
+   */
+  public double getSpeedup() {
+    return speedup;
+  }
+
+  @Nonnull
+  public Layer getLayer() {
+    return layer.addRef();
+  }
+
+  @Nonnull
+  public static KernelDecomposition decompose(@Nonnull final ConvolutionLayer convolution, final int inputBands,
+                                              final double tolerance) {
+    final Tensor kernel = convolution.getKernel();
+    assert kernel != null;
+    final int[] kernelDims = kernel.getDimensions();
+    if (1 != convolution.getGroups() || 0 >= inputBands || 0 != kernelDims[2] % inputBands) {
+      kernel.freeRef();
+      convolution.freeRef();
+      throw new IllegalArgumentException("Cannot decompose " + RefArrays.toString(kernelDims) + " over "
+          + inputBands + " input bands in " + convolution.getGroups() + " groups");
+    }
+    final double[] weights = RefArrays.copyOf(kernel.getData(), kernel.length());
+    kernel.freeRef();
+    final int[] dims = {kernelDims[0], kernelDims[1], inputBands, kernelDims[2] / inputBands};
+    final double dense = (double) dims[0] * dims[1] * dims[2] * dims[3];
+    Mode best = Mode.DENSE;
+    @Nullable
+    Factors bestFactors = null;
+    int bestRank = 0;
+    double bestCost = dense;
+    for (Mode mode : new Mode[]{Mode.SEPARABLE, Mode.PROJECTION}) {
+      final int[] first = mode.getFirstSize(dims[0], dims[1]);
+      final Factors factors = factor(mode.reshape(weights, dims), first[0] * first[1] * dims[2],
+          dims[0] * dims[1] / (first[0] * first[1]) * dims[3]);
+      final int rank = factors.getRank(tolerance);
+      final double cost = mode.getCost(dims, rank);
+      if (cost < bestCost) {
+        best = mode;
+        bestFactors = factors;
+        bestRank = rank;
+        bestCost = cost;
+      }
+    }
+    if (null == bestFactors) {
+      return new KernelDecomposition(Mode.DENSE, 0, 0, 1, convolution);
+    }
+    final int[] first = best.getFirstSize(dims[0], dims[1]);
+    final int[] second = {dims[0] / first[0], dims[1] / first[1]};
+    final int firstPlane = first[0] * first[1];
+    final int secondPlane = second[0] * second[1];
+    final double[] firstWeights = new double[firstPlane * dims[2] * bestRank];
+    final double[] secondWeights = new double[secondPlane * bestRank * dims[3]];
+    for (int m = 0; m < bestRank; m++) {
+      final double[] left = bestFactors.left[m];
+      final double[] right = bestFactors.right[m];
+      for (int row = 0; row < left.length; row++) {
+        firstWeights[row % firstPlane + firstPlane * (row / firstPlane * bestRank + m)] = left[row];
+      }
+      for (int col = 0; col < right.length; col++) {
+        secondWeights[col % secondPlane + secondPlane * (m * dims[3] + col / secondPlane)] = right[col];
+      }
+    }
+    final double error = getError(best.reshape(weights, dims), bestFactors, bestRank);
+    final ConvolutionLayer firstLayer = new ConvolutionLayer(
+        new Tensor(firstWeights, first[0], first[1], dims[2] * bestRank), true);
+    firstLayer.setPaddingX(1 == first[0] ? null : convolution.getPaddingX());
+    firstLayer.setPaddingY(1 == first[1] ? null : convolution.getPaddingY());
+    firstLayer.setFrozen(true);
+    final ConvolutionLayer secondLayer = new ConvolutionLayer(
+        new Tensor(secondWeights, second[0], second[1], bestRank * dims[3]), true);
+    secondLayer.setPaddingX(1 == first[0] ? convolution.getPaddingX() : null);
+    secondLayer.setPaddingY(1 == first[1] ? convolution.getPaddingY() : null);
+    final double[] bias = convolution.getBias();
+    secondLayer.setBias(null == bias ? null : RefArrays.copyOf(bias, bias.length));
+    secondLayer.setFrozen(true);
+    convolution.freeRef();
+    return new KernelDecomposition(best, bestRank, error, dense / bestCost,
+        new ConvolutionChainLayer(firstLayer, secondLayer));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("KernelDecomposition [%s, rank %d, error %.3e, speedup %.2fx]", mode, rank, error, speedup);
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  KernelDecomposition addRef() {
+    return (KernelDecomposition) super.addRef();
+  }
+
+  @Override
+  protected void _free() {
+    layer.freeRef();
+    super._free();
+  }
+
+  /**
+   * Factors a row-major matrix as a sum of outer products, in decreasing order of energy, through the eigenvectors
+   * of its smaller Gram matrix.
+   */
+  @Nonnull
+  private static Factors factor(@Nonnull final double[] matrix, final int rows, final int cols) {
+    final boolean byRows = rows <= cols;
+    final int n = byRows ? rows : cols;
+    final double[] gram = new double[n * n];
+    for (int a = 0; a < n; a++) {
+      for (int b = a; b < n; b++) {
+        double sum = 0;
+        if (byRows) {
+          for (int j = 0; j < cols; j++) {
+            sum += matrix[a * cols + j] * matrix[b * cols + j];
+          }
+        } else {
+          for (int i = 0; i < rows; i++) {
+            sum += matrix[i * cols + a] * matrix[i * cols + b];
+          }
+        }
+        gram[a * n + b] = sum;
+        gram[b * n + a] = sum;
+      }
+    }
+    final double[] vectors = new double[n * n];
+    eigen(gram, vectors, n);
+    final int[] order = new int[n];
+    for (int j = 0; j < n; j++) {
+      int i = j;
+      for (; i > 0 && gram[order[i - 1] * (n + 1)] < gram[j * (n + 1)]; i--) {
+        order[i] = order[i - 1];
+      }
+      order[i] = j;
+    }
+    final double[] energy = new double[n];
+    final double[][] left = new double[n][];
+    final double[][] right = new double[n][];
+    for (int j = 0; j < n; j++) {
+      final int column = order[j];
+      energy[j] = Math.max(0, gram[column * n + column]);
+      final double[] unit = new double[n];
+      for (int i = 0; i < n; i++) {
+        unit[i] = vectors[i * n + column];
+      }
+      final double[] projected = new double[byRows ? cols : rows];
+      for (int i = 0; i < rows; i++) {
+        for (int c = 0; c < cols; c++) {
+          if (byRows) {
+            projected[c] += unit[i] * matrix[i * cols + c];
+          } else {
+            projected[i] += matrix[i * cols + c] * unit[c];
+          }
+        }
+      }
+      left[j] = byRows ? unit : projected;
+      right[j] = byRows ? projected : unit;
+    }
+    double total = 0;
+    for (double value : matrix) {
+      total += value * value;
+    }
+    return new Factors(energy, total, left, right);
+  }
+
+  /**
+   * Diagonalizes a symmetric matrix in place with cyclic Jacobi rotations, accumulating the eigenvectors as columns.
+   */
+  private static void eigen(@Nonnull final double[] matrix, @Nonnull final double[] vectors, final int n) {
+    for (int i = 0; i < n; i++) {
+      vectors[i * n + i] = 1;
+    }
+    for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+      double off = 0;
+      double diagonal = 0;
+      for (int p = 0; p < n; p++) {
+        diagonal += matrix[p * n + p] * matrix[p * n + p];
+        for (int q = p + 1; q < n; q++) {
+          off += matrix[p * n + q] * matrix[p * n + q];
+        }
+      }
+      if (off <= 1e-30 * diagonal)
+        return;
+      for (int p = 0; p < n; p++) {
+        for (int q = p + 1; q < n; q++) {
+          final double apq = matrix[p * n + q];
+          if (0 == apq)
+            continue;
+          final double theta = (matrix[q * n + q] - matrix[p * n + p]) / (2 * apq);
+          final double t = (theta < 0 ? -1 : 1) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+          final double c = 1 / Math.sqrt(t * t + 1);
+          final double s = t * c;
+          for (int k = 0; k < n; k++) {
+            final double akp = matrix[k * n + p];
+            final double akq = matrix[k * n + q];
+            matrix[k * n + p] = c * akp - s * akq;
+            matrix[k * n + q] = s * akp + c * akq;
+          }
+          for (int k = 0; k < n; k++) {
+            final double apk = matrix[p * n + k];
+            final double aqk = matrix[q * n + k];
+            matrix[p * n + k] = c * apk - s * aqk;
+            matrix[q * n + k] = s * apk + c * aqk;
+          }
+          matrix[p * n + q] = 0;
+          matrix[q * n + p] = 0;
+          for (int k = 0; k < n; k++) {
+            final double vkp = vectors[k * n + p];
+            final double vkq = vectors[k * n + q];
+            vectors[k * n + p] = c * vkp - s * vkq;
+            vectors[k * n + q] = s * vkp + c * vkq;
+          }
+        }
+      }
+    }
+  }
+
+  private static double getError(@Nonnull final double[] matrix, @Nonnull final Factors factors, final int rank) {
+    final int cols = factors.right[0].length;
+    double residual = 0;
+    for (int i = 0; i < matrix.length; i++) {
+      double value = matrix[i];
+      for (int m = 0; m < rank; m++) {
+        value -= factors.left[m][i / cols] * factors.right[m][i % cols];
+      }
+      residual += value * value;
+    }
+    return 0 == factors.total ? 0 : Math.sqrt(residual / factors.total);
+  }
+
+  /**
+   * How the kernel is split. {@link #DENSE} keeps the original layer, {@link #SEPARABLE} runs a vertical pass into
+   * the intermediate bands and then a horizontal pass, {@link #PROJECTION} projects the input bands with a 1x1 pass
+   * and then runs the full spatial kernel on the projection.
+   */
+  public enum Mode {
+    DENSE,
+    SEPARABLE,
+    PROJECTION;
+
+    /**
+     * The spatial size of the first pass kernel; the second pass covers the remaining axes.
+     */
+    @Nonnull
+    int[] getFirstSize(final int width, final int height) {
+      return new int[]{1, SEPARABLE == this ? height : 1};
+    }
+
+    double getCost(@Nonnull final int[] dims, final int rank) {
+      final int[] first = getFirstSize(dims[0], dims[1]);
+      final int firstPlane = first[0] * first[1];
+      return (double) firstPlane * dims[2] * rank + (double) dims[0] * dims[1] / firstPlane * rank * dims[3];
+    }
+
+    /**
+     * Lays the kernel out as a matrix whose rows index the first pass and whose columns index the second.
+     */
+    @Nonnull
+    double[] reshape(@Nonnull final double[] weights, @Nonnull final int[] dims) {
+      final int[] first = getFirstSize(dims[0], dims[1]);
+      final int firstPlane = first[0] * first[1];
+      final int[] second = {dims[0] / first[0], dims[1] / first[1]};
+      final int secondPlane = second[0] * second[1];
+      final int cols = secondPlane * dims[3];
+      final double[] matrix = new double[weights.length];
+      for (int i = 0; i < dims[2]; i++) {
+        for (int o = 0; o < dims[3]; o++) {
+          for (int k1 = 0; k1 < dims[1]; k1++) {
+            for (int k0 = 0; k0 < dims[0]; k0++) {
+              final int row = (1 == second[0] ? k0 : 0) + first[0] * (1 == second[1] ? k1 : 0) + firstPlane * i;
+              final int col = (1 == first[0] ? k0 : 0) + second[0] * (1 == first[1] ? k1 : 0) + secondPlane * o;
+              matrix[row * cols + col] = weights[k0 + dims[0] * (k1 + dims[1] * (i * dims[3] + o))];
+            }
+          }
+        }
+      }
+      return matrix;
+    }
+  }
+
+  private static final class Factors {
+    @Nonnull
+    private final double[] energy;
+    private final double total;
+    @Nonnull
+    private final double[][] left;
+    @Nonnull
+    private final double[][] right;
+
+    private Factors(@Nonnull final double[] energy, final double total, @Nonnull final double[][] left,
+                    @Nonnull final double[][] right) {
+      this.energy = energy;
+      this.total = total;
+      this.left = left;
+      this.right = right;
+    }
+
+    /**
+     * The smallest rank whose dropped energy keeps the relative error within the tolerance, and at least one.
+     */
+    private int getRank(final double tolerance) {
+      double kept = 0;
+      for (int rank = 1; rank <= energy.length; rank++) {
+        kept += energy[rank - 1];
+        if (total - kept <= tolerance * tolerance * total)
+          return rank;
+      }
+      return energy.length;
+    }
+  }
+}
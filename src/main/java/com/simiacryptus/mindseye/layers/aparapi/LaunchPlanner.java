@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.aparapi.Range;
+import com.aparapi.device.Device;
+import com.aparapi.device.OpenCLDevice;
+import com.aparapi.internal.kernel.KernelManager;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Chooses the launch geometry of the kernels. Work-groups grow along x first, for contiguous access, then y and z,
+ * within the device's work-group and work-item limits and never past the extent of a dimension. Global sizes are
+ * padded up to a multiple of the work-group, so kernels must skip ids outside the requested extent. Java devices
+ * keep work-groups of one, since Aparapi runs one thread per work-item of a group there.
+ */
+public final class LaunchPlanner {
+
+  private static final Logger log = LoggerFactory.getLogger(LaunchPlanner.class);
+  @Nullable
+  private static volatile LaunchPlanner defaultPlanner;
+
+  private final int maxWorkGroupSize;
+  @Nonnull
+  private final int[] maxWorkItemSize;
+
+  public LaunchPlanner(final int maxWorkGroupSize, @Nonnull final int[] maxWorkItemSize) {
+    assert 0 < maxWorkGroupSize;
+    this.maxWorkGroupSize = maxWorkGroupSize;
+    this.maxWorkItemSize = new int[]{
+        0 < maxWorkItemSize.length ? maxWorkItemSize[0] : 1,
+        1 < maxWorkItemSize.length ? maxWorkItemSize[1] : 1,
+        2 < maxWorkItemSize.length ? maxWorkItemSize[2] : 1};
+  }
+
+  @Nonnull
+  public static LaunchPlanner getDefault() {
+    LaunchPlanner planner = defaultPlanner;
+    if (null == planner) {
+      synchronized (LaunchPlanner.class) {
+        planner = defaultPlanner;
+        if (null == planner) {
+          planner = create(getBestDevice());
+          log.info("Launch planner: " + planner);
+          defaultPlanner = planner;
+        }
+      }
+    }
+    return planner;
+  }
+
+  public static void setDefault(@Nullable LaunchPlanner planner) {
+    defaultPlanner = planner;
+  }
+
+  @Nonnull
+  public static LaunchPlanner create(@Nullable final Device device) {
+    if (!(device instanceof OpenCLDevice)) {
+      return new LaunchPlanner(1, new int[]{1, 1, 1});
+    }
+    final int[] maxWorkItemSize = device.getMaxWorkItemSize();
+    final int[] limits = new int[Math.min(Math.min(3, device.getMaxWorkItemDimensions()), maxWorkItemSize.length)];
+    RefSystem.arraycopy(maxWorkItemSize, 0, limits, 0, limits.length);
+    return new LaunchPlanner(device.getMaxWorkGroupSize(), limits);
+  }
+
+  public int getMaxWorkGroupSize() {
+    return maxWorkGroupSize;
+  }
+
+  @Nonnull
+  public int[] getLocalSize(@Nonnull final int... extent) {
+    assert extent.length <= 3;
+    final int[] local = new int[extent.length];
+    int size = 1;
+    for (int d = 0; d < extent.length; d++) {
+      local[d] = 1;
+      while (size * 2 <= maxWorkGroupSize && local[d] * 2 <= maxWorkItemSize[d] && local[d] * 2 <= extent[d]) {
+        local[d] *= 2;
+        size *= 2;
+      }
+    }
+    return local;
+  }
+
+  @Nonnull
+  public Range plan(final int width, final int height) {
+    final int[] local = getLocalSize(width, height);
+    return Range.create2D(pad(width, local[0]), pad(height, local[1]), local[0], local[1]);
+  }
+
+  @Nonnull
+  public Range plan(final int width, final int height, final int depth) {
+    final int[] local = getLocalSize(width, height, depth);
+    return Range.create3D(pad(width, local[0]), pad(height, local[1]), pad(depth, local[2]), local[0], local[1],
+        local[2]);
+  }
+
+  @Override
+  public String toString() {
+    return "LaunchPlanner [" + maxWorkGroupSize + " / " + RefArrays.toString(maxWorkItemSize) + "]";
+  }
+
+  private static int pad(final int extent, final int local) {
+    return (extent + local - 1) / local * local;
+  }
+
+  @Nullable
+  private static Device getBestDevice() {
+    try {
+      return KernelManager.instance().bestDevice();
+    } catch (@Nonnull final Throwable e) {
+      log.debug("No device for launch planning: " + e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefArrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent single-item inference calls on one layer into batched evaluations. The first caller for a
+ * given input shape opens a batch and waits up to the configured delay, or until the batch is full, while later
+ * callers join it; it then evaluates the whole batch at once and each caller takes its own output.
+ */
+public final class MicroBatcher extends ReferenceCountingBase {
+
+  @Nonnull
+  private final Layer layer;
+  private final long maxDelayNanos;
+  private final int maxBatch;
+  @Nonnull
+  private final Map<String, Batch> open = new HashMap<>();
+  @Nonnull
+  private final AtomicLong batches = new AtomicLong();
+  @Nonnull
+  private final AtomicLong items = new AtomicLong();
+
+  public MicroBatcher(@Nonnull final Layer layer, final long maxDelay, @Nonnull final TimeUnit unit,
+                      final int maxBatch) {
+    if (maxBatch <= 0) {
+      layer.freeRef();
+      throw new IllegalArgumentException("Batch size " + maxBatch);
+    }
+    this.layer = layer;
+    this.maxDelayNanos = unit.toNanos(maxDelay);
+    this.maxBatch = maxBatch;
+  }
+
+  public int getMaxBatch() {
+    return maxBatch;
+  }
+
+  public long getMaxDelay(@Nonnull final TimeUnit unit) {
+    return unit.convert(maxDelayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  public long getItemCount() {
+    return items.get();
+  }
+
+  @Nonnull
+  public Tensor eval(@Nonnull final Tensor input) {
+    final String key = RefArrays.toString(input.getDimensions());
+    final Batch batch;
+    final int index;
+    final boolean leader;
+    synchronized (open) {
+      Batch current = open.get(key);
+      leader = null == current;
+      if (leader) {
+        current = new Batch(System.nanoTime() + maxDelayNanos);
+        open.put(key, current);
+      }
+      index = current.inputs.size();
+      current.inputs.add(input);
+      if (current.inputs.size() >= maxBatch) {
+        open.remove(key);
+        open.notifyAll();
+      }
+      batch = current;
+    }
+    if (leader) {
+      close(key, batch);
+      batch.run(layer);
+      batches.incrementAndGet();
+      items.addAndGet(batch.inputs.size());
+    }
+    return batch.get(index);
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  MicroBatcher addRef() {
+    return (MicroBatcher) super.addRef();
+  }
+
+  @Override
+  protected void _free() {
+    layer.freeRef();
+    super._free();
+  }
+
+  private void close(@Nonnull final String key, @Nonnull final Batch batch) {
+    boolean interrupted = false;
+    synchronized (open) {
+      long remaining;
+      while (open.get(key) == batch && (remaining = batch.deadline - System.nanoTime()) > 0) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(open, remaining);
+        } catch (InterruptedException e) {
+          interrupted = true;
+          break;
+        }
+      }
+      if (open.get(key) == batch)
+        open.remove(key);
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  private static final class Batch {
+    private final long deadline;
+    @Nonnull
+    private final List<Tensor> inputs = new ArrayList<>();
+    @Nullable
+    private Tensor[] outputs;
+    @Nullable
+    private Throwable error;
+
+    private Batch(final long deadline) {
+      this.deadline = deadline;
+    }
+
+    private void run(@Nonnull final Layer layer) {
+      Tensor[] outputs = null;
+      Throwable error = null;
+      try {
+        final Result result = layer.eval(new ConstantResult(new TensorArray(inputs.toArray(new Tensor[0]))));
+        final TensorList data = result.getData();
+        outputs = new Tensor[data.length()];
+        for (int i = 0; i < outputs.length; i++) {
+          outputs[i] = data.get(i);
+        }
+        data.freeRef();
+        result.freeRef();
+      } catch (Throwable e) {
+        error = e;
+      }
+      synchronized (this) {
+        this.outputs = outputs;
+        this.error = error;
+        notifyAll();
+      }
+    }
+
+    @Nonnull
+    private synchronized Tensor get(final int index) {
+      boolean interrupted = false;
+      while (null == outputs && null == error) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted)
+        Thread.currentThread().interrupt();
+      if (null != error)
+        throw new RuntimeException("Error in batch of " + inputs.size(), error);
+      assert outputs != null;
+      final Tensor output = outputs[index];
+      outputs[index] = null;
+      return output;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.ref.wrappers.RefArrays;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A 1x1 convolution without padding or stride on the CPU, with the same planar layout and semantics as
+ * {@link CpuConvolution}. Each band of an item is one contiguous row of pixels, so every pass is a matrix product
+ * between the band rows and the weight matrix. The products are blocked so that a run of pixels from a block of
+ * target bands stays in cache while every source band is added into it, and each source row is read once per
+ * block instead of once per target band. The weight gradient is also split over pixels when the band blocks alone
+ * cannot keep the pool busy.
+ */
+public final class PointwiseConvolution {
+
+  private static final int BLOCK_BYTES = 32 * 1024;
+  private static final int BAND_BLOCK = 16;
+  private static final int TASKS_PER_THREAD = 4;
+
+  private final int inputBands;
+  private final int outputBands;
+  private final int plane;
+  private final int groups;
+  @Nonnull
+  private final VectorOps ops;
+  @Nonnull
+  private final ForkJoinPool pool;
+  @Nonnull
+  private final BufferPool<double[]> buffers;
+
+  public PointwiseConvolution(final int inputBands, final int outputBands, final int plane, final int groups) {
+    this(inputBands, outputBands, plane, groups, VectorOps.INSTANCE, ForkJoinPool.commonPool());
+  }
+
+  public PointwiseConvolution(final int inputBands, final int outputBands, final int plane, final int groups,
+                              @Nonnull final VectorOps ops, @Nonnull final ForkJoinPool pool) {
+    this(inputBands, outputBands, plane, groups, ops, pool, ConvolutionController.getBuffers());
+  }
+
+  /**
+   * Takes the partial sums of a split weight gradient from the given pool.
+   */
+  public PointwiseConvolution(final int inputBands, final int outputBands, final int plane, final int groups,
+                              @Nonnull final VectorOps ops, @Nonnull final ForkJoinPool pool,
+                              @Nonnull final BufferPool<double[]> buffers) {
+    assert 0 == inputBands % groups && 0 == outputBands % groups;
+    this.inputBands = inputBands;
+    this.outputBands = outputBands;
+    this.plane = plane;
+    this.groups = groups;
+    this.ops = ops;
+    this.pool = pool;
+    this.buffers = buffers;
+  }
+
+  public void convolve(@Nonnull final double[] input, @Nonnull final double[] weights, @Nonnull final double[] output) {
+    multiply(input, inputBands, output, outputBands, weights, outputBands / groups, 1);
+  }
+
+  public void backprop(@Nonnull final double[] input, @Nonnull final double[] weights, @Nonnull final double[] output) {
+    multiply(output, outputBands, input, inputBands, weights, 1, outputBands / groups);
+  }
+
+  /**
+   * Splits the weight gradient into blocks of band pairs and, when there are too few blocks to keep the pool busy,
+   * also into ranges of pixel chunks whose partial sums are added up at the end.
+   */
+  public void gradient(@Nonnull final double[] input, @Nonnull final double[] weights, @Nonnull final double[] output) {
+    final int items = input.length / (plane * inputBands);
+    final int blocks = groups * getBlocks(inputBands / groups) * getBlocks(outputBands / groups);
+    final int chunk = getPixelsPerBlock(2 * BAND_BLOCK);
+    final int chunksPerItem = (plane + chunk - 1) / chunk;
+    final int units = items * chunksPerItem;
+    final int splits = Math.max(1, Math.min(units, pool.getParallelism() * TASKS_PER_THREAD / blocks));
+    if (1 == splits) {
+      CpuConvolution.forEach(pool, blocks, block -> gradient(input, output, weights, 0, block, 0, units, chunk));
+      return;
+    }
+    final double[] partial = buffers.obtain(splits * weights.length);
+    CpuConvolution.forEach(pool, splits * blocks, task -> {
+      final int split = task / blocks;
+      gradient(input, output, partial, split * weights.length, task % blocks, split * units / splits,
+          (split + 1) * units / splits, chunk);
+    });
+    CpuConvolution.forEach(pool, weights.length, k -> {
+      double sum = 0;
+      for (int i = k; i < partial.length; i += weights.length) {
+        sum += partial[i];
+      }
+      weights[k] = sum;
+    });
+    buffers.recycle(partial);
+  }
+
+  /**
+   * Sets one block of the weight gradient, stored from <code>offset</code> in <code>target</code>, to its sum over
+   * the pixel chunks <code>fromUnit</code> to <code>toUnit</code>, counted across items.
+   */
+  private void gradient(@Nonnull final double[] input, @Nonnull final double[] output, @Nonnull final double[] target,
+                        final int offset, final int block, final int fromUnit, final int toUnit, final int chunk) {
+    final int inputBandsPerGroup = inputBands / groups;
+    final int outputBandsPerGroup = outputBands / groups;
+    final int inputBlocks = getBlocks(inputBandsPerGroup);
+    final int outputBlocks = getBlocks(outputBandsPerGroup);
+    final int chunksPerItem = (plane + chunk - 1) / chunk;
+    final int outputBlock = block % outputBlocks;
+    final int inputBlock = block / outputBlocks % inputBlocks;
+    final int group = block / outputBlocks / inputBlocks;
+    final int fromInput = group * inputBandsPerGroup + inputBlock * BAND_BLOCK;
+    final int toInput = Math.min((group + 1) * inputBandsPerGroup, fromInput + BAND_BLOCK);
+    final int fromOutput = outputBlock * BAND_BLOCK;
+    final int toOutput = Math.min(outputBandsPerGroup, fromOutput + BAND_BLOCK);
+    for (int i2 = fromInput; i2 < toInput; i2++) {
+      final int row = offset + i2 * outputBandsPerGroup;
+      RefArrays.fill(target, row + fromOutput, row + toOutput, 0.0);
+    }
+    for (int unit = fromUnit; unit < toUnit; unit++) {
+      final int item = unit / chunksPerItem;
+      final int from = unit % chunksPerItem * chunk;
+      final int length = Math.min(chunk, plane - from);
+      for (int i2 = fromInput; i2 < toInput; i2++) {
+        final int inputRow = plane * (i2 + inputBands * item) + from;
+        for (int b = fromOutput; b < toOutput; b++) {
+          final int outputRow = plane * (group * outputBandsPerGroup + b + outputBands * item) + from;
+          target[offset + i2 * outputBandsPerGroup + b] += ops.dot(input, inputRow, output, outputRow, length);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets each target band row to the weighted sum of the source band rows of its group, where the weight of source
+   * band <code>s</code> and target band <code>t</code>, both counted within the group, is at
+   * <code>group * sourceBandsPerGroup * targetBandsPerGroup + s * sourceStride + t * targetStride</code>.
+   */
+  private void multiply(@Nonnull final double[] source, final int sourceBands, @Nonnull final double[] target,
+                        final int targetBands, @Nonnull final double[] weights, final int sourceStride,
+                        final int targetStride) {
+    final int items = target.length / (plane * targetBands);
+    final int sourceBandsPerGroup = sourceBands / groups;
+    final int targetBandsPerGroup = targetBands / groups;
+    final int bandBlocks = (targetBandsPerGroup + BAND_BLOCK - 1) / BAND_BLOCK;
+    final int chunk = getPixelsPerBlock(BAND_BLOCK + 1);
+    final int chunks = (plane + chunk - 1) / chunk;
+    CpuConvolution.forEach(pool, items * groups * bandBlocks * chunks, task -> {
+      final int from = task % chunks * chunk;
+      final int bandBlock = task / chunks % bandBlocks;
+      final int group = task / chunks / bandBlocks % groups;
+      final int item = task / chunks / bandBlocks / groups;
+      final int length = Math.min(chunk, plane - from);
+      final int fromBand = bandBlock * BAND_BLOCK;
+      final int toBand = Math.min(targetBandsPerGroup, fromBand + BAND_BLOCK);
+      final int targetBase = plane * (group * targetBandsPerGroup + targetBands * item) + from;
+      final int sourceBase = plane * (group * sourceBandsPerGroup + sourceBands * item) + from;
+      final int weightBase = group * sourceBandsPerGroup * targetBandsPerGroup;
+      for (int t = fromBand; t < toBand; t++) {
+        RefArrays.fill(target, targetBase + plane * t, targetBase + plane * t + length, 0.0);
+      }
+      for (int s = 0; s < sourceBandsPerGroup; s++) {
+        final int sourceRow = sourceBase + plane * s;
+        for (int t = fromBand; t < toBand; t++) {
+          final double weight = weights[weightBase + s * sourceStride + t * targetStride];
+          if (0. != weight) {
+            ops.axpy(weight, source, sourceRow, target, targetBase + plane * t, length);
+          }
+        }
+      }
+    });
+  }
+
+  private static int getBlocks(final int bands) {
+    return (bands + BAND_BLOCK - 1) / BAND_BLOCK;
+  }
+
+  private int getPixelsPerBlock(final int rows) {
+    final int width = ops.getWidth();
+    final int pixels = Math.max(width, BLOCK_BYTES / (Double.BYTES * rows) / width * width);
+    return Math.min(plane, pixels);
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The forward input of a layer, held between the forward and backward passes for the weight gradient. Compact modes
+ * trade a decode into the gradient staging buffer for a smaller footprint while the input is retained.
+ */
+public abstract class RetainedInput extends ReferenceCountingBase {
+
+  private final int itemLength;
+
+  protected RetainedInput(final int itemLength) {
+    this.itemLength = itemLength;
+  }
+
+  public int getItemLength() {
+    return itemLength;
+  }
+
+  @Nonnull
+  public static RetainedInput create(@Nonnull final Mode mode, @Nonnull final TensorList batch) {
+    switch (mode) {
+      case HALF:
+        return new Half(getData(batch));
+      case SPARSE:
+        return new Sparse(getData(batch));
+      default:
+        return new Full(batch);
+    }
+  }
+
+  public abstract int length();
+
+  /**
+   * The bytes held for the retained values, ignoring object headers.
+   */
+  public abstract long getBytes();
+
+  public abstract void read(int item, @Nonnull double[] buffer, int offset);
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  RetainedInput addRef() {
+    return (RetainedInput) super.addRef();
+  }
+
+  @Nonnull
+  private static double[][] getData(@Nonnull final TensorList batch) {
+    final double[][] data = batch.stream().map(x -> {
+      double[] values = x.getData();
+      x.freeRef();
+      return values;
+    }).toArray(i -> new double[i][]);
+    batch.freeRef();
+    return data;
+  }
+
+  public enum Mode {
+    FULL,
+    HALF,
+    SPARSE
+  }
+
+  private static final class Full extends RetainedInput {
+    @Nonnull
+    private final TensorList batch;
+
+    Full(@Nonnull final TensorList batch) {
+      super(0 == batch.length() ? 0 : Tensor.length(batch.getDimensions()));
+      this.batch = batch;
+    }
+
+    @Override
+    public int length() {
+      return batch.length();
+    }
+
+    @Override
+    public long getBytes() {
+      return (long) Double.BYTES * getItemLength() * batch.length();
+    }
+
+    @Override
+    public void read(final int item, @Nonnull final double[] buffer, final int offset) {
+      final Tensor tensor = batch.get(item);
+      RefSystem.arraycopy(tensor.getData(), 0, buffer, offset, getItemLength());
+      tensor.freeRef();
+    }
+
+    @Override
+    protected void _free() {
+      batch.freeRef();
+      super._free();
+    }
+  }
+
+  private static final class Half extends RetainedInput {
+    @Nonnull
+    private final short[][] data;
+
+    Half(@Nonnull final double[][] data) {
+      super(0 == data.length ? 0 : data[0].length);
+      this.data = RefArrays.stream(data).parallel().map(HalfPrecision::encode).toArray(i -> new short[i][]);
+    }
+
+    @Override
+    public int length() {
+      return data.length;
+    }
+
+    @Override
+    public long getBytes() {
+      return (long) Short.BYTES * getItemLength() * data.length;
+    }
+
+    @Override
+    public void read(final int item, @Nonnull final double[] buffer, final int offset) {
+      final float[] table = HalfPrecision.getTable();
+      final short[] values = data[item];
+      for (int i = 0; i < values.length; i++) {
+        buffer[offset + i] = table[values[i] & 0xffff];
+      }
+    }
+  }
+
+  /**
+   * Exact storage of the nonzero values, for inputs such as ReLU outputs. Items with too many nonzeros for the index
+   * to pay off are kept dense.
+   */
+  private static final class Sparse extends RetainedInput {
+    @Nonnull
+    private final int[][] indices;
+    @Nonnull
+    private final double[][] values;
+
+    Sparse(@Nonnull final double[][] data) {
+      super(0 == data.length ? 0 : data[0].length);
+      indices = new int[data.length][];
+      values = new double[data.length][];
+      RefIntStream.range(0, data.length).parallel().forEach(item -> {
+        final double[] dense = data[item];
+        int count = 0;
+        for (double value : dense) {
+          if (0. != value)
+            count++;
+        }
+        if (count * (Integer.BYTES + Double.BYTES) >= dense.length * Double.BYTES) {
+          values[item] = RefArrays.copyOf(dense, dense.length);
+          return;
+        }
+        final int[] index = new int[count];
+        final double[] nonzero = new double[count];
+        for (int i = 0, j = 0; i < dense.length; i++) {
+          if (0. != dense[i]) {
+            index[j] = i;
+            nonzero[j++] = dense[i];
+          }
+        }
+        indices[item] = index;
+        values[item] = nonzero;
+      });
+    }
+
+    @Override
+    public int length() {
+      return values.length;
+    }
+
+    @Override
+    public long getBytes() {
+      long bytes = 0;
+      for (int item = 0; item < values.length; item++) {
+        bytes += (long) Double.BYTES * values[item].length;
+        if (null != indices[item])
+          bytes += (long) Integer.BYTES * indices[item].length;
+      }
+      return bytes;
+    }
+
+    @Override
+    public void read(final int item, @Nonnull final double[] buffer, final int offset) {
+      final int[] index = indices[item];
+      if (null == index) {
+        RefSystem.arraycopy(values[item], 0, buffer, offset, getItemLength());
+        return;
+      }
+      RefArrays.fill(buffer, offset, offset + getItemLength(), 0.0);
+      final double[] nonzero = values[item];
+      for (int j = 0; j < index.length; j++) {
+        buffer[offset + index[j]] = nonzero[j];
+      }
+    }
+  }
+}
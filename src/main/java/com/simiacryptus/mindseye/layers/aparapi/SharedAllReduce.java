@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sums equal-length vectors across the worker processes of one host through a memory-mapped file, with no sockets.
+ * Each worker writes its vector to its own slot, waits at a barrier for the others, then sums every slot in rank
+ * order, so all workers get bitwise identical results and stay in lockstep when they apply them. The slots are
+ * double buffered, so each call costs a single barrier. The barrier state lives in the file header and is only
+ * touched under a file lock, whose system calls also order the slot writes and reads between processes.
+ * <p>
+ * Every worker must call the same sequence of operations, and a fresh file should be used for each job. A process
+ * can hold only one open instance per file, since a second one would take part in the barrier as an extra worker.
+ */
+public final class SharedAllReduce implements AutoCloseable {
+
+  private static final int MAGIC = 0x4d454152;
+  private static final int WORKERS = 4;
+  private static final int LENGTH = 8;
+  private static final int ARRIVED = 12;
+  private static final int GENERATION = 16;
+  private static final int HEADER_LENGTH = 64;
+  private static final int CHUNK = 4096;
+  private static final long POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  private static final Set<String> openFiles = ConcurrentHashMap.newKeySet();
+
+  @Nonnull
+  private final File file;
+  @Nonnull
+  private final String path;
+  private final int rank;
+  private final int workers;
+  private final int length;
+  @Nonnull
+  private final FileChannel channel;
+  @Nonnull
+  private final ByteBuffer header;
+  @Nonnull
+  private final DoubleBuffer data;
+  @Nonnull
+  private final double[] chunk;
+  private long step = 0;
+  private long timeoutNanos = TimeUnit.MINUTES.toNanos(10);
+
+  private SharedAllReduce(@Nonnull final File file, @Nonnull final String path, final int rank, final int workers,
+                          final int length, @Nonnull final FileChannel channel,
+                          @Nonnull final MappedByteBuffer buffer) {
+    this.file = file;
+    this.path = path;
+    this.rank = rank;
+    this.workers = workers;
+    this.length = length;
+    this.channel = channel;
+    this.header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    buffer.position(HEADER_LENGTH);
+    this.data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    this.chunk = new double[Math.min(CHUNK, length)];
+  }
+
+  /**
+   * Maps the shared file, creating and initializing it if this is the first worker to arrive. Fails if this process
+   * already has the file open.
+   */
+  @Nonnull
+  public static SharedAllReduce open(@Nonnull final File file, final int rank, final int workers, final int length) {
+    if (workers <= 0 || rank < 0 || rank >= workers || length <= 0)
+      throw new IllegalArgumentException("Rank " + rank + " of " + workers + ", length " + length);
+    final long size = HEADER_LENGTH + 2L * Double.BYTES * workers * length;
+    if (size > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Shared region too large: " + size);
+    final String path;
+    try {
+      path = file.getCanonicalPath();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (!openFiles.add(path))
+      throw new IllegalStateException(file + " is already open in this process");
+    try {
+      final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      try {
+        final MappedByteBuffer buffer;
+        try (FileLock lock = channel.lock(0, HEADER_LENGTH, false)) {
+          if (channel.size() < size) {
+            channel.write(ByteBuffer.allocate(1), size - 1);
+          }
+          buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+          buffer.order(ByteOrder.LITTLE_ENDIAN);
+          if (MAGIC != buffer.getInt(0)) {
+            buffer.putInt(WORKERS, workers);
+            buffer.putInt(LENGTH, length);
+            buffer.putInt(ARRIVED, 0);
+            buffer.putInt(GENERATION, 0);
+            buffer.putInt(0, MAGIC);
+          } else if (workers != buffer.getInt(WORKERS) || length != buffer.getInt(LENGTH)) {
+            throw new IllegalArgumentException(file + " is shared by " + buffer.getInt(WORKERS) + " workers of length "
+                + buffer.getInt(LENGTH));
+          }
+        }
+        return new SharedAllReduce(file, path, rank, workers, length, channel, buffer);
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    } catch (IOException | RuntimeException e) {
+      openFiles.remove(path);
+      throw e instanceof IOException ? new RuntimeException(e) : (RuntimeException) e;
+    }
+  }
+
+  @Nonnull
+  public File getFile() {
+    return file;
+  }
+
+  public int getRank() {
+    return rank;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * How long a worker waits at the barrier for the others before failing, so a crashed worker does not hang the job.
+   */
+  public void setTimeout(final long timeout, @Nonnull final TimeUnit unit) {
+    this.timeoutNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * Replaces the values with their sum over all workers.
+   */
+  public synchronized void reduce(@Nonnull final double[] values) {
+    if (values.length != length)
+      throw new IllegalArgumentException(values.length + " != " + length);
+    final int bank = (int) (step++ & 1);
+    slot(bank, rank).put(values);
+    await();
+    for (int from = 0; from < length; from += chunk.length) {
+      final int count = Math.min(chunk.length, length - from);
+      for (int i = from; i < from + count; i++) {
+        values[i] = 0;
+      }
+      for (int worker = 0; worker < workers; worker++) {
+        final DoubleBuffer slot = slot(bank, worker);
+        slot.position(slot.position() + from);
+        slot.get(chunk, 0, count);
+        for (int i = 0; i < count; i++) {
+          values[from + i] += chunk[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces the values with those of the root worker, for example to start every worker from the same weights.
+   */
+  public synchronized void broadcast(@Nonnull final double[] values, final int root) {
+    if (values.length != length)
+      throw new IllegalArgumentException(values.length + " != " + length);
+    final int bank = (int) (step++ & 1);
+    if (rank == root) {
+      slot(bank, root).put(values);
+    }
+    await();
+    if (rank != root) {
+      slot(bank, root).get(values);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (!channel.isOpen())
+      return;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      openFiles.remove(path);
+    }
+  }
+
+  @Nonnull
+  private DoubleBuffer slot(final int bank, final int worker) {
+    final DoubleBuffer slot = data.duplicate();
+    final int offset = length * (bank * workers + worker);
+    slot.limit(offset + length);
+    slot.position(offset);
+    return slot;
+  }
+
+  /**
+   * A sense-reversing barrier: the last worker to arrive resets the count and advances the generation, which the
+   * others poll for.
+   */
+  private void await() {
+    try {
+      final int generation;
+      try (FileLock lock = channel.lock(0, HEADER_LENGTH, false)) {
+        generation = header.getInt(GENERATION);
+        final int arrived = header.getInt(ARRIVED) + 1;
+        if (arrived == workers) {
+          header.putInt(ARRIVED, 0);
+          header.putInt(GENERATION, generation + 1);
+          return;
+        }
+        header.putInt(ARRIVED, arrived);
+      }
+      final long deadline = System.nanoTime() + timeoutNanos;
+      while (true) {
+        try (FileLock lock = channel.lock(0, HEADER_LENGTH, true)) {
+          if (generation != header.getInt(GENERATION))
+            return;
+        }
+        if (System.nanoTime() - deadline > 0)
+          throw new IllegalStateException("Timed out waiting for " + workers + " workers on " + file);
+        LockSupport.parkNanos(POLL_NANOS);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
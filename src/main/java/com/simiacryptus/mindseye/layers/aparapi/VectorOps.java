@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.nio.DoubleBuffer;
+
+/**
+ * Contiguous row primitives used by {@link CpuConvolution}. The default instance uses the Java Vector API
+ * when the <code>jdk.incubator.vector</code> module is present at runtime and falls back to scalar loops otherwise.
+ * <p>
+ * To enable it, build on Java 17 or later so the <code>vector-api</code> profile compiles the Vector API classes, and
+ * start the JVM with <code>--add-modules jdk.incubator.vector</code>. The log reports the lane count at startup.
+ */
+public interface VectorOps {
+
+  VectorOps INSTANCE = VectorOps.create();
+
+  @Nonnull
+  static VectorOps create() {
+    final Logger log = LoggerFactory.getLogger(VectorOps.class);
+    try {
+      VectorOps ops = (VectorOps) Class.forName("com.simiacryptus.mindseye.layers.aparapi.VectorApiOps")
+          .getDeclaredConstructor().newInstance();
+      log.info("Using Vector API with " + ops.getWidth() + " lanes");
+      return ops;
+    } catch (@Nonnull final Throwable e) {
+      log.debug("Vector API unavailable: " + e);
+      return new ScalarOps();
+    }
+  }
+
+  int getWidth();
+
+  void axpy(double a, @Nonnull double[] x, int xOffset, @Nonnull double[] y, int yOffset, int length);
+
+  double dot(@Nonnull double[] x, int xOffset, @Nonnull double[] y, int yOffset, int length);
+
+  default void axpy(final double a, @Nonnull final DoubleBuffer x, final int xOffset, @Nonnull final DoubleBuffer y,
+                    final int yOffset, final int length) {
+    for (int i = 0; i < length; i++) {
+      y.put(yOffset + i, y.get(yOffset + i) + a * x.get(xOffset + i));
+    }
+  }
+
+  default double dot(@Nonnull final DoubleBuffer x, final int xOffset, @Nonnull final DoubleBuffer y,
+                     final int yOffset, final int length) {
+    double sum = 0;
+    for (int i = 0; i < length; i++) {
+      sum += x.get(xOffset + i) * y.get(yOffset + i);
+    }
+    return sum;
+  }
+
+  final class ScalarOps implements VectorOps {
+
+    @Override
+    public int getWidth() {
+      return 1;
+    }
+
+    @Override
+    public void axpy(final double a, @Nonnull final double[] x, final int xOffset, @Nonnull final double[] y,
+                     final int yOffset, final int length) {
+      for (int i = 0; i < length; i++) {
+        y[yOffset + i] += a * x[xOffset + i];
+      }
+    }
+
+    @Override
+    public double dot(@Nonnull final double[] x, final int xOffset, @Nonnull final double[] y, final int yOffset,
+                      final int length) {
+      double sum = 0;
+      for (int i = 0; i < length; i++) {
+        sum += x[xOffset + i] * y[yOffset + i];
+      }
+      return sum;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.wrappers.RefArrays;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Raw little-endian weight file: a magic number, the rank and dimensions, padding to an 8-byte boundary and then
+ * the doubles. The file is mapped read-only, so opening it reads only the header and the data is paged in by
+ * {@link #read()}. Processes that map the same file share its page cache.
+ */
+public final class WeightFile {
+
+  private static final int MAGIC = 0x4d45574b;
+
+  @Nonnull
+  private final File file;
+  @Nonnull
+  private final int[] dimensions;
+  @Nonnull
+  private final DoubleBuffer data;
+
+  private WeightFile(@Nonnull final File file, @Nonnull final int[] dimensions, @Nonnull final DoubleBuffer data) {
+    this.file = file;
+    this.dimensions = dimensions;
+    this.data = data;
+  }
+
+  @Nonnull
+  public File getFile() {
+    return file;
+  }
+
+  @Nonnull
+  public int[] getDimensions() {
+    return RefArrays.copyOf(dimensions, dimensions.length);
+  }
+
+  @Nonnull
+  public static WeightFile open(@Nonnull final File file) {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+      final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+          .order(ByteOrder.LITTLE_ENDIAN);
+      if (MAGIC != buffer.getInt())
+        throw new IllegalArgumentException("Not a weight file: " + file);
+      final int[] dimensions = new int[buffer.getInt()];
+      for (int i = 0; i < dimensions.length; i++) {
+        dimensions[i] = buffer.getInt();
+      }
+      buffer.position(getHeaderLength(dimensions.length));
+      final DoubleBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+      if (data.remaining() != Tensor.length(dimensions))
+        throw new IllegalArgumentException("Truncated weight file: " + file);
+      return new WeightFile(file, dimensions, data);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static void write(@Nonnull final File file, @Nonnull final Tensor tensor) {
+    final int[] dimensions = tensor.getDimensions();
+    final double[] values = tensor.getData();
+    tensor.freeRef();
+    final int headerLength = getHeaderLength(dimensions.length);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+      final long length = headerLength + (long) Double.BYTES * values.length;
+      raf.setLength(length);
+      final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(MAGIC);
+      buffer.putInt(dimensions.length);
+      for (int dimension : dimensions) {
+        buffer.putInt(dimension);
+      }
+      buffer.position(headerLength);
+      buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(values);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Nonnull
+  public Tensor read() {
+    final Tensor tensor = new Tensor(dimensions);
+    data.duplicate().get(tensor.getData());
+    return tensor;
+  }
+
+  private static int getHeaderLength(final int rank) {
+    return (Integer.BYTES * (2 + rank) + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+  }
+}
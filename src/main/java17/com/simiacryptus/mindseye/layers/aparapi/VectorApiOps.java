@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import javax.annotation.Nonnull;
+
+/**
+ * {@link VectorOps} backed by <code>jdk.incubator.vector</code> at the platform's preferred width. Compiled only by
+ * the <code>vector-api</code> profile and loaded reflectively, so it is skipped when the module is not available.
+ */
+public final class VectorApiOps implements VectorOps {
+
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  @Override
+  public int getWidth() {
+    return SPECIES.length();
+  }
+
+  @Override
+  public void axpy(final double a, @Nonnull final double[] x, final int xOffset, @Nonnull final double[] y,
+                   final int yOffset, final int length) {
+    final DoubleVector scale = DoubleVector.broadcast(SPECIES, a);
+    final int bound = SPECIES.loopBound(length);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      DoubleVector.fromArray(SPECIES, x, xOffset + i)
+          .fma(scale, DoubleVector.fromArray(SPECIES, y, yOffset + i))
+          .intoArray(y, yOffset + i);
+    }
+    for (; i < length; i++) {
+      y[yOffset + i] += a * x[xOffset + i];
+    }
+  }
+
+  @Override
+  public double dot(@Nonnull final double[] x, final int xOffset, @Nonnull final double[] y, final int yOffset,
+                    final int length) {
+    DoubleVector sum = DoubleVector.zero(SPECIES);
+    final int bound = SPECIES.loopBound(length);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      sum = DoubleVector.fromArray(SPECIES, x, xOffset + i)
+          .fma(DoubleVector.fromArray(SPECIES, y, yOffset + i), sum);
+    }
+    double result = sum.reduceLanes(VectorOperators.ADD);
+    for (; i < length; i++) {
+      result += x[xOffset + i] * y[yOffset + i];
+    }
+    return result;
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class BufferPoolTest {
+
+  @Test
+  public void reuse() {
+    BufferPool<double[]> pool = BufferPool.heap(1024 * 1024);
+    double[] first = pool.obtain(100);
+    first[0] = 1.0;
+    pool.recycle(first);
+    double[] second = pool.obtain(100);
+    Assertions.assertSame(first, second);
+    Assertions.assertEquals(0.0, second[0], 0.0);
+    Assertions.assertNotSame(second, pool.obtain(100));
+    Assertions.assertEquals(2, pool.getAllocations());
+    Assertions.assertEquals(1, pool.getReuses());
+  }
+
+  @Test
+  public void evict() {
+    BufferPool<double[]> pool = BufferPool.heap(8 * 250);
+    double[] a = pool.obtain(100);
+    double[] b = pool.obtain(100);
+    double[] c = pool.obtain(200);
+    pool.recycle(a);
+    pool.recycle(b);
+    Assertions.assertEquals(8 * 200, pool.getIdleBytes());
+    pool.recycle(c);
+    Assertions.assertEquals(8 * 200, pool.getIdleBytes());
+    Assertions.assertEquals(2, pool.getEvictions());
+    Assertions.assertSame(c, pool.obtain(200));
+    pool.recycle(c);
+    pool.clear();
+    Assertions.assertEquals(0, pool.getIdleBytes());
+    Assertions.assertNotSame(c, pool.obtain(200));
+  }
+}
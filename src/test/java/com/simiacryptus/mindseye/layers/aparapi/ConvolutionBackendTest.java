@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.ref.wrappers.RefArrays;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.DoubleBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class ConvolutionBackendTest {
+  private static final Logger log = LoggerFactory.getLogger(ConvolutionBackendTest.class);
+  private final Random random = new Random(42);
+
+  @Test
+  public void basic() {
+    test(new int[]{7, 6, 3}, new int[]{3, 3, 6}, null, null, 1);
+  }
+
+  @Test
+  public void padded() {
+    test(new int[]{7, 6, 3}, new int[]{5, 3, 6}, 1, 0, 1);
+  }
+
+  @Test
+  public void grouped() {
+    test(new int[]{6, 6, 4}, new int[]{3, 3, 12}, null, null, 2);
+  }
+
+  @Test
+  public void depthwise() {
+    test(new int[]{9, 5, 3}, new int[]{3, 3, 3}, null, null, 3);
+  }
+
+  @Test
+  public void partitioned() {
+    int[] inputSize = {31, 29, 4};
+    int[] kernelSize = {3, 3, 24};
+    int[] outputSize = {31, 29, 6};
+    int[] kernelOffset = {1, 1};
+    final int items = 5;
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[0] * kernelSize[1] * kernelSize[2]);
+    double[] input = ConvolutionFixtures.random(random, items * inputSize[0] * inputSize[1] * inputSize[2]);
+    double[] error = ConvolutionFixtures.random(random, items * outputSize[0] * outputSize[1] * outputSize[2]);
+    ForkJoinPool serialPool = new ForkJoinPool(1);
+    ForkJoinPool parallelPool = new ForkJoinPool(8);
+    try {
+      CpuConvolution serial = new CpuConvolution(inputSize, kernelSize, outputSize, kernelOffset, 1,
+          VectorOps.INSTANCE, serialPool);
+      CpuConvolution parallel = new CpuConvolution(inputSize, kernelSize, outputSize, kernelOffset, 1,
+          VectorOps.INSTANCE, parallelPool);
+
+      double[] expectedOutput = new double[error.length];
+      double[] actualOutput = new double[error.length];
+      serial.convolve(input, weights, expectedOutput);
+      parallel.convolve(input, weights, actualOutput);
+      Assertions.assertArrayEquals(expectedOutput, actualOutput, 0.0);
+
+      double[] expectedBackprop = new double[input.length];
+      double[] actualBackprop = new double[input.length];
+      serial.backprop(expectedBackprop, weights, error);
+      parallel.backprop(actualBackprop, weights, error);
+      Assertions.assertArrayEquals(expectedBackprop, actualBackprop, 0.0);
+
+      double[] expectedGradient = new double[weights.length];
+      double[] actualGradient = new double[weights.length];
+      serial.gradient(input, expectedGradient, error);
+      parallel.gradient(input, actualGradient, error);
+      Assertions.assertArrayEquals(expectedGradient, actualGradient, 1e-9);
+    } finally {
+      serialPool.shutdown();
+      parallelPool.shutdown();
+    }
+  }
+
+  @Test
+  public void scaling() {
+    int[] inputSize = {64, 64, 16};
+    int[] kernelSize = {3, 3, 16 * 16};
+    int[] outputSize = {64, 64, 16};
+    int[] kernelOffset = {1, 1};
+    final int items = 4;
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[0] * kernelSize[1] * kernelSize[2]);
+    double[] input = ConvolutionFixtures.random(random, items * inputSize[0] * inputSize[1] * inputSize[2]);
+    double[] error = ConvolutionFixtures.random(random, items * outputSize[0] * outputSize[1] * outputSize[2]);
+    double[] expected = null;
+    double serialThroughput = 0;
+    final int processors = Runtime.getRuntime().availableProcessors();
+    for (int threads : RefArrays.stream(new int[]{1, 2, 4, processors}).distinct().sorted().toArray()) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        CpuConvolution convolution = new CpuConvolution(inputSize, kernelSize, outputSize, kernelOffset, 1,
+            VectorOps.INSTANCE, pool);
+        double[] output = new double[error.length];
+        double[] backprop = new double[input.length];
+        double[] gradient = new double[weights.length];
+        convolution.convolve(input, weights, output);
+        long start = System.nanoTime();
+        final int passes = 4;
+        for (int pass = 0; pass < passes; pass++) {
+          convolution.convolve(input, weights, output);
+          convolution.backprop(backprop, weights, error);
+          convolution.gradient(input, gradient, error);
+        }
+        double throughput = passes * items / ((System.nanoTime() - start) / 1e9);
+        if (null == expected) {
+          expected = output;
+          serialThroughput = throughput;
+        }
+        log.info(String.format("%d threads: %.1f items/s, %.2fx the serial throughput", threads, throughput,
+            throughput / serialThroughput));
+        Assertions.assertArrayEquals(expected, output, 0.0);
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void stridedCpu() {
+    ConvolutionController controller = new ConvolutionController(new int[]{8, 8, 2}, new int[]{3, 3, 4}, null, null,
+        1, 2, 2);
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> controller.setBackend(ConvolutionController.Backend.CPU));
+    ConvolutionController.Backend defaultBackend = ConvolutionController.getDefaultBackend();
+    ConvolutionController.setDefaultBackend(ConvolutionController.Backend.CPU);
+    try {
+      Assertions.assertEquals(ConvolutionController.Backend.APARAPI, new ConvolutionController(new int[]{8, 8, 2},
+          new int[]{3, 3, 4}, null, null, 1, 2, 2).getBackend());
+    } finally {
+      ConvolutionController.setDefaultBackend(defaultBackend);
+    }
+  }
+
+  /**
+   * A wide, flat kernel must take its x offset from its width and <code>paddingX</code>, and its y offset from its
+   * height and <code>paddingY</code>. Square kernels with equal paddings cannot tell the two apart.
+   */
+  @Test
+  public void kernelOffset() {
+    Assertions.assertArrayEquals(new int[]{2, 0},
+        new ConvolutionController(new int[]{7, 6, 1}, new int[]{5, 1, 1}, null, null).getKernelOffset());
+    Assertions.assertArrayEquals(new int[]{1, 0},
+        new ConvolutionController(new int[]{7, 6, 2}, new int[]{5, 3, 4}, 1, 0).getKernelOffset());
+    final int[] inputSize = {7, 6, 1};
+    double[] input = ConvolutionFixtures.random(random, inputSize[0] * inputSize[1]);
+    double[] weights = {0, 0, 0, 0, 1};
+    for (ConvolutionController.Backend backend : ConvolutionController.Backend.values()) {
+      ConvolutionController controller = new ConvolutionController(inputSize, new int[]{5, 1, 1}, null, null);
+      controller.setBackend(backend);
+      double[] output = new double[controller.getOutputLength()];
+      controller.convolve(input, weights, output);
+      for (int y = 0; y < inputSize[1]; y++) {
+        for (int x = 0; x < inputSize[0]; x++) {
+          double expected = x < 2 ? 0 : input[x - 2 + inputSize[0] * y];
+          Assertions.assertEquals(expected, output[x + inputSize[0] * y], 0.0, backend + " at " + x + ", " + y);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void layout() {
+    layout(new int[]{9, 7, 16}, new int[]{3, 3, 16 * 24}, 1);
+    layout(new int[]{8, 5, 32}, new int[]{3, 3, 32 * 32 / 2}, 2);
+  }
+
+  private void layout(@Nonnull int[] inputSize, @Nonnull int[] kernelSize, int groups) {
+    ConvolutionController planar = new ConvolutionController(inputSize, kernelSize, null, null, groups);
+    planar.setBackend(ConvolutionController.Backend.APARAPI);
+    planar.setLayout(ConvolutionController.Layout.PLANAR);
+    ConvolutionController interleaved = new ConvolutionController(inputSize, kernelSize, null, null, groups);
+    interleaved.setBackend(ConvolutionController.Backend.APARAPI);
+    interleaved.setLayout(ConvolutionController.Layout.INTERLEAVED);
+    final int items = 3;
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[0] * kernelSize[1] * kernelSize[2]);
+    double[][] input = new double[items][];
+    double[][] error = new double[items][];
+    for (int i = 0; i < items; i++) {
+      input[i] = ConvolutionFixtures.random(random, planar.getInputLength());
+      error[i] = ConvolutionFixtures.random(random, planar.getOutputLength());
+    }
+
+    double[][] expectedOutput = new double[items][planar.getOutputLength()];
+    double[][] actualOutput = new double[items][planar.getOutputLength()];
+    planar.convolve(input, weights, expectedOutput);
+    interleaved.convolve(input, weights, actualOutput);
+    double[][] expectedBackprop = new double[items][planar.getInputLength()];
+    double[][] actualBackprop = new double[items][planar.getInputLength()];
+    planar.backprop(expectedBackprop, weights, error);
+    interleaved.backprop(actualBackprop, weights, error);
+    for (int i = 0; i < items; i++) {
+      Assertions.assertArrayEquals(expectedOutput[i], actualOutput[i], 1e-9);
+      Assertions.assertArrayEquals(expectedBackprop[i], actualBackprop[i], 1e-9);
+    }
+
+    double[] expectedGradient = new double[weights.length];
+    double[] actualGradient = new double[weights.length];
+    planar.gradient(input, expectedGradient, error);
+    interleaved.gradient(input, actualGradient, error);
+    Assertions.assertArrayEquals(expectedGradient, actualGradient, 1e-9);
+  }
+
+  @Test
+  public void staging() {
+    int[] inputSize = {64, 64, 8};
+    int[] kernelSize = {3, 3, 64};
+    final int items = 16;
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[0] * kernelSize[1] * kernelSize[2]);
+    double[][] input = new double[items][];
+    double[][] error = new double[items][];
+    for (int i = 0; i < items; i++) {
+      input[i] = ConvolutionFixtures.random(random, inputSize[0] * inputSize[1] * inputSize[2]);
+      error[i] = ConvolutionFixtures.random(random, inputSize[0] * inputSize[1] * kernelSize[2] / inputSize[2]);
+    }
+    double[][] heap = run(ConvolutionController.Staging.HEAP, inputSize, kernelSize, weights, input, error);
+    double[][] direct = run(ConvolutionController.Staging.DIRECT, inputSize, kernelSize, weights, input, error);
+    for (int i = 0; i < heap.length; i++) {
+      Assertions.assertArrayEquals(heap[i], direct[i], 1e-9);
+    }
+  }
+
+  /**
+   * Runs the passes after a warm-up with pools owned by this call, logging the wall and GC collection time so that
+   * heap and direct staging can be compared, and checks that the warm passes take every buffer from the pools.
+   */
+  @Nonnull
+  private static double[][] run(@Nonnull ConvolutionController.Staging staging, @Nonnull int[] inputSize,
+                                @Nonnull int[] kernelSize, @Nonnull double[] weights, @Nonnull double[][] input,
+                                @Nonnull double[][] error) {
+    BufferPool<double[]> buffers = BufferPool.heap(BufferPool.DEFAULT_CAPACITY);
+    BufferPool<DoubleBuffer> directBuffers = BufferPool.direct(BufferPool.DEFAULT_CAPACITY);
+    ConvolutionController controller = new ConvolutionController(inputSize, kernelSize, null, null);
+    controller.setBackend(ConvolutionController.Backend.CPU);
+    controller.setStaging(staging);
+    controller.setBufferPools(buffers, directBuffers, BufferPool.halves(BufferPool.DEFAULT_CAPACITY));
+    final int items = input.length;
+    double[][] output = new double[items][controller.getOutputLength()];
+    double[][] backprop = new double[items][controller.getInputLength()];
+    double[] gradient = new double[weights.length];
+    controller.convolve(input, weights, output);
+    controller.backprop(backprop, weights, error);
+    controller.gradient(input, gradient, error);
+    final long directAllocations = directBuffers.getAllocations();
+    final long heapAllocations = buffers.getAllocations();
+    final int passes = 8;
+    long gcTime = -gcTime();
+    long start = System.nanoTime();
+    for (int pass = 0; pass < passes; pass++) {
+      controller.convolve(input, weights, output);
+      controller.backprop(backprop, weights, error);
+      RefArrays.fill(gradient, 0.0);
+      controller.gradient(input, gradient, error);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    gcTime += gcTime();
+    log.info(String.format("%s staging: %d passes in %.3fs, %dms in GC", staging, passes, seconds, gcTime));
+    Assertions.assertEquals(directAllocations, directBuffers.getAllocations(), staging + " direct allocations");
+    Assertions.assertEquals(heapAllocations, buffers.getAllocations(), staging + " heap allocations");
+    double[][] result = new double[2 * items + 1][];
+    System.arraycopy(output, 0, result, 0, items);
+    System.arraycopy(backprop, 0, result, items, items);
+    result[2 * items] = gradient;
+    return result;
+  }
+
+  private static long gcTime() {
+    long sum = 0;
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      sum += Math.max(0, bean.getCollectionTime());
+    }
+    return sum;
+  }
+
+  @Test
+  public void partials() {
+    int[] inputSize = {16, 16, 2};
+    int[] kernelSize = {1, 1, 2};
+    int[] outputSize = {16, 16, 1};
+    final int items = 12;
+    double[] input = ConvolutionFixtures.random(random, items * inputSize[0] * inputSize[1] * inputSize[2]);
+    double[] error = ConvolutionFixtures.random(random, items * outputSize[0] * outputSize[1] * outputSize[2]);
+    BufferPool<double[]> buffers = BufferPool.heap(BufferPool.DEFAULT_CAPACITY);
+    BufferPool<DoubleBuffer> directBuffers = BufferPool.direct(BufferPool.DEFAULT_CAPACITY);
+    BufferPool<DoubleBuffer> staging = BufferPool.direct(BufferPool.DEFAULT_CAPACITY);
+    DoubleBuffer inputBuffer = staging.obtain(input.length);
+    DoubleBuffer errorBuffer = staging.obtain(error.length);
+    inputBuffer.put(input);
+    errorBuffer.put(error);
+    ForkJoinPool pool = new ForkJoinPool(8);
+    try {
+      CpuConvolution convolution = new CpuConvolution(inputSize, kernelSize, outputSize, new int[]{0, 0}, 1,
+          VectorOps.INSTANCE, pool, buffers, directBuffers);
+      double[] expected = new double[2];
+      convolution.gradient(input, expected, error);
+      double[] actual = new double[2];
+      convolution.gradient(inputBuffer, actual, errorBuffer);
+      Assertions.assertArrayEquals(expected, actual, 1e-9);
+      Assertions.assertEquals(1, buffers.getAllocations());
+      Assertions.assertEquals(1, directBuffers.getAllocations());
+      convolution.gradient(input, expected, error);
+      convolution.gradient(inputBuffer, actual, errorBuffer);
+      Assertions.assertArrayEquals(expected, actual, 1e-9);
+      Assertions.assertEquals(1, buffers.getAllocations());
+      Assertions.assertEquals(1, directBuffers.getAllocations());
+      Assertions.assertEquals(1, buffers.getReuses());
+      Assertions.assertEquals(1, directBuffers.getReuses());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void test(@Nonnull int[] inputSize, @Nonnull int[] kernelSize, @Nullable Integer paddingX,
+                    @Nullable Integer paddingY, int groups) {
+    ConvolutionController aparapi = new ConvolutionController(inputSize, kernelSize, paddingX, paddingY, groups);
+    aparapi.setBackend(ConvolutionController.Backend.APARAPI);
+    ConvolutionController cpu = new ConvolutionController(inputSize, kernelSize, paddingX, paddingY, groups);
+    cpu.setBackend(ConvolutionController.Backend.CPU);
+    final int items = 3;
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[0] * kernelSize[1] * kernelSize[2]);
+    double[] input = ConvolutionFixtures.random(random, items * aparapi.getInputLength());
+    double[] error = ConvolutionFixtures.random(random, items * aparapi.getOutputLength());
+
+    double[] expectedOutput = new double[error.length];
+    double[] actualOutput = new double[error.length];
+    aparapi.convolve(input, weights, expectedOutput);
+    cpu.convolve(input, weights, actualOutput);
+    Assertions.assertArrayEquals(expectedOutput, actualOutput, 1e-9);
+
+    double[] expectedBackprop = new double[input.length];
+    double[] actualBackprop = new double[input.length];
+    aparapi.backprop(expectedBackprop, weights, error);
+    cpu.backprop(actualBackprop, weights, error);
+    Assertions.assertArrayEquals(expectedBackprop, actualBackprop, 1e-9);
+
+    double[] expectedGradient = new double[weights.length];
+    double[] actualGradient = new double[weights.length];
+    aparapi.gradient(input, expectedGradient, error);
+    cpu.gradient(input, actualGradient, error);
+    Assertions.assertArrayEquals(expectedGradient, actualGradient, 1e-9);
+  }
+}
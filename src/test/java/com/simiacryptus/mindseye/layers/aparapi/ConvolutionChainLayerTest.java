@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.test.LayerTestBase;
+import com.simiacryptus.ref.lang.RefUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.UUID;
+
+public abstract class ConvolutionChainLayerTest extends LayerTestBase {
+
+  public static class Basic extends ConvolutionChainLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ConvolutionLayer first = new ConvolutionLayer(3, 3, 2, 3, true);
+      first.setWeights(() -> this.random());
+      ConvolutionLayer second = new ConvolutionLayer(3, 3, 3, 2, true);
+      second.setWeights(() -> this.random());
+      return new ConvolutionChainLayer(first, second);
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{5, 5, 2}};
+    }
+
+  }
+
+  public static class Equivalence {
+    private final Random random = new Random(42);
+
+    @Test
+    public void test() {
+      ConvolutionLayer first = new ConvolutionLayer(3, 3, 2, 4, true);
+      first.setWeights(() -> random.nextGaussian());
+      ConvolutionLayer second = new ConvolutionLayer(3, 3, 4, 2, 2, false);
+      second.setWeights(() -> random.nextGaussian());
+      Tensor[] input = new Tensor[3];
+      for (int i = 0; i < input.length; i++) {
+        input[i] = new Tensor(7, 7, 2);
+        double[] data = input[i].getData();
+        for (int j = 0; j < data.length; j++) {
+          data[j] = random.nextGaussian();
+        }
+      }
+      Result firstResult = first.eval(new Result(new TensorArray(RefUtil.addRef(input)),
+          new ConvolutionFixtures.NullAccumulator(), false));
+      Result expected = second.eval(firstResult);
+      first.addRef();
+      second.addRef();
+      ConvolutionChainLayer chain = new ConvolutionChainLayer(first, second);
+      Result actual = chain.eval(new Result(new TensorArray(input), new ConvolutionFixtures.NullAccumulator(), false));
+      TensorList expectedData = expected.getData();
+      TensorList actualData = actual.getData();
+      for (int i = 0; i < input.length; i++) {
+        Tensor expectedTensor = expectedData.get(i);
+        Tensor actualTensor = actualData.get(i);
+        Assertions.assertArrayEquals(expectedTensor.getData(), actualTensor.getData(), 0.0);
+        expectedTensor.freeRef();
+        actualTensor.freeRef();
+      }
+      expectedData.freeRef();
+      actualData.freeRef();
+      expected.freeRef();
+      actual.freeRef();
+      chain.freeRef();
+    }
+  }
+
+  /**
+   * Trains the same two layers alone and as a chain whose second layer defers its gradient, and compares the kernel
+   * deltas after the chain is flushed.
+   */
+  public static class Gradients {
+    private final Random random = new Random(42);
+
+    @Test
+    public void test() {
+      ConvolutionLayer first = new ConvolutionLayer(3, 3, 2, 4, true);
+      first.setWeights(() -> random.nextGaussian());
+      ConvolutionLayer second = new ConvolutionLayer(3, 3, 4, 2, true);
+      second.setWeights(() -> random.nextGaussian());
+      ConvolutionLayer chainFirst = copy(first);
+      ConvolutionLayer chainSecond = copy(second);
+      chainSecond.setDeferredGradient(true);
+      ConvolutionChainLayer chain = new ConvolutionChainLayer(chainFirst.addRef(), chainSecond.addRef());
+      Tensor[] input = ConvolutionFixtures.randomBatch(random, 3, 7, 7, 2);
+      Tensor[] error = ConvolutionFixtures.randomBatch(random, 3, 7, 7, 2);
+
+      DeltaSet<UUID> expected = new DeltaSet<>();
+      Result firstResult = first.eval(new Result(new TensorArray(RefUtil.addRef(input)),
+          new ConvolutionFixtures.NullAccumulator(), false));
+      Result secondResult = second.eval(firstResult);
+      secondResult.getAccumulator().accept(expected.addRef(), new TensorArray(RefUtil.addRef(error)));
+      secondResult.freeRef();
+
+      DeltaSet<UUID> actual = new DeltaSet<>();
+      for (int pass = 0; pass < 2; pass++) {
+        Result chainResult = chain.eval(new Result(new TensorArray(RefUtil.addRef(input)),
+            new ConvolutionFixtures.NullAccumulator(), false));
+        chainResult.getAccumulator().accept(actual.addRef(), new TensorArray(RefUtil.addRef(error)));
+        chainResult.freeRef();
+      }
+      chain.flushGradient(actual.addRef());
+      assertDelta(expected, actual, first, 2);
+      assertDelta(expected, actual, second, 2);
+      RefUtil.freeRef(input);
+      RefUtil.freeRef(error);
+      expected.freeRef();
+      actual.freeRef();
+      first.freeRef();
+      second.freeRef();
+      chainFirst.freeRef();
+      chainSecond.freeRef();
+      chain.freeRef();
+    }
+
+    @Nonnull
+    private static ConvolutionLayer copy(@Nonnull ConvolutionLayer layer) {
+      return ConvolutionLayer.fromJson(layer.getJson(new HashMap<>(), SerialPrecision.Double), new HashMap<>());
+    }
+
+    private static void assertDelta(@Nonnull DeltaSet<UUID> expected, @Nonnull DeltaSet<UUID> actual,
+                                    @Nonnull ConvolutionLayer layer, final int passes) {
+      Delta<UUID> expectedDelta = expected.get(layer.getId(), layer.getKernel());
+      Delta<UUID> actualDelta = actual.get(layer.getId(), layer.getKernel());
+      assert expectedDelta != null && actualDelta != null;
+      double[] once = expectedDelta.getDelta();
+      double[] summed = actualDelta.getDelta();
+      for (int i = 0; i < once.length; i++) {
+        Assertions.assertEquals(passes * once[i], summed[i], 1e-9 * Math.max(1, Math.abs(summed[i])));
+      }
+      expectedDelta.freeRef();
+      actualDelta.freeRef();
+    }
+  }
+}
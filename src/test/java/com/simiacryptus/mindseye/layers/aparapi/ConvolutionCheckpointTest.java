@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.SerialPrecision;
+import com.simiacryptus.mindseye.lang.Tensor;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+public class ConvolutionCheckpointTest {
+  private final Random random = new Random(42);
+
+  @Test
+  public void bytes() {
+    ConvolutionLayer layer = new ConvolutionLayer(3, 3, 8, 8, 2, false);
+    layer.setPaddingX(1);
+    layer.setWeights(() -> Math.round(random.nextGaussian() * 4) / 4.0);
+    layer.setBias(new double[]{1, 2, 3, 4, 5, 6, 7, 8});
+    ConvolutionCheckpoint checkpoint = ConvolutionCheckpoint.of(layer.addRef());
+    byte[] raw = checkpoint.toBytes(false);
+    byte[] compressed = checkpoint.toBytes(true);
+    Assertions.assertTrue(compressed.length < raw.length, compressed.length + " >= " + raw.length);
+    assertEquals(layer.addRef(), ConvolutionCheckpoint.fromBytes(raw).toLayer());
+    assertEquals(layer, ConvolutionCheckpoint.fromBytes(compressed).toLayer());
+  }
+
+  @Test
+  public void json() {
+    for (ConvolutionCheckpoint.Format format : ConvolutionCheckpoint.Format.values()) {
+      ConvolutionLayer layer = new ConvolutionLayer(5, 3, 4, 6, true);
+      layer.setWeights(() -> random.nextGaussian());
+      layer.setBias(new double[]{-1, 0, 1, 2, 3, 4});
+      layer.setWeightFormat(format);
+      HashMap<CharSequence, byte[]> resources = new HashMap<>();
+      JsonObject json = layer.getJson(resources, SerialPrecision.Double);
+      Assertions.assertEquals(ConvolutionCheckpoint.Format.JSON != format, json.has("filterResource"));
+      Assertions.assertEquals(ConvolutionCheckpoint.Format.JSON == format, json.has("filter"));
+      ConvolutionLayer copy = ConvolutionLayer.fromJson(json, resources);
+      Assertions.assertEquals(format, copy.getWeightFormat());
+      assertEquals(layer, copy);
+    }
+  }
+
+  @Test
+  public void snapshot() throws Exception {
+    ConvolutionLayer layer = new ConvolutionLayer(3, 3, 2, 3, true);
+    layer.setWeights(() -> random.nextGaussian());
+    Tensor kernel = layer.getKernel();
+    assert kernel != null;
+    double[] expected = kernel.getData().clone();
+    kernel.freeRef();
+    File file = createTempFile();
+    CompletableFuture<File> written = layer.snapshot(file, true);
+    layer.setWeights(() -> 0.0);
+    Assertions.assertEquals(file, written.get());
+    ConvolutionLayer restored = ConvolutionCheckpoint.read(file).toLayer();
+    Tensor restoredKernel = restored.getKernel();
+    assert restoredKernel != null;
+    Assertions.assertArrayEquals(expected, restoredKernel.getData(), 0.0);
+    restoredKernel.freeRef();
+    restored.freeRef();
+    layer.freeRef();
+  }
+
+  @Nonnull
+  private static File createTempFile() throws IOException {
+    File file = File.createTempFile("checkpoint", ".bin");
+    file.deleteOnExit();
+    return file;
+  }
+
+  private static void assertEquals(@Nonnull ConvolutionLayer expected, @Nonnull ConvolutionLayer actual) {
+    Assertions.assertEquals(expected.getGroups(), actual.getGroups());
+    Assertions.assertEquals(expected.getPaddingX(), actual.getPaddingX());
+    Assertions.assertEquals(expected.getPaddingY(), actual.getPaddingY());
+    Assertions.assertArrayEquals(expected.getBias(), actual.getBias(), 0.0);
+    Tensor expectedKernel = expected.getKernel();
+    Tensor actualKernel = actual.getKernel();
+    assert expectedKernel != null;
+    assert actualKernel != null;
+    Assertions.assertArrayEquals(expectedKernel.getDimensions(), actualKernel.getDimensions());
+    Assertions.assertArrayEquals(expectedKernel.getData(), actualKernel.getData(), 0.0);
+    expectedKernel.freeRef();
+    actualKernel.freeRef();
+    expected.freeRef();
+    actual.freeRef();
+  }
+}
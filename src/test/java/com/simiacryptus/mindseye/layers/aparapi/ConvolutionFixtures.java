@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Random data, single-item evaluation and accumulators shared by the tests of this package.
+ */
+final class ConvolutionFixtures {
+
+  private ConvolutionFixtures() {
+  }
+
+  @Nonnull
+  static double[] random(@Nonnull Random random, int length) {
+    double[] data = new double[length];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = random.nextGaussian();
+    }
+    return data;
+  }
+
+  @Nonnull
+  static Tensor randomTensor(@Nonnull Random random, @Nonnull int... dims) {
+    Tensor tensor = new Tensor(dims);
+    double[] data = tensor.getData();
+    for (int i = 0; i < data.length; i++) {
+      data[i] = random.nextGaussian();
+    }
+    return tensor;
+  }
+
+  @Nonnull
+  static Tensor[] randomBatch(@Nonnull Random random, int length, @Nonnull int... dims) {
+    Tensor[] batch = new Tensor[length];
+    for (int i = 0; i < length; i++) {
+      batch[i] = randomTensor(random, dims);
+    }
+    return batch;
+  }
+
+  /**
+   * Evaluates the layer on one item without a backward pass and returns a copy of the output. Both references are
+   * consumed.
+   */
+  @Nonnull
+  static double[] eval(@Nonnull Layer layer, @Nonnull Tensor input) {
+    return eval(new Layer[]{layer}, input);
+  }
+
+  /**
+   * Evaluates the layers in sequence on one item, like {@link #eval(Layer, Tensor)}.
+   */
+  @Nonnull
+  static double[] eval(@Nonnull Layer[] layers, @Nonnull Tensor input) {
+    Result result = new Result(new TensorArray(input), new NullAccumulator(), false);
+    for (Layer layer : layers) {
+      result = layer.eval(result);
+      layer.freeRef();
+    }
+    TensorList data = result.getData();
+    Tensor output = data.get(0);
+    double[] values = output.getData().clone();
+    output.freeRef();
+    data.freeRef();
+    result.freeRef();
+    return values;
+  }
+
+  static class NullAccumulator extends Result.Accumulator {
+    @Override
+    public void accept(@Nonnull DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      buffer.freeRef();
+      delta.freeRef();
+    }
+  }
+
+  /**
+   * Keeps the last input delta it receives.
+   */
+  static class Capture extends Result.Accumulator {
+    @Nullable
+    private TensorList delta;
+
+    @Override
+    public void accept(@Nonnull DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      buffer.freeRef();
+      if (null != this.delta)
+        this.delta.freeRef();
+      this.delta = delta;
+    }
+
+    @Nonnull
+    public Tensor getDelta(int index) {
+      assert null != delta;
+      return delta.get(index);
+    }
+
+    public void _free() {
+      if (null != delta)
+        delta.freeRef();
+      super._free();
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.java.ImgBandBiasLayer;
+import com.simiacryptus.mindseye.layers.java.ImgBandScaleLayer;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefList;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+public class ConvolutionFoldingTest {
+  private final Random random = new Random(42);
+
+  @Test
+  public void basic() {
+    test(new ConvolutionLayer(3, 3, 3, 4, true), new int[]{7, 6, 3}, 4);
+  }
+
+  @Test
+  public void grouped() {
+    test(new ConvolutionLayer(3, 3, 4, 6, 2, false), new int[]{7, 6, 4}, 6);
+  }
+
+  @Test
+  public void batchNorm() {
+    final int bands = 3;
+    double[] gamma = ConvolutionFixtures.random(random, bands);
+    double[] beta = ConvolutionFixtures.random(random, bands);
+    double[] mean = ConvolutionFixtures.random(random, bands);
+    double[] variance = new double[bands];
+    double[] scale = new double[bands];
+    double[] shift = new double[bands];
+    for (int b = 0; b < bands; b++) {
+      variance[b] = 0.5 + random.nextDouble();
+      scale[b] = gamma[b] / Math.sqrt(variance[b] + 1e-5);
+      shift[b] = beta[b] - mean[b] * scale[b];
+    }
+    ConvolutionLayer convolution = new ConvolutionLayer(3, 3, 2, bands, true);
+    convolution.setWeights(() -> random.nextGaussian());
+    Tensor input = ConvolutionFixtures.randomTensor(random, new int[]{6, 6, 2});
+    double[] expected = ConvolutionFixtures.eval(convolution.addRef(), input.addRef());
+    final int plane = expected.length / bands;
+    for (int i = 0; i < expected.length; i++) {
+      final int b = i / plane;
+      expected[i] = gamma[b] * (expected[i] - mean[b]) / Math.sqrt(variance[b] + 1e-5) + beta[b];
+    }
+    Assertions.assertArrayEquals(expected,
+        ConvolutionFixtures.eval(ConvolutionFolding.fold(convolution, scale, shift), input), 1e-9);
+  }
+
+  @Test
+  public void sequence() {
+    ConvolutionLayer first = new ConvolutionLayer(3, 3, 2, 4, true);
+    first.setWeights(() -> random.nextGaussian());
+    ConvolutionLayer second = new ConvolutionLayer(3, 3, 4, 3, true);
+    second.setWeights(() -> random.nextGaussian());
+    ConvolutionLayer last = new ConvolutionLayer(1, 1, 3, 2, true);
+    last.setWeights(() -> random.nextGaussian());
+    Layer[] layers = {first, scale(4), bias(4), scale(4), second, bias(3), last};
+    Tensor input = ConvolutionFixtures.randomTensor(random, 7, 6, 2);
+    double[] expected = ConvolutionFixtures.eval(RefUtil.addRef(layers), input.addRef());
+    Layer[] folded = ConvolutionFolding.fold(layers);
+    Assertions.assertEquals(3, folded.length);
+    Assertions.assertTrue(folded[0].isFrozen());
+    Assertions.assertTrue(folded[1].isFrozen());
+    Assertions.assertSame(last, folded[2]);
+    Assertions.assertArrayEquals(expected, ConvolutionFixtures.eval(folded, input), 1e-9);
+  }
+
+  @Test
+  public void mismatched() {
+    ConvolutionLayer convolution = new ConvolutionLayer(3, 3, 2, 4, true);
+    convolution.setBias(new double[4]);
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> ConvolutionFolding.fold(convolution.addRef(), new double[3], null));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> ConvolutionFolding.fold(convolution.addRef(), new double[4], new double[8]));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> ConvolutionFolding.fold(new ConvolutionLayer(3, 3, 2, 4, true), new double[4], new double[2]));
+    convolution.freeRef();
+  }
+
+  @Test
+  public void settings() {
+    ConvolutionLayer convolution = new ConvolutionLayer(3, 3, 2, 4, true);
+    convolution.setRetention(RetainedInput.Mode.HALF);
+    convolution.setIncremental(true);
+    convolution.setWeightFormat(ConvolutionCheckpoint.Format.BINARY);
+    convolution.setStorage(ConvolutionController.Storage.HALF);
+    ConvolutionLayer folded = ConvolutionFolding.fold(convolution, ConvolutionFixtures.random(random, 4), null);
+    Assertions.assertEquals(RetainedInput.Mode.HALF, folded.getRetention());
+    Assertions.assertTrue(folded.isIncremental());
+    Assertions.assertEquals(ConvolutionCheckpoint.Format.BINARY, folded.getWeightFormat());
+    Assertions.assertEquals(ConvolutionController.Storage.HALF, folded.getStorage());
+    folded.freeRef();
+  }
+
+  @Nonnull
+  private Layer scale(int bands) {
+    return new ImgBandScaleLayer(ConvolutionFixtures.random(random, bands));
+  }
+
+  @Nonnull
+  private Layer bias(int bands) {
+    ImgBandBiasLayer layer = new ImgBandBiasLayer(bands);
+    RefList<double[]> state = layer.state();
+    assert state != null;
+    double[] weights = state.get(0);
+    state.freeRef();
+    System.arraycopy(ConvolutionFixtures.random(random, bands), 0, weights, 0, bands);
+    return layer;
+  }
+
+  private void test(@Nonnull ConvolutionLayer convolution, @Nonnull int[] inputDims, int outputBands) {
+    convolution.setWeights(() -> random.nextGaussian());
+    double[] scale = ConvolutionFixtures.random(random, outputBands);
+    double[] shift = ConvolutionFixtures.random(random, outputBands);
+    Tensor input = ConvolutionFixtures.randomTensor(random, inputDims);
+    double[] expected = ConvolutionFixtures.eval(convolution.addRef(), input.addRef());
+    final int plane = expected.length / outputBands;
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = expected[i] * scale[i / plane] + shift[i / plane];
+    }
+    ConvolutionLayer folded = ConvolutionFolding.fold(convolution, scale, shift);
+    Assertions.assertTrue(folded.isFrozen());
+    double[] once = ConvolutionFixtures.eval(folded.addRef(), input.addRef());
+    Assertions.assertArrayEquals(expected, once, 1e-9);
+
+    Assertions.assertNotNull(folded.getBias());
+    double[] refold = ConvolutionFixtures.eval(ConvolutionFolding.fold(folded, scale, null), input);
+    for (int i = 0; i < expected.length; i++) {
+      Assertions.assertEquals(once[i] * scale[i / plane], refold[i], 1e-9);
+    }
+  }
+}
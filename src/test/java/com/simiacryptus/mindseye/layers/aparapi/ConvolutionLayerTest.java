@@ -19,10 +19,20 @@
 
 package com.simiacryptus.mindseye.layers.aparapi;
 
-import com.simiacryptus.mindseye.lang.Layer;
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.test.LayerTestBase;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.UUID;
 
 public abstract class ConvolutionLayerTest extends LayerTestBase {
 
@@ -88,4 +98,139 @@ public abstract class ConvolutionLayerTest extends LayerTestBase {
     }
 
   }
+
+  public static class Grouped extends ConvolutionLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ConvolutionLayer convolutionLayer = new ConvolutionLayer(3, 3, 4, 6, 2, false);
+      convolutionLayer.setWeights(() -> this.random());
+      return convolutionLayer;
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{5, 5, 4}};
+    }
+
+  }
+
+  public static class Depthwise extends ConvolutionLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ConvolutionLayer convolutionLayer = new ConvolutionLayer(3, 3, 3, 3, 3, true);
+      convolutionLayer.setWeights(() -> this.random());
+      return convolutionLayer;
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{5, 5, 3}};
+    }
+
+  }
+
+  public static class MappedWeights {
+    private final Random random = new Random(42);
+
+    @Test
+    public void test() throws IOException {
+      ConvolutionLayer layer = new ConvolutionLayer(3, 3, 2, 4, true);
+      layer.setWeights(() -> random.nextGaussian());
+      File file = File.createTempFile("kernel", ".bin");
+      file.deleteOnExit();
+      WeightFile.write(file, layer.getKernel());
+      JsonObject json = layer.getJson(new HashMap<>(), SerialPrecision.Double);
+      json.remove("filter");
+      json.addProperty("filterFile", file.getAbsolutePath());
+      ConvolutionLayer mapped = ConvolutionLayer.fromJson(json, new HashMap<>());
+      Assertions.assertArrayEquals(layer.getKernelDimensions(), mapped.getKernelDimensions());
+      Assertions.assertTrue(mapped.getJson(new HashMap<>(), SerialPrecision.Double).has("filterFile"));
+
+      Tensor input = new Tensor(6, 6, 2);
+      double[] data = input.getData();
+      for (int i = 0; i < data.length; i++) {
+        data[i] = random.nextGaussian();
+      }
+      Result expected = layer.eval(new Result(new TensorArray(input.addRef()),
+          new ConvolutionFixtures.NullAccumulator(), false));
+      Result actual = mapped.eval(new Result(new TensorArray(input), new ConvolutionFixtures.NullAccumulator(), false));
+      Assertions.assertFalse(mapped.getJson(new HashMap<>(), SerialPrecision.Double).has("filterFile"));
+      TensorList expectedData = expected.getData();
+      TensorList actualData = actual.getData();
+      Tensor expectedTensor = expectedData.get(0);
+      Tensor actualTensor = actualData.get(0);
+      Assertions.assertArrayEquals(expectedTensor.getData(), actualTensor.getData(), 0.0);
+      expectedTensor.freeRef();
+      actualTensor.freeRef();
+      expectedData.freeRef();
+      actualData.freeRef();
+      expected.freeRef();
+      actual.freeRef();
+      layer.freeRef();
+      mapped.freeRef();
+    }
+  }
+
+  /**
+   * Checks that repeated eval and backward passes reuse their buffers once warmed up.
+   */
+  public static class Allocation {
+    private final Random random = new Random(42);
+
+    @Test
+    public void steadyState() {
+      final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      Assumptions.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+      final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+      Assumptions.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+      allocations.setThreadAllocatedMemoryEnabled(true);
+      final ConvolutionController.Backend defaultBackend = ConvolutionController.getDefaultBackend();
+      ConvolutionController.setDefaultBackend(ConvolutionController.Backend.CPU);
+      try {
+        ConvolutionLayer layer = new ConvolutionLayer(3, 3, 8, 8, true);
+        layer.setWeights(() -> random.nextGaussian());
+        final int[] inputDims = {32, 32, 8};
+        final int items = 4;
+        TensorArray batch = new TensorArray(ConvolutionFixtures.randomBatch(random, items, inputDims));
+        DeltaSet<UUID> deltas = new DeltaSet<>();
+        for (int pass = 0; pass < 3; pass++) {
+          pass(layer.addRef(), batch.addRef(), deltas.addRef());
+        }
+        final long heapAllocations = ConvolutionController.getBuffers().getAllocations();
+        final long directAllocations = ConvolutionController.getDirectBuffers().getAllocations();
+        final long threadId = Thread.currentThread().getId();
+        final long bytes = allocations.getThreadAllocatedBytes(threadId);
+        final int passes = 8;
+        for (int pass = 0; pass < passes; pass++) {
+          pass(layer.addRef(), batch.addRef(), deltas.addRef());
+        }
+        final long bytesPerPass = (allocations.getThreadAllocatedBytes(threadId) - bytes) / passes;
+        final long deltaBytes = (long) items * Tensor.length(inputDims) * Double.BYTES;
+        Assertions.assertEquals(heapAllocations, ConvolutionController.getBuffers().getAllocations());
+        Assertions.assertEquals(directAllocations, ConvolutionController.getDirectBuffers().getAllocations());
+        Assertions.assertTrue(bytesPerPass < deltaBytes / 4,
+            bytesPerPass + " bytes allocated per pass, against " + deltaBytes + " bytes of input deltas");
+        deltas.freeRef();
+        batch.freeRef();
+        layer.freeRef();
+      } finally {
+        ConvolutionController.setDefaultBackend(defaultBackend);
+      }
+    }
+
+    private static void pass(@Nonnull ConvolutionLayer layer, @Nonnull TensorList batch,
+                             @Nonnull DeltaSet<UUID> deltas) {
+      Result result = layer.eval(new Result(batch, new ConvolutionFixtures.NullAccumulator(), true));
+      TensorList output = result.getData();
+      result.getAccumulator().accept(deltas, output);
+      result.freeRef();
+      layer.freeRef();
+    }
+  }
 }
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.test.LayerTestBase;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Random;
+import java.util.UUID;
+
+public abstract class ConvolutionPoolLayerTest extends LayerTestBase {
+
+  public static class Max extends ConvolutionPoolLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ConvolutionPoolLayer layer = new ConvolutionPoolLayer(3, 3, 2, 3, ConvolutionController.Pooling.MAX, 2);
+      layer.setWeights(() -> this.random());
+      return layer;
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{6, 4, 2}};
+    }
+
+  }
+
+  public static class Average extends ConvolutionPoolLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ConvolutionPoolLayer layer = new ConvolutionPoolLayer(3, 3, 2, 3, ConvolutionController.Pooling.AVG, 2);
+      layer.setWeights(() -> this.random());
+      return layer;
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{6, 4, 2}};
+    }
+
+  }
+
+  public static class Reference {
+    private final Random random = new Random(42);
+
+    @Test
+    public void max() {
+      for (ConvolutionController.Backend backend : ConvolutionController.Backend.values()) {
+        test(backend, ConvolutionController.Pooling.MAX, 2, 2, null, new int[]{8, 7, 3});
+      }
+    }
+
+    @Test
+    public void average() {
+      for (ConvolutionController.Backend backend : ConvolutionController.Backend.values()) {
+        test(backend, ConvolutionController.Pooling.AVG, 2, 2, null, new int[]{8, 7, 3});
+      }
+    }
+
+    @Test
+    public void padded() {
+      for (ConvolutionController.Backend backend : ConvolutionController.Backend.values()) {
+        test(backend, ConvolutionController.Pooling.MAX, 3, 2, 0, new int[]{11, 9, 3});
+      }
+    }
+
+    @Test
+    public void poolLargerThanOutput() {
+      ConvolutionPoolLayer layer = new ConvolutionPoolLayer(3, 3, 2, 3, ConvolutionController.Pooling.MAX, 4);
+      Tensor input = ConvolutionFixtures.randomTensor(random, new int[]{3, 5, 2});
+      Assertions.assertThrows(IllegalArgumentException.class,
+          () -> layer.eval(new Result(new TensorArray(input), new ConvolutionFixtures.Capture(), false)));
+      layer.freeRef();
+    }
+
+    @Test
+    public void frozen() {
+      ConvolutionLayer convolution = new ConvolutionLayer(3, 3, 3, 4, true);
+      convolution.setWeights(() -> random.nextGaussian());
+      ConvolutionPoolLayer trainable = ConvolutionPoolLayer.fuse(convolution.addRef(),
+          ConvolutionController.Pooling.MAX, 2, 2);
+      convolution.setFrozen(true);
+      ConvolutionPoolLayer frozen = ConvolutionPoolLayer.fuse(convolution.addRef(),
+          ConvolutionController.Pooling.MAX, 2, 2);
+      Tensor kernel = convolution.getKernel();
+      assert kernel != null;
+      Tensor input = ConvolutionFixtures.randomTensor(random, new int[]{8, 7, 3});
+      Tensor pooledDelta = ConvolutionFixtures.randomTensor(random, new int[]{4, 3, 4});
+
+      ConvolutionFixtures.Capture trainableCapture = new ConvolutionFixtures.Capture();
+      Result trainableResult = trainable.eval(new Result(new TensorArray(input.addRef()),
+          trainableCapture.addRef(), true));
+      DeltaSet<UUID> trainableDeltas = new DeltaSet<>();
+      trainableResult.getAccumulator().accept(trainableDeltas.addRef(), new TensorArray(pooledDelta.addRef()));
+      ConvolutionFixtures.Capture frozenCapture = new ConvolutionFixtures.Capture();
+      Result frozenResult = frozen.eval(new Result(new TensorArray(input.addRef()), frozenCapture.addRef(), true));
+      DeltaSet<UUID> frozenDeltas = new DeltaSet<>();
+      frozenResult.getAccumulator().accept(frozenDeltas.addRef(), new TensorArray(pooledDelta.addRef()));
+
+      Tensor expectedInputDelta = trainableCapture.getDelta(0);
+      Tensor actualInputDelta = frozenCapture.getDelta(0);
+      Assertions.assertArrayEquals(expectedInputDelta.getData(), actualInputDelta.getData(), 1e-9);
+      Delta<UUID> frozenWeightDelta = frozenDeltas.get(frozen.getId(), kernel.addRef());
+      assert frozenWeightDelta != null;
+      Assertions.assertArrayEquals(new double[kernel.length()], frozenWeightDelta.getDelta(), 0);
+
+      frozenWeightDelta.freeRef();
+      expectedInputDelta.freeRef();
+      actualInputDelta.freeRef();
+      trainableDeltas.freeRef();
+      frozenDeltas.freeRef();
+      trainableResult.freeRef();
+      frozenResult.freeRef();
+      trainableCapture.freeRef();
+      frozenCapture.freeRef();
+      pooledDelta.freeRef();
+      input.freeRef();
+      kernel.freeRef();
+      trainable.freeRef();
+      frozen.freeRef();
+      convolution.freeRef();
+    }
+
+    private void test(@Nonnull ConvolutionController.Backend backend, @Nonnull ConvolutionController.Pooling pooling,
+                      int poolX, int poolY, @Nullable Integer padding, @Nonnull int[] inputDims) {
+      final ConvolutionController.Backend defaultBackend = ConvolutionController.getDefaultBackend();
+      ConvolutionController.setDefaultBackend(backend);
+      try {
+        ConvolutionLayer convolution = new ConvolutionLayer(3, 3, inputDims[2], 4, true);
+        convolution.setPaddingX(padding);
+        convolution.setPaddingY(padding);
+        convolution.setWeights(() -> random.nextGaussian());
+        convolution.setBias(new double[]{0.5, -1, 2, 0});
+        ConvolutionPoolLayer fused = ConvolutionPoolLayer.fuse(convolution.addRef(), pooling, poolX, poolY);
+        Tensor kernel = convolution.getKernel();
+        assert kernel != null;
+        Tensor input = ConvolutionFixtures.randomTensor(random, inputDims);
+
+        ConvolutionFixtures.Capture convolutionCapture = new ConvolutionFixtures.Capture();
+        Result convolutionResult = convolution.eval(new Result(new TensorArray(input.addRef()),
+            convolutionCapture.addRef(), true));
+        TensorList convolutionData = convolutionResult.getData();
+        Tensor full = convolutionData.get(0);
+        convolutionData.freeRef();
+        int[] fullDims = full.getDimensions();
+        int[] pooledDims = {fullDims[0] / poolX, fullDims[1] / poolY, fullDims[2]};
+        ConvolutionFixtures.Capture fusedCapture = new ConvolutionFixtures.Capture();
+        Result fusedResult = fused.eval(new Result(new TensorArray(input.addRef()), fusedCapture.addRef(), true));
+        TensorList fusedData = fusedResult.getData();
+        Tensor pooled = fusedData.get(0);
+        fusedData.freeRef();
+        Assertions.assertArrayEquals(pooledDims, pooled.getDimensions());
+
+        double[] expected = new double[pooled.length()];
+        int[] indices = new int[pooled.length()];
+        for (int band = 0; band < pooledDims[2]; band++) {
+          for (int y = 0; y < pooledDims[1]; y++) {
+            for (int x = 0; x < pooledDims[0]; x++) {
+              int i = x + pooledDims[0] * (y + pooledDims[1] * band);
+              double accum = ConvolutionController.Pooling.MAX == pooling ? Double.NEGATIVE_INFINITY : 0;
+              for (int dy = 0; dy < poolY; dy++) {
+                for (int dx = 0; dx < poolX; dx++) {
+                  int j = x * poolX + dx + fullDims[0] * (y * poolY + dy + fullDims[1] * band);
+                  double value = full.getData()[j];
+                  if (ConvolutionController.Pooling.AVG == pooling) {
+                    accum += value / (poolX * poolY);
+                  } else if (value > accum) {
+                    accum = value;
+                    indices[i] = j;
+                  }
+                }
+              }
+              expected[i] = accum;
+            }
+          }
+        }
+        Assertions.assertArrayEquals(expected, pooled.getData(), 1e-9);
+
+        Tensor pooledDelta = ConvolutionFixtures.randomTensor(random, pooledDims);
+        Tensor fullDelta = new Tensor(fullDims);
+        for (int band = 0; band < pooledDims[2]; band++) {
+          for (int y = 0; y < pooledDims[1]; y++) {
+            for (int x = 0; x < pooledDims[0]; x++) {
+              int i = x + pooledDims[0] * (y + pooledDims[1] * band);
+              if (ConvolutionController.Pooling.MAX == pooling) {
+                fullDelta.getData()[indices[i]] = pooledDelta.getData()[i];
+              } else {
+                for (int dy = 0; dy < poolY; dy++) {
+                  for (int dx = 0; dx < poolX; dx++) {
+                    int j = x * poolX + dx + fullDims[0] * (y * poolY + dy + fullDims[1] * band);
+                    fullDelta.getData()[j] = pooledDelta.getData()[i] / (poolX * poolY);
+                  }
+                }
+              }
+            }
+          }
+        }
+        DeltaSet<UUID> convolutionDeltas = new DeltaSet<>();
+        convolutionResult.getAccumulator().accept(convolutionDeltas.addRef(), new TensorArray(fullDelta.addRef()));
+        DeltaSet<UUID> fusedDeltas = new DeltaSet<>();
+        fusedResult.getAccumulator().accept(fusedDeltas.addRef(), new TensorArray(pooledDelta.addRef()));
+        Tensor expectedInputDelta = convolutionCapture.getDelta(0);
+        Tensor actualInputDelta = fusedCapture.getDelta(0);
+        Assertions.assertArrayEquals(expectedInputDelta.getData(), actualInputDelta.getData(), 1e-9);
+        Delta<UUID> expectedWeightDelta = convolutionDeltas.get(convolution.getId(), kernel.addRef());
+        Delta<UUID> actualWeightDelta = fusedDeltas.get(fused.getId(), kernel.addRef());
+        Assertions.assertArrayEquals(expectedWeightDelta.getDelta(), actualWeightDelta.getDelta(), 1e-9);
+
+        expectedWeightDelta.freeRef();
+        actualWeightDelta.freeRef();
+        expectedInputDelta.freeRef();
+        actualInputDelta.freeRef();
+        convolutionDeltas.freeRef();
+        fusedDeltas.freeRef();
+        fullDelta.freeRef();
+        pooledDelta.freeRef();
+        pooled.freeRef();
+        full.freeRef();
+        fusedResult.freeRef();
+        convolutionResult.freeRef();
+        fusedCapture.freeRef();
+        convolutionCapture.freeRef();
+        input.freeRef();
+        kernel.freeRef();
+        fused.freeRef();
+        convolution.freeRef();
+      } finally {
+        ConvolutionController.setDefaultBackend(defaultBackend);
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.test.LayerTestBase;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Random;
+import java.util.UUID;
+
+public abstract class ConvolutionTransposeLayerTest extends LayerTestBase {
+
+  public static class Basic extends ConvolutionTransposeLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ConvolutionTransposeLayer layer = new ConvolutionTransposeLayer(3, 3, 2, 3);
+      layer.setWeights(() -> this.random());
+      return layer;
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{5, 5, 2}};
+    }
+
+  }
+
+  public static class Strided extends ConvolutionTransposeLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ConvolutionTransposeLayer layer = new ConvolutionTransposeLayer(3, 3, 2, 2, 2);
+      layer.setWeights(() -> this.random());
+      return layer;
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{4, 3, 2}};
+    }
+
+  }
+
+  public static class Reference {
+    private final Random random = new Random(42);
+
+    @Test
+    public void unstrided() {
+      test(3, 3, 2, 3, 1, null, new int[]{5, 6, 2});
+    }
+
+    @Test
+    public void strided() {
+      test(3, 3, 2, 2, 2, null, new int[]{4, 3, 2});
+    }
+
+    @Test
+    public void padded() {
+      test(4, 4, 3, 2, 2, 1, new int[]{3, 4, 3});
+    }
+
+    private void test(int width, int height, int inputBands, int outputBands, int stride, @Nullable Integer padding,
+                      @Nonnull int[] inputDims) {
+      ConvolutionTransposeLayer layer = new ConvolutionTransposeLayer(width, height, inputBands, outputBands, stride);
+      layer.setPaddingX(padding);
+      layer.setPaddingY(padding);
+      layer.setWeights(() -> random.nextGaussian());
+      Tensor kernel = layer.getKernel();
+      assert kernel != null;
+      int[] kernelDims = kernel.getDimensions();
+      double[] weights = kernel.getData();
+      int[] outputDims = layer.getOutputDims(inputDims);
+      Tensor input = ConvolutionFixtures.randomTensor(random, inputDims);
+      Tensor outputDelta = ConvolutionFixtures.randomTensor(random, outputDims);
+      ConvolutionFixtures.Capture capture = new ConvolutionFixtures.Capture();
+      Result result = layer.eval(new Result(new TensorArray(input.addRef()), capture.addRef(), true));
+      TensorList data = result.getData();
+      Tensor output = data.get(0);
+      data.freeRef();
+
+      int offsetX = null == padding ? (width - 1) / 2 : padding;
+      int offsetY = null == padding ? (height - 1) / 2 : padding;
+      double[] expected = new double[output.length()];
+      for (int o2 = 0; o2 < inputDims[2]; o2++) {
+        for (int o1 = 0; o1 < inputDims[1]; o1++) {
+          for (int o0 = 0; o0 < inputDims[0]; o0++) {
+            double x = input.getData()[o0 + inputDims[0] * (o1 + inputDims[1] * o2)];
+            for (int i2 = 0; i2 < outputDims[2]; i2++) {
+              for (int k1 = 0; k1 < kernelDims[1]; k1++) {
+                for (int k0 = 0; k0 < kernelDims[0]; k0++) {
+                  int i0 = o0 * stride - k0 + offsetX;
+                  int i1 = o1 * stride - k1 + offsetY;
+                  if (i0 >= 0 && i0 < outputDims[0] && i1 >= 0 && i1 < outputDims[1]) {
+                    int k = k0 + kernelDims[0] * (k1 + kernelDims[1] * (i2 * inputDims[2] + o2));
+                    expected[i0 + outputDims[0] * (i1 + outputDims[1] * i2)] += x * weights[k];
+                  }
+                }
+              }
+            }
+          }
+        }
+      }
+      Assertions.assertArrayEquals(expected, output.getData(), 1e-9);
+
+      DeltaSet<UUID> deltaSet = new DeltaSet<>();
+      result.getAccumulator().accept(deltaSet.addRef(), new TensorArray(outputDelta.addRef()));
+      // The layer is linear in both its input and its weights, so the deltas must satisfy the adjoint identities.
+      double expectedDot = dot(outputDelta.getData(), output.getData());
+      Tensor inputDelta = capture.getDelta(0);
+      Assertions.assertEquals(expectedDot, dot(inputDelta.getData(), input.getData()), 1e-9);
+      Delta<UUID> weightDelta = deltaSet.get(layer.getId(), kernel.addRef());
+      Assertions.assertEquals(expectedDot, dot(weightDelta.getDelta(), weights), 1e-9);
+
+      weightDelta.freeRef();
+      inputDelta.freeRef();
+      deltaSet.freeRef();
+      output.freeRef();
+      result.freeRef();
+      outputDelta.freeRef();
+      input.freeRef();
+      kernel.freeRef();
+      capture.freeRef();
+      layer.freeRef();
+    }
+
+    private static double dot(@Nonnull double[] a, @Nonnull double[] b) {
+      double sum = 0;
+      for (int i = 0; i < a.length; i++) {
+        sum += a[i] * b[i];
+      }
+      return sum;
+    }
+  }
+}
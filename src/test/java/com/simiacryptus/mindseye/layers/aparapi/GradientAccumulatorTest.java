@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class GradientAccumulatorTest {
+
+  private static final Logger log = LoggerFactory.getLogger(GradientAccumulatorTest.class);
+  private static final int THREADS = 8;
+  private static final int STEPS = 4;
+
+  @Test
+  public void drain() throws Exception {
+    GradientAccumulator accumulator = new GradientAccumulator(10000);
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    Future<?>[] futures = new Future<?>[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      futures[t] = pool.submit(() -> {
+        double[] buffer = accumulator.acquire();
+        for (int i = 0; i < buffer.length; i++) {
+          buffer[i] += thread + i;
+        }
+        accumulator.release(buffer);
+      });
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    pool.shutdown();
+    Assertions.assertTrue(accumulator.getBuffers() <= accumulator.getCapacity());
+    double[] target = new double[accumulator.getLength()];
+    accumulator.drainTo(target);
+    for (int i = 0; i < target.length; i++) {
+      Assertions.assertEquals(THREADS * (THREADS - 1) / 2 + THREADS * i, target[i], 0.0);
+    }
+    double[] empty = new double[accumulator.getLength()];
+    accumulator.drainTo(empty);
+    Assertions.assertArrayEquals(new double[empty.length], empty, 0.0);
+  }
+
+  @Test
+  public void blocking() throws Exception {
+    GradientAccumulator accumulator = new GradientAccumulator(100, 1);
+    double[] held = accumulator.acquire();
+    held[0] = 1;
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    double[] target = new double[accumulator.getLength()];
+    Future<?> drain = pool.submit(() -> accumulator.drainTo(target));
+    Future<?> acquire = pool.submit(() -> {
+      double[] buffer = accumulator.acquire();
+      buffer[0] += 2;
+      accumulator.release(buffer);
+    });
+    Thread.sleep(100);
+    Assertions.assertFalse(drain.isDone());
+    Assertions.assertFalse(acquire.isDone());
+    accumulator.release(held);
+    drain.get(10, TimeUnit.SECONDS);
+    acquire.get(10, TimeUnit.SECONDS);
+    pool.shutdown();
+    Assertions.assertEquals(1, accumulator.getBuffers());
+    double[] rest = new double[accumulator.getLength()];
+    accumulator.drainTo(rest);
+    Assertions.assertEquals(3, target[0] + rest[0], 0.0);
+  }
+
+  @Test
+  public void throughput() throws Exception {
+    Random random = new Random(42);
+    Tensor[][] inputs = new Tensor[THREADS][];
+    Tensor[][] errors = new Tensor[THREADS][];
+    for (int t = 0; t < THREADS; t++) {
+      inputs[t] = ConvolutionFixtures.randomBatch(random, 2, 16, 16, 8);
+      errors[t] = ConvolutionFixtures.randomBatch(random, 2, 16, 16, 8);
+    }
+    double[] weights = new double[3 * 3 * 8 * 8];
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = random.nextGaussian();
+    }
+    double[] immediate = train(false, weights, inputs, errors);
+    double[] deferred = train(true, weights, inputs, errors);
+    for (int i = 0; i < immediate.length; i++) {
+      Assertions.assertEquals(immediate[i], deferred[i], 1e-9 * Math.max(1, Math.abs(immediate[i])));
+    }
+  }
+
+  @Nonnull
+  private static double[] train(boolean deferred, @Nonnull double[] weights, @Nonnull Tensor[][] inputs,
+                                @Nonnull Tensor[][] errors) throws Exception {
+    ConvolutionLayer layer = new ConvolutionLayer(3, 3, 8, 8, true);
+    Tensor kernel = layer.getKernel();
+    System.arraycopy(weights, 0, kernel.getData(), 0, weights.length);
+    layer.setDeferredGradient(deferred);
+    DeltaSet<UUID> deltaSet = new DeltaSet<>();
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    long start = System.nanoTime();
+    for (int step = 0; step < STEPS; step++) {
+      Future<?>[] futures = new Future<?>[THREADS];
+      for (int t = 0; t < THREADS; t++) {
+        final int thread = t;
+        futures[t] = pool.submit(() -> {
+          Result result = layer.eval(new Result(new TensorArray(copy(inputs[thread])),
+              new ConvolutionFixtures.NullAccumulator(), false));
+          result.getAccumulator().accept(deltaSet.addRef(), new TensorArray(copy(errors[thread])));
+          result.freeRef();
+        });
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      if (deferred) {
+        layer.flushGradient(deltaSet.addRef());
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    pool.shutdown();
+    pool.awaitTermination(1, TimeUnit.MINUTES);
+    log.info(String.format("%s gradient: %d threads x %d steps in %.3fs (%.1f passes/s)",
+        deferred ? "Deferred" : "Immediate", THREADS, STEPS, seconds, THREADS * STEPS / seconds));
+    Delta<UUID> delta = deltaSet.get(layer.getId(), kernel);
+    assert delta != null;
+    double[] gradient = delta.getDelta().clone();
+    delta.freeRef();
+    deltaSet.freeRef();
+    layer.freeRef();
+    return gradient;
+  }
+
+  @Nonnull
+  private static Tensor[] copy(@Nonnull Tensor[] batch) {
+    Tensor[] copy = new Tensor[batch.length];
+    for (int i = 0; i < batch.length; i++) {
+      copy[i] = new Tensor(batch[i].getData().clone(), batch[i].getDimensions());
+    }
+    return copy;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.SerialPrecision;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.Random;
+
+public class HalfPrecisionTest {
+  private final Random random = new Random(42);
+
+  @Test
+  public void roundTrip() {
+    for (int i = 0; i < 1 << 16; i++) {
+      final short half = (short) i;
+      final double value = HalfPrecision.toDouble(half);
+      if (!Double.isNaN(value)) {
+        Assertions.assertEquals(half, HalfPrecision.toHalf(value));
+      }
+    }
+  }
+
+  @Test
+  public void rounding() {
+    for (int i = 0; i < 100000; i++) {
+      final double value = Math.scalb(random.nextDouble() * 2 - 1, random.nextInt(40) - 24);
+      final double rounded = HalfPrecision.toDouble(HalfPrecision.toHalf(value));
+      final double error = Math.abs(rounded - value);
+      Assertions.assertTrue(error <= Math.max(HalfPrecision.UNIT_ROUNDOFF * Math.abs(value), HalfPrecision.SUBNORMAL_ERROR),
+          value + " => " + rounded);
+    }
+    Assertions.assertEquals(HalfPrecision.MAX_VALUE, HalfPrecision.toDouble(HalfPrecision.toHalf(HalfPrecision.MAX_VALUE)), 0.0);
+    Assertions.assertTrue(Double.isInfinite(HalfPrecision.toDouble(HalfPrecision.toHalf(65520))));
+    Assertions.assertEquals(1.0, HalfPrecision.toDouble(HalfPrecision.toHalf(1 + HalfPrecision.UNIT_ROUNDOFF)), 0.0);
+  }
+
+  @Test
+  public void convolveAparapi() {
+    test(ConvolutionController.Backend.APARAPI);
+  }
+
+  @Test
+  public void convolveCpu() {
+    test(ConvolutionController.Backend.CPU);
+  }
+
+  @Test
+  public void layer() {
+    ConvolutionLayer layer = new ConvolutionLayer(3, 3, 2, 4, true);
+    final int[] inputDims = {6, 6, 2};
+    Assertions.assertEquals(ConvolutionController.getDefaultStorage(), layer.newController(inputDims).getStorage());
+    final ConvolutionController.Storage defaultStorage = ConvolutionController.getDefaultStorage();
+    try {
+      ConvolutionController.setDefaultStorage(ConvolutionController.Storage.HALF);
+      Assertions.assertEquals(ConvolutionController.Storage.HALF, layer.newController(inputDims).getStorage());
+    } finally {
+      ConvolutionController.setDefaultStorage(defaultStorage);
+    }
+    layer.setStorage(ConvolutionController.Storage.HALF);
+    Assertions.assertEquals(ConvolutionController.Storage.HALF, layer.newController(inputDims).getStorage());
+    JsonObject json = layer.getJson(new HashMap<>(), SerialPrecision.Double);
+    ConvolutionLayer copy = ConvolutionLayer.fromJson(json, new HashMap<>());
+    Assertions.assertEquals(ConvolutionController.Storage.HALF, copy.getStorage());
+    Assertions.assertEquals(ConvolutionController.Storage.HALF, copy.newController(inputDims).getStorage());
+    layer.freeRef();
+    copy.freeRef();
+  }
+
+  private void test(@Nonnull ConvolutionController.Backend backend) {
+    int[] inputSize = {9, 8, 3};
+    int[] kernelSize = {3, 3, 12};
+    ConvolutionController controller = new ConvolutionController(inputSize, kernelSize, null, null);
+    controller.setBackend(backend);
+    final int items = 4;
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[0] * kernelSize[1] * kernelSize[2]);
+    double[][] input = new double[items][];
+    double[][] expected = new double[items][];
+    double[][] actual = new double[items][];
+    double[][] magnitudeInput = new double[items][];
+    double[][] magnitude = new double[items][];
+    for (int i = 0; i < items; i++) {
+      input[i] = ConvolutionFixtures.random(random, controller.getInputLength());
+      magnitudeInput[i] = abs(input[i]);
+      expected[i] = new double[controller.getOutputLength()];
+      actual[i] = new double[controller.getOutputLength()];
+      magnitude[i] = new double[controller.getOutputLength()];
+    }
+    controller.convolve(input, weights, expected);
+    controller.convolve(magnitudeInput, abs(weights), magnitude);
+    controller.setStorage(ConvolutionController.Storage.HALF);
+    controller.convolve(input, weights, actual);
+    final double factor = 2 * HalfPrecision.UNIT_ROUNDOFF + HalfPrecision.UNIT_ROUNDOFF * HalfPrecision.UNIT_ROUNDOFF;
+    for (int i = 0; i < items; i++) {
+      for (int j = 0; j < expected[i].length; j++) {
+        final double bound = factor * magnitude[i][j] + 1e-12;
+        Assertions.assertTrue(Math.abs(expected[i][j] - actual[i][j]) <= bound,
+            expected[i][j] + " vs " + actual[i][j] + " exceeds " + bound);
+      }
+    }
+  }
+
+  @Nonnull
+  private static double[] abs(@Nonnull double[] data) {
+    double[] result = new double[data.length];
+    for (int i = 0; i < data.length; i++) {
+      result[i] = Math.abs(data[i]);
+    }
+    return result;
+  }
+}
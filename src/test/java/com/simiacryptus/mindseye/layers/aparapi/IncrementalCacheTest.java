@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Random;
+
+public class IncrementalCacheTest {
+  private final Random random = new Random(42);
+
+  @Test
+  public void basic() {
+    test(new int[]{24, 20, 3}, new int[]{3, 3, 6}, null, null, 1, false);
+  }
+
+  @Test
+  public void padded() {
+    test(new int[]{24, 20, 3}, new int[]{5, 3, 6}, 1, 0, 1, false);
+  }
+
+  @Test
+  public void grouped() {
+    test(new int[]{16, 16, 4}, new int[]{3, 3, 12}, null, null, 2, false);
+  }
+
+  @Test
+  public void marked() {
+    test(new int[]{24, 20, 3}, new int[]{3, 3, 6}, null, null, 1, true);
+  }
+
+  @Test
+  public void spanning() {
+    test(new int[]{40, 36, 3}, new int[]{3, 3, 4}, null, null, 1, true, new int[]{3, 25, 30, 11});
+  }
+
+  private void test(@Nonnull int[] inputSize, @Nonnull int[] kernelSize, @Nullable Integer paddingX,
+                    @Nullable Integer paddingY, int groups, boolean marked) {
+    test(inputSize, kernelSize, paddingX, paddingY, groups, marked, new int[]{5, 4, 3, 2});
+  }
+
+  /**
+   * Changes the <code>{x, y, width, height}</code> box of the input, and a box of the error, between two updates.
+   */
+  private void test(@Nonnull int[] inputSize, @Nonnull int[] kernelSize, @Nullable Integer paddingX,
+                    @Nullable Integer paddingY, int groups, boolean marked, @Nonnull int[] box) {
+    ConvolutionController controller = new ConvolutionController(inputSize, kernelSize, paddingX, paddingY, groups);
+    final int items = 2;
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[0] * kernelSize[1] * kernelSize[2]);
+    double[][] input = new double[items][];
+    double[][] error = new double[items][];
+    for (int i = 0; i < items; i++) {
+      input[i] = ConvolutionFixtures.random(random, controller.getInputLength());
+      error[i] = ConvolutionFixtures.random(random, controller.getOutputLength());
+    }
+    IncrementalCache forward = new IncrementalCache(IncrementalCache.Pass.FORWARD);
+    IncrementalCache backward = new IncrementalCache(IncrementalCache.Pass.BACKWARD);
+    forward.apply(controller, input, weights, new double[items][controller.getOutputLength()]);
+    backward.apply(controller, error, weights, new double[items][controller.getInputLength()]);
+
+    change(input, inputSize, box[0], box[1], box[2], box[3]);
+    change(error, controller.getOutputDims(), box[1], box[0], box[3], box[2]);
+    if (marked)
+      forward.markDirty(box[0], box[1], box[2], box[3]);
+    double[][] actualOutput = new double[items][controller.getOutputLength()];
+    double[][] actualBackprop = new double[items][controller.getInputLength()];
+    forward.apply(controller, input, weights, actualOutput);
+    backward.apply(controller, error, weights, actualBackprop);
+
+    double[][] expectedOutput = new double[items][controller.getOutputLength()];
+    double[][] expectedBackprop = new double[items][controller.getInputLength()];
+    controller.convolve(input, weights, expectedOutput);
+    controller.backprop(expectedBackprop, weights, error);
+    for (int i = 0; i < items; i++) {
+      Assertions.assertArrayEquals(expectedOutput[i], actualOutput[i], 1e-9);
+      Assertions.assertArrayEquals(expectedBackprop[i], actualBackprop[i], 1e-9);
+    }
+    Assertions.assertTrue(forward.getRecomputedFraction() < 0.75, "Recomputed " + forward.getRecomputedFraction());
+    Assertions.assertTrue(backward.getRecomputedFraction() < 0.75, "Recomputed " + backward.getRecomputedFraction());
+
+    weights[0] += 1;
+    forward.apply(controller, input, weights, actualOutput);
+    controller.convolve(input, weights, expectedOutput);
+    for (int i = 0; i < items; i++) {
+      Assertions.assertArrayEquals(expectedOutput[i], actualOutput[i], 1e-9);
+    }
+  }
+
+  private void change(@Nonnull double[][] data, @Nonnull int[] size, int x, int y, int width, int height) {
+    for (double[] item : data) {
+      for (int band = 0; band < size[2]; band++) {
+        for (int row = y; row < y + height; row++) {
+          for (int col = x; col < x + width; col++) {
+            item[col + size[0] * (row + size[1] * band)] = random.nextGaussian();
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+public class KernelDecompositionTest {
+  private final Random random = new Random(42);
+
+  @Test
+  public void separable() {
+    ConvolutionLayer convolution = new ConvolutionLayer(5, 3, 4, 6, true);
+    convolution.setBias(ConvolutionFixtures.random(random, 6));
+    separable(convolution, 4, 6, 2);
+    test(convolution, new int[]{9, 8, 4}, KernelDecomposition.Mode.SEPARABLE, 2);
+  }
+
+  @Test
+  public void padded() {
+    ConvolutionLayer convolution = new ConvolutionLayer(5, 3, 4, 6, false);
+    convolution.setPaddingX(1);
+    convolution.setPaddingY(2);
+    separable(convolution, 4, 6, 1);
+    test(convolution, new int[]{9, 8, 4}, KernelDecomposition.Mode.SEPARABLE, 1);
+  }
+
+  @Test
+  public void projection() {
+    final int inputBands = 8;
+    final int outputBands = 8;
+    final int rank = 2;
+    ConvolutionLayer convolution = new ConvolutionLayer(3, 3, inputBands, outputBands, true);
+    double[] projection = ConvolutionFixtures.random(random, inputBands * rank);
+    double[] spatial = ConvolutionFixtures.random(random, 9 * rank * outputBands);
+    Tensor kernel = convolution.getKernel();
+    assert kernel != null;
+    double[] weights = kernel.getData();
+    for (int i = 0; i < inputBands; i++) {
+      for (int o = 0; o < outputBands; o++) {
+        for (int k = 0; k < 9; k++) {
+          double sum = 0;
+          for (int m = 0; m < rank; m++) {
+            sum += projection[i * rank + m] * spatial[k + 9 * (m * outputBands + o)];
+          }
+          weights[k + 9 * (i * outputBands + o)] = sum;
+        }
+      }
+    }
+    kernel.freeRef();
+    test(convolution, new int[]{7, 6, inputBands}, KernelDecomposition.Mode.PROJECTION, rank);
+  }
+
+  @Test
+  public void dense() {
+    ConvolutionLayer convolution = new ConvolutionLayer(3, 3, 3, 4, true);
+    convolution.setWeights(() -> random.nextGaussian());
+    test(convolution, new int[]{7, 6, 3}, KernelDecomposition.Mode.DENSE, 0);
+  }
+
+  private void test(@Nonnull ConvolutionLayer convolution, @Nonnull int[] inputDims,
+                    @Nonnull KernelDecomposition.Mode mode, int rank) {
+    Tensor input = ConvolutionFixtures.randomTensor(random, inputDims);
+    double[] expected = ConvolutionFixtures.eval(convolution.addRef(), input.addRef());
+    KernelDecomposition decomposition = KernelDecomposition.decompose(convolution, inputDims[2], 1e-6);
+    Assertions.assertEquals(mode, decomposition.getMode(), decomposition.toString());
+    Assertions.assertEquals(rank, decomposition.getRank(), decomposition.toString());
+    Assertions.assertTrue(decomposition.getError() <= 1e-6, decomposition.toString());
+    Assertions.assertTrue(KernelDecomposition.Mode.DENSE == mode ? 1 == decomposition.getSpeedup()
+        : 1 < decomposition.getSpeedup(), decomposition.toString());
+    Assertions.assertArrayEquals(expected, ConvolutionFixtures.eval(decomposition.getLayer(), input), 1e-9);
+    decomposition.freeRef();
+  }
+
+  private void separable(@Nonnull ConvolutionLayer convolution, int inputBands, int outputBands, int rank) {
+    Tensor kernel = convolution.getKernel();
+    assert kernel != null;
+    int[] dims = kernel.getDimensions();
+    double[] vertical = ConvolutionFixtures.random(random, dims[1] * inputBands * rank);
+    double[] horizontal = ConvolutionFixtures.random(random, dims[0] * outputBands * rank);
+    double[] weights = kernel.getData();
+    for (int i = 0; i < inputBands; i++) {
+      for (int o = 0; o < outputBands; o++) {
+        for (int k1 = 0; k1 < dims[1]; k1++) {
+          for (int k0 = 0; k0 < dims[0]; k0++) {
+            double sum = 0;
+            for (int m = 0; m < rank; m++) {
+              sum += vertical[k1 + dims[1] * (i * rank + m)] * horizontal[k0 + dims[0] * (m * outputBands + o)];
+            }
+            weights[k0 + dims[0] * (k1 + dims[1] * (i * outputBands + o))] = sum;
+          }
+        }
+      }
+    }
+    kernel.freeRef();
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.aparapi.Range;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+public class LaunchPlannerTest {
+
+  private static final Logger log = LoggerFactory.getLogger(LaunchPlannerTest.class);
+  private final Random random = new Random(42);
+
+  @Test
+  public void geometry() {
+    LaunchPlanner planner = new LaunchPlanner(256, new int[]{256, 256, 64});
+    Assertions.assertArrayEquals(new int[]{64, 4, 1}, planner.getLocalSize(64, 64, 12));
+    Assertions.assertArrayEquals(new int[]{4, 4, 16}, planner.getLocalSize(7, 6, 30));
+    Range range = planner.plan(7, 6, 30);
+    Assertions.assertEquals(8, range.getGlobalSize(0));
+    Assertions.assertEquals(8, range.getGlobalSize(1));
+    Assertions.assertEquals(32, range.getGlobalSize(2));
+    Range flat = new LaunchPlanner(1, new int[]{1, 1, 1}).plan(7, 6, 30);
+    Assertions.assertEquals(1, flat.getLocalSize(0) * flat.getLocalSize(1) * flat.getLocalSize(2));
+    Range limited = new LaunchPlanner(64, new int[]{8, 8, 8}).plan(100, 100);
+    Assertions.assertEquals(8, limited.getLocalSize(0));
+    Assertions.assertEquals(8, limited.getLocalSize(1));
+    Assertions.assertEquals(104, limited.getGlobalSize(0));
+  }
+
+  @Test
+  public void benchmark() {
+    benchmark(new int[]{7, 6, 3}, new int[]{3, 3, 6}, 3);
+    benchmark(new int[]{32, 32, 16}, new int[]{3, 3, 16 * 16}, 8);
+    benchmark(new int[]{100, 75, 3}, new int[]{5, 5, 3 * 8}, 4);
+    benchmark(new int[]{17, 257, 8}, new int[]{1, 1, 8 * 4}, 2);
+  }
+
+  private void benchmark(@Nonnull int[] inputSize, @Nonnull int[] kernelSize, int items) {
+    ConvolutionController controller = new ConvolutionController(inputSize, kernelSize, null, null);
+    controller.setBackend(ConvolutionController.Backend.APARAPI);
+    controller.setPointwise(false);
+    ConvolutionController cpu = new ConvolutionController(inputSize, kernelSize, null, null);
+    cpu.setBackend(ConvolutionController.Backend.CPU);
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[0] * kernelSize[1] * kernelSize[2]);
+    double[] input = ConvolutionFixtures.random(random, items * controller.getInputLength());
+    double[] error = ConvolutionFixtures.random(random, items * controller.getOutputLength());
+    double[] expected = new double[error.length];
+    cpu.convolve(input, weights, expected);
+    try {
+      for (LaunchPlanner planner : new LaunchPlanner[]{new LaunchPlanner(1, new int[]{1, 1, 1}), null}) {
+        LaunchPlanner.setDefault(planner);
+        double[] output = new double[error.length];
+        double[] backprop = new double[input.length];
+        double[] gradient = new double[weights.length];
+        controller.convolve(input, weights, output);
+        long start = System.nanoTime();
+        final int passes = 4;
+        for (int pass = 0; pass < passes; pass++) {
+          controller.convolve(input, weights, output);
+          controller.backprop(backprop, weights, error);
+          controller.gradient(input, gradient, error);
+        }
+        double millis = (System.nanoTime() - start) / 1e6 / passes;
+        log.info(String.format("%s with %s: %.3fms per pass", controller, LaunchPlanner.getDefault(), millis));
+        Assertions.assertArrayEquals(expected, output, 1e-9);
+      }
+    } finally {
+      LaunchPlanner.setDefault(null);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class MicroBatcherTest {
+
+  private static final int THREADS = 8;
+
+  @Test
+  public void coalesce() throws Exception {
+    Random random = new Random(42);
+    ConvolutionLayer layer = new ConvolutionLayer(3, 3, 4, 4, true);
+    layer.setWeights(random::nextGaussian);
+    Tensor[] inputs = ConvolutionFixtures.randomBatch(random, THREADS, 12, 12, 4);
+    MicroBatcher batcher = new MicroBatcher(layer.addRef(), 1, TimeUnit.SECONDS, THREADS);
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    CountDownLatch start = new CountDownLatch(1);
+    @SuppressWarnings("unchecked")
+    Future<double[]>[] futures = new Future[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      final Tensor input = new Tensor(inputs[t].getData().clone(), inputs[t].getDimensions());
+      futures[t] = pool.submit(() -> {
+        start.await();
+        Tensor output = batcher.eval(input);
+        double[] values = output.getData().clone();
+        output.freeRef();
+        return values;
+      });
+    }
+    start.countDown();
+    for (int t = 0; t < THREADS; t++) {
+      Assertions.assertArrayEquals(ConvolutionFixtures.eval(layer.addRef(), inputs[t]), futures[t].get(), 1e-12);
+    }
+    pool.shutdown();
+    Assertions.assertEquals(THREADS, batcher.getItemCount());
+    Assertions.assertTrue(batcher.getBatchCount() < THREADS, "Batches: " + batcher.getBatchCount());
+    batcher.freeRef();
+    layer.freeRef();
+  }
+
+  @Test
+  public void deadline() {
+    ConvolutionLayer layer = new ConvolutionLayer(3, 3, 2, 2, true);
+    MicroBatcher batcher = new MicroBatcher(layer, 20, TimeUnit.MILLISECONDS, THREADS);
+    long start = System.nanoTime();
+    Tensor output = batcher.eval(new Tensor(5, 5, 2));
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    Assertions.assertArrayEquals(new int[]{5, 5, 2}, output.getDimensions());
+    Assertions.assertTrue(elapsed >= 20, "Returned after " + elapsed + "ms");
+    Assertions.assertEquals(1, batcher.getBatchCount());
+    output.freeRef();
+    batcher.freeRef();
+  }
+}
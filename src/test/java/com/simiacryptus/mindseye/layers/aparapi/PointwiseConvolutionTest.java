@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class PointwiseConvolutionTest {
+  private static final Logger log = LoggerFactory.getLogger(PointwiseConvolutionTest.class);
+  private final Random random = new Random(42);
+
+  @Test
+  public void cpu() {
+    cpu(new int[]{7, 5, 24}, 40, 1);
+    cpu(new int[]{9, 4, 8}, 6, 2);
+    cpu(new int[]{16, 16, 4}, 4, 1);
+  }
+
+  @Test
+  public void aparapi() {
+    for (ConvolutionController.Layout layout : new ConvolutionController.Layout[]{
+        ConvolutionController.Layout.PLANAR, ConvolutionController.Layout.INTERLEAVED}) {
+      aparapi(new int[]{6, 5, 16}, new int[]{1, 1, 16 * 24}, 1, layout);
+      aparapi(new int[]{6, 5, 32}, new int[]{1, 1, 32 * 16 / 2}, 2, layout);
+    }
+  }
+
+  @Test
+  public void detection() {
+    ConvolutionController controller = new ConvolutionController(new int[]{8, 8, 4}, new int[]{1, 1, 8}, null, null);
+    Assertions.assertTrue(controller.isPointwise());
+    controller.setPointwise(false);
+    Assertions.assertFalse(controller.isPointwise());
+    Assertions.assertFalse(new ConvolutionController(new int[]{8, 8, 4}, new int[]{1, 1, 8}, 1, 1).isPointwise());
+    Assertions.assertFalse(new ConvolutionController(new int[]{8, 8, 4}, new int[]{3, 3, 8}, null, null).isPointwise());
+    Assertions.assertFalse(new ConvolutionController(new int[]{8, 8, 4}, new int[]{1, 1, 8}, null, null,
+        1, 2, 2).isPointwise());
+  }
+
+  /**
+   * Times a wide 1x1 convolution on one thread against the body of the generic {@link ConvolveKernel}, which is what
+   * every backend ran for 1x1 layers before they were routed to the blocked product. The narrow gradient is timed
+   * against {@link CpuConvolution}, since it is the case the pixel split serves.
+   */
+  @Test
+  public void speed() {
+    final int bands = 256;
+    final int size = 32;
+    final int items = 2;
+    final int plane = size * size;
+    double[] wideWeights = ConvolutionFixtures.random(random, bands * bands);
+    double[] wideInput = ConvolutionFixtures.random(random, items * plane * bands);
+    ConvolveKernel kernel = new ConvolveKernel();
+    kernel.inputSize = new int[]{size, size, bands};
+    kernel.outputSize = new int[]{size, size, bands};
+    kernel.kernelSize = new int[]{1, 1, bands * bands};
+    kernel.kernelOffset = new int[]{0, 0};
+    kernel.input = wideInput;
+    kernel.weights = wideWeights;
+    PointwiseConvolution wideGemm = new PointwiseConvolution(bands, bands, plane, 1, VectorOps.INSTANCE,
+        new ForkJoinPool(1));
+    double[] generic = new double[wideInput.length];
+    double[] pointwise = new double[wideInput.length];
+    double genericSeconds = time(() -> {
+      for (int i = 0; i < generic.length; i++) {
+        generic[i] = kernel.run(i % size, i / size % size, i / plane % bands, i / (plane * bands));
+      }
+    });
+    double pointwiseSeconds = time(() -> wideGemm.convolve(wideInput, wideWeights, pointwise));
+    Assertions.assertArrayEquals(generic, pointwise, 1e-9);
+    log.info(String.format("1x1 convolve, %d bands, one thread: generic kernel %.4fs, pointwise %.4fs, %.1fx", bands,
+        genericSeconds, pointwiseSeconds, genericSeconds / pointwiseSeconds));
+    Assertions.assertTrue(10 * pointwiseSeconds < genericSeconds,
+        "Convolve " + pointwiseSeconds + "s against " + genericSeconds + "s");
+
+    int[] narrowSize = {64, 64, 8};
+    double[] narrowInput = ConvolutionFixtures.random(random, 16 * 64 * 64 * 8);
+    double[] narrowError = ConvolutionFixtures.random(random, narrowInput.length);
+    CpuConvolution narrow = new CpuConvolution(narrowSize, new int[]{1, 1, 8 * 8}, narrowSize, new int[]{0, 0}, 1);
+    PointwiseConvolution narrowGemm = new PointwiseConvolution(8, 8, 64 * 64, 1);
+    double[] expected = new double[8 * 8];
+    double[] actual = new double[8 * 8];
+    genericSeconds = time(() -> narrow.gradient(narrowInput, expected, narrowError));
+    pointwiseSeconds = time(() -> narrowGemm.gradient(narrowInput, actual, narrowError));
+    Assertions.assertArrayEquals(expected, actual, 1e-6);
+    log.info(String.format("1x1 gradient, 8 bands: generic %.4fs, pointwise %.4fs, %.1fx", genericSeconds,
+        pointwiseSeconds, genericSeconds / pointwiseSeconds));
+    Assertions.assertTrue(pointwiseSeconds < 1.25 * genericSeconds, "Gradient " + pointwiseSeconds + "s");
+  }
+
+  /**
+   * The best of several runs after a warm-up, in seconds.
+   */
+  private static double time(@Nonnull Runnable pass) {
+    pass.run();
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      long start = System.nanoTime();
+      pass.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best / 1e9;
+  }
+
+  private void cpu(@Nonnull int[] inputSize, int outputBands, int groups) {
+    int[] kernelSize = {1, 1, inputSize[2] * outputBands / groups};
+    int[] outputSize = {inputSize[0], inputSize[1], outputBands};
+    final int items = 3;
+    final int plane = inputSize[0] * inputSize[1];
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[2]);
+    double[] input = ConvolutionFixtures.random(random, items * plane * inputSize[2]);
+    double[] error = ConvolutionFixtures.random(random, items * plane * outputBands);
+    CpuConvolution generic = new CpuConvolution(inputSize, kernelSize, outputSize, new int[]{0, 0}, groups);
+    PointwiseConvolution pointwise = new PointwiseConvolution(inputSize[2], outputBands, plane, groups);
+
+    double[] expectedOutput = new double[error.length];
+    double[] actualOutput = ConvolutionFixtures.random(random, error.length);
+    generic.convolve(input, weights, expectedOutput);
+    pointwise.convolve(input, weights, actualOutput);
+    Assertions.assertArrayEquals(expectedOutput, actualOutput, 1e-9);
+
+    double[] expectedBackprop = new double[input.length];
+    double[] actualBackprop = ConvolutionFixtures.random(random, input.length);
+    generic.backprop(expectedBackprop, weights, error);
+    pointwise.backprop(actualBackprop, weights, error);
+    Assertions.assertArrayEquals(expectedBackprop, actualBackprop, 1e-9);
+
+    double[] expectedGradient = new double[weights.length];
+    double[] actualGradient = ConvolutionFixtures.random(random, weights.length);
+    generic.gradient(input, expectedGradient, error);
+    pointwise.gradient(input, actualGradient, error);
+    Assertions.assertArrayEquals(expectedGradient, actualGradient, 1e-9);
+  }
+
+  private void aparapi(@Nonnull int[] inputSize, @Nonnull int[] kernelSize, int groups,
+                       @Nonnull ConvolutionController.Layout layout) {
+    ConvolutionController generic = new ConvolutionController(inputSize, kernelSize, null, null, groups);
+    generic.setBackend(ConvolutionController.Backend.APARAPI);
+    generic.setPointwise(false);
+    ConvolutionController pointwise = new ConvolutionController(inputSize, kernelSize, null, null, groups);
+    pointwise.setBackend(ConvolutionController.Backend.APARAPI);
+    pointwise.setLayout(layout);
+    pointwise.setPointwise(true);
+    Assertions.assertTrue(pointwise.isPointwise());
+    final int items = 3;
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[2]);
+    double[][] input = new double[items][];
+    double[][] error = new double[items][];
+    for (int i = 0; i < items; i++) {
+      input[i] = ConvolutionFixtures.random(random, generic.getInputLength());
+      error[i] = ConvolutionFixtures.random(random, generic.getOutputLength());
+    }
+
+    double[][] expectedOutput = new double[items][generic.getOutputLength()];
+    double[][] actualOutput = new double[items][generic.getOutputLength()];
+    generic.convolve(input, weights, expectedOutput);
+    pointwise.convolve(input, weights, actualOutput);
+    double[][] expectedBackprop = new double[items][generic.getInputLength()];
+    double[][] actualBackprop = new double[items][generic.getInputLength()];
+    generic.backprop(expectedBackprop, weights, error);
+    pointwise.backprop(actualBackprop, weights, error);
+    for (int i = 0; i < items; i++) {
+      Assertions.assertArrayEquals(expectedOutput[i], actualOutput[i], 1e-9);
+      Assertions.assertArrayEquals(expectedBackprop[i], actualBackprop[i], 1e-9);
+    }
+
+    double[] expectedGradient = new double[weights.length];
+    double[] actualGradient = new double[weights.length];
+    generic.gradient(input, expectedGradient, error);
+    pointwise.gradient(input, actualGradient, error);
+    Assertions.assertArrayEquals(expectedGradient, actualGradient, 1e-9);
+  }
+}
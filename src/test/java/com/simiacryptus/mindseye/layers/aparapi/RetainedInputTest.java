@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+import java.util.UUID;
+
+public class RetainedInputTest {
+
+  @Test
+  public void sparse() {
+    double[] expected = gradient(RetainedInput.Mode.FULL);
+    Assertions.assertArrayEquals(expected, gradient(RetainedInput.Mode.SPARSE), 0.0);
+  }
+
+  @Test
+  public void half() {
+    double[] expected = gradient(RetainedInput.Mode.FULL);
+    double[] actual = gradient(RetainedInput.Mode.HALF);
+    for (int i = 0; i < expected.length; i++) {
+      Assertions.assertEquals(expected[i], actual[i], 1e-2 * Math.max(1, Math.abs(expected[i])));
+    }
+  }
+
+  @Test
+  public void footprint() {
+    Random random = new Random(42);
+    Tensor[] batch = ConvolutionFixtures.randomBatch(random, 4, 16, 16, 8);
+    for (Tensor tensor : batch) {
+      double[] data = tensor.getData();
+      for (int i = 0; i < data.length; i++) {
+        data[i] = random.nextDouble() < 0.9 ? 0 : Math.abs(data[i]);
+      }
+    }
+    TensorArray input = new TensorArray(batch);
+    RetainedInput full = RetainedInput.create(RetainedInput.Mode.FULL, input.addRef());
+    RetainedInput half = RetainedInput.create(RetainedInput.Mode.HALF, input.addRef());
+    RetainedInput sparse = RetainedInput.create(RetainedInput.Mode.SPARSE, input);
+    Assertions.assertEquals(4L * 16 * 16 * 8 * Double.BYTES, full.getBytes());
+    Assertions.assertEquals(full.getBytes() / 4, half.getBytes());
+    Assertions.assertTrue(sparse.getBytes() < full.getBytes() / 4, sparse.getBytes() + " bytes");
+    full.freeRef();
+    half.freeRef();
+    sparse.freeRef();
+  }
+
+  @Test
+  public void empty() {
+    for (RetainedInput.Mode mode : RetainedInput.Mode.values()) {
+      RetainedInput retained = RetainedInput.create(mode, new TensorArray());
+      Assertions.assertEquals(0, retained.length());
+      Assertions.assertEquals(0, retained.getBytes());
+      retained.freeRef();
+    }
+  }
+
+  @Nonnull
+  private static double[] gradient(@Nonnull RetainedInput.Mode mode) {
+    Random random = new Random(42);
+    ConvolutionLayer layer = new ConvolutionLayer(3, 3, 3, 2, true);
+    layer.setWeights(() -> random.nextGaussian());
+    layer.setRetention(mode);
+    Tensor[] input = new Tensor[4];
+    Tensor[] error = new Tensor[input.length];
+    for (int i = 0; i < input.length; i++) {
+      input[i] = new Tensor(8, 7, 3);
+      double[] data = input[i].getData();
+      for (int j = 0; j < data.length; j++) {
+        data[j] = Math.max(0, random.nextGaussian());
+      }
+      error[i] = new Tensor(8, 7, 2);
+      double[] delta = error[i].getData();
+      for (int j = 0; j < delta.length; j++) {
+        delta[j] = random.nextGaussian();
+      }
+    }
+    Result result = layer.eval(new Result(new TensorArray(input), new ConvolutionFixtures.NullAccumulator(), false));
+    DeltaSet<UUID> deltaSet = new DeltaSet<>();
+    result.getAccumulator().accept(deltaSet.addRef(), new TensorArray(error));
+    Tensor kernel = layer.getKernel();
+    Delta<UUID> delta = deltaSet.get(layer.getId(), kernel);
+    assert delta != null;
+    double[] gradient = delta.getDelta().clone();
+    delta.freeRef();
+    deltaSet.freeRef();
+    result.freeRef();
+    layer.freeRef();
+    return gradient;
+  }
+}
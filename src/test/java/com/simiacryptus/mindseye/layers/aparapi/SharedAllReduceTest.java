@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import com.simiacryptus.mindseye.lang.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+public class SharedAllReduceTest {
+  private static final int WORKERS = 3;
+  private static final int STEPS = 4;
+  private static final int ITEMS = 2;
+  private static final double RATE = 1e-4;
+  private static final int[] INPUT_DIMS = {6, 6, 2};
+
+  @Test
+  public void deferred() throws Exception {
+    File region = createTempFile("allreduce", ".bin");
+    File[] outputs = new File[WORKERS];
+    List<Process> processes = new ArrayList<>();
+    for (int rank = 0; rank < WORKERS; rank++) {
+      outputs[rank] = createTempFile("worker" + rank, ".bin");
+      processes.add(new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+          System.getProperty("java.class.path"), Worker.class.getName(), region.getPath(), Integer.toString(rank),
+          outputs[rank].getPath()).inheritIO().start());
+    }
+    for (Process process : processes) {
+      Assertions.assertTrue(process.waitFor(2, TimeUnit.MINUTES), "Worker timed out");
+      Assertions.assertEquals(0, process.exitValue());
+    }
+
+    ConvolutionController.Backend defaultBackend = ConvolutionController.getDefaultBackend();
+    ConvolutionController.setDefaultBackend(ConvolutionController.Backend.CPU);
+    ConvolutionLayer reference = newLayer(0);
+    try {
+      for (int step = 0; step < STEPS; step++) {
+        Tensor[] batch = new Tensor[WORKERS * ITEMS];
+        for (int rank = 0; rank < WORKERS; rank++) {
+          Tensor[] shard = shard(rank, step);
+          System.arraycopy(shard, 0, batch, rank * ITEMS, ITEMS);
+        }
+        train(reference, batch, false);
+      }
+    } finally {
+      ConvolutionController.setDefaultBackend(defaultBackend);
+    }
+    Tensor expected = reference.getKernel();
+    assert expected != null;
+    Tensor first = ConvolutionCheckpoint.read(outputs[0]).getKernel();
+    Assertions.assertArrayEquals(expected.getData(), first.getData(), 1e-9);
+    for (int rank = 1; rank < WORKERS; rank++) {
+      Tensor actual = ConvolutionCheckpoint.read(outputs[rank]).getKernel();
+      Assertions.assertArrayEquals(first.getData(), actual.getData(), 0.0);
+      actual.freeRef();
+    }
+    first.freeRef();
+    expected.freeRef();
+    reference.freeRef();
+  }
+
+  @Test
+  public void requiresDeferred() throws Exception {
+    ConvolutionLayer layer = newLayer(0);
+    Tensor kernel = layer.getKernel();
+    assert kernel != null;
+    File region = createTempFile("allreduce", ".bin");
+    try (SharedAllReduce allReduce = SharedAllReduce.open(region, 0, 1, kernel.length())) {
+      Assertions.assertThrows(IllegalStateException.class, () -> layer.setAllReduce(allReduce));
+      layer.setDeferredGradient(true);
+      layer.setAllReduce(allReduce);
+      Assertions.assertThrows(IllegalStateException.class, () -> layer.setDeferredGradient(false));
+      layer.setAllReduce(null);
+    }
+    kernel.freeRef();
+    layer.freeRef();
+  }
+
+  @Test
+  public void duplicate() throws Exception {
+    File region = createTempFile("allreduce", ".bin");
+    try (SharedAllReduce allReduce = SharedAllReduce.open(region, 0, 2, 4)) {
+      Assertions.assertThrows(IllegalStateException.class, () -> SharedAllReduce.open(region, 1, 2, 4));
+      Assertions.assertEquals(0, allReduce.getRank());
+    }
+    SharedAllReduce.open(region, 1, 2, 4).close();
+  }
+
+  @Nonnull
+  private static ConvolutionLayer newLayer(final int seed) {
+    final Random random = new Random(seed);
+    ConvolutionLayer layer = new ConvolutionLayer(3, 3, INPUT_DIMS[2], 3, true);
+    layer.setWeights(() -> random.nextGaussian());
+    return layer;
+  }
+
+  @Nonnull
+  private static Tensor[] shard(final int rank, final int step) {
+    return ConvolutionFixtures.randomBatch(new Random(1000 * rank + step), ITEMS, INPUT_DIMS);
+  }
+
+  /**
+   * One gradient descent step on half the sum of the squared outputs, whose output delta is the output itself.
+   */
+  private static void train(@Nonnull ConvolutionLayer layer, @Nonnull Tensor[] batch, final boolean deferred) {
+    Result result = layer.eval(new Result(new TensorArray(batch), new ConvolutionFixtures.NullAccumulator(), false));
+    DeltaSet<UUID> deltaSet = new DeltaSet<>();
+    result.getAccumulator().accept(deltaSet.addRef(), result.getData());
+    if (deferred) {
+      layer.flushGradient(deltaSet.addRef());
+    }
+    Tensor kernel = layer.getKernel();
+    assert kernel != null;
+    Delta<UUID> delta = deltaSet.get(layer.getId(), kernel.addRef());
+    assert delta != null;
+    double[] gradient = delta.getDelta();
+    double[] weights = kernel.getData();
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] -= RATE * gradient[i];
+    }
+    delta.freeRef();
+    kernel.freeRef();
+    deltaSet.freeRef();
+    result.freeRef();
+  }
+
+  @Nonnull
+  private static File createTempFile(@Nonnull String prefix, @Nonnull String suffix) throws IOException {
+    File file = File.createTempFile(prefix, suffix);
+    file.deleteOnExit();
+    return file;
+  }
+
+  /**
+   * Trains on one shard of each batch in its own process, starting from rank 0's weights, and writes the final
+   * weights as a checkpoint.
+   */
+  public static class Worker {
+    public static void main(String[] args) {
+      final File region = new File(args[0]);
+      final int rank = Integer.parseInt(args[1]);
+      final File output = new File(args[2]);
+      ConvolutionController.setDefaultBackend(ConvolutionController.Backend.CPU);
+      ConvolutionLayer layer = newLayer(rank);
+      layer.setDeferredGradient(true);
+      Tensor kernel = layer.getKernel();
+      assert kernel != null;
+      try (SharedAllReduce allReduce = SharedAllReduce.open(region, rank, WORKERS, kernel.length())) {
+        allReduce.setTimeout(1, TimeUnit.MINUTES);
+        allReduce.broadcast(kernel.getData(), 0);
+        layer.setAllReduce(allReduce);
+        for (int step = 0; step < STEPS; step++) {
+          train(layer, shard(rank, step), true);
+        }
+        layer.setAllReduce(null);
+      }
+      kernel.freeRef();
+      ConvolutionCheckpoint.of(layer).write(output, false);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Random;
+
+public class TiledConvolutionTest {
+  private final Random random = new Random(42);
+
+  @Test
+  public void basic() {
+    test(new int[]{20, 17, 3}, new int[]{3, 3, 12}, null, null, 1);
+  }
+
+  @Test
+  public void padded() {
+    test(new int[]{19, 13, 2}, new int[]{5, 3, 8}, 1, 0, 1);
+  }
+
+  @Test
+  public void grouped() {
+    test(new int[]{16, 15, 4}, new int[]{3, 3, 8}, null, null, 2);
+  }
+
+  /**
+   * Forces spatial tiling with a buffer budget smaller than one item and compares every pass to the untiled
+   * controller.
+   */
+  private void test(@Nonnull int[] inputSize, @Nonnull int[] kernelSize, @Nullable Integer paddingX,
+                    @Nullable Integer paddingY, int groups) {
+    ConvolutionController untiled = new ConvolutionController(inputSize, kernelSize, paddingX, paddingY, groups);
+    ConvolutionController tiled = new ConvolutionController(inputSize, kernelSize, paddingX, paddingY, groups);
+    tiled.setMaxBufferSize(Math.min(tiled.getInputLength(), tiled.getOutputLength()) / 3);
+    Assertions.assertFalse(untiled.isTiled());
+    Assertions.assertTrue(tiled.isTiled());
+    final int items = 2;
+    double[] weights = ConvolutionFixtures.random(random, kernelSize[0] * kernelSize[1] * kernelSize[2]);
+    double[][] input = new double[items][];
+    double[][] error = new double[items][];
+    for (int i = 0; i < items; i++) {
+      input[i] = ConvolutionFixtures.random(random, untiled.getInputLength());
+      error[i] = ConvolutionFixtures.random(random, untiled.getOutputLength());
+    }
+
+    double[][] expectedOutput = new double[items][untiled.getOutputLength()];
+    double[][] actualOutput = new double[items][untiled.getOutputLength()];
+    untiled.convolve(input, weights, expectedOutput);
+    tiled.convolve(input, weights, actualOutput);
+    double[][] expectedBackprop = new double[items][untiled.getInputLength()];
+    double[][] actualBackprop = new double[items][untiled.getInputLength()];
+    untiled.backprop(expectedBackprop, weights, error);
+    tiled.backprop(actualBackprop, weights, error);
+    for (int i = 0; i < items; i++) {
+      Assertions.assertArrayEquals(expectedOutput[i], actualOutput[i], 1e-9);
+      Assertions.assertArrayEquals(expectedBackprop[i], actualBackprop[i], 1e-9);
+    }
+
+    double[] expectedGradient = new double[weights.length];
+    double[] actualGradient = new double[weights.length];
+    untiled.gradient(input, expectedGradient, error);
+    tiled.gradient(input, actualGradient, error);
+    Assertions.assertArrayEquals(expectedGradient, actualGradient, 1e-9);
+  }
+}
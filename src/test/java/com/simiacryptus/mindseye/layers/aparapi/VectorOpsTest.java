@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.aparapi;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class VectorOpsTest {
+  private final Random random = new Random(42);
+
+  /**
+   * The <code>vector-api</code> profile sets <code>mindseye.test.vectorApi</code> and opens the incubator module for
+   * the tests, so there the default instance has to be the Vector API one.
+   */
+  @Test
+  public void vectorApi() {
+    Assumptions.assumeTrue(Boolean.getBoolean("mindseye.test.vectorApi"), "Vector API not enabled");
+    Assertions.assertEquals("VectorApiOps", VectorOps.INSTANCE.getClass().getSimpleName());
+    Assertions.assertTrue(1 < VectorOps.INSTANCE.getWidth(), "Width " + VectorOps.INSTANCE.getWidth());
+  }
+
+  @Test
+  public void matchesScalar() {
+    VectorOps scalar = new VectorOps.ScalarOps();
+    for (int length = 0; length < 37; length++) {
+      double[] x = ConvolutionFixtures.random(random, length + 3);
+      double[] y = ConvolutionFixtures.random(random, length + 5);
+      Assertions.assertEquals(scalar.dot(x, 3, y, 5, length), VectorOps.INSTANCE.dot(x, 3, y, 5, length), 1e-12);
+      double[] expected = y.clone();
+      double[] actual = y.clone();
+      scalar.axpy(0.5, x, 3, expected, 5, length);
+      VectorOps.INSTANCE.axpy(0.5, x, 3, actual, 5, length);
+      Assertions.assertArrayEquals(expected, actual, 1e-12);
+    }
+  }
+}